@@ -0,0 +1,500 @@
+package com.truethat.backend.common;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Proudly created by ohad on 09/10/2017.
+ * <p>
+ * A {@link JsonReader} that decodes CBOR (<a href="https://tools.ietf.org/html/rfc7049">RFC
+ * 7049</a>) rather than JSON, so that every Gson type adapter can read it as is. It accepts the
+ * output of {@link CborWriter}, as well as definite lengths, half precision floats and chunked
+ * text strings. Tags are ignored, and so tagged items are read as their content. Map keys must be
+ * text, as JSON names are, and text strings are limited to {@link #MAX_TEXT_LENGTH} bytes. Byte
+ * strings and simple values other than booleans and null are not supported.
+ * <p>
+ * Gson reads map keys through an internal hook of {@link JsonReader}, which this reader does not
+ * implement, and so maps are read through {@link #MAP_ADAPTER_FACTORY}.
+ */
+public class CborReader extends JsonReader {
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_TEXT = 3;
+  private static final int MAJOR_ARRAY = 4;
+  private static final int MAJOR_MAP = 5;
+  private static final int MAJOR_TAG = 6;
+  private static final int MAJOR_SIMPLE = 7;
+  private static final int INDEFINITE = 31;
+  private static final int BREAK = 0xFF;
+  private static final int BUFFER_SIZE = 8 * 1024;
+  /**
+   * Maximal length of text strings, in bytes, so that clients cannot declare huge ones.
+   */
+  private static final int MAX_TEXT_LENGTH = 1024 * 1024;
+  /**
+   * Reads maps from a {@link CborReader} through a {@link JsonElement} tree, from which Gson reads
+   * map keys of any type, and from other readers as usual.
+   */
+  public static final TypeAdapterFactory MAP_ADAPTER_FACTORY = new TypeAdapterFactory() {
+    @Override public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+      if (!Map.class.isAssignableFrom(type.getRawType())) return null;
+      final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+      final TypeAdapter<JsonElement> treeAdapter = gson.getAdapter(JsonElement.class);
+      return new TypeAdapter<T>() {
+        @Override public void write(JsonWriter out, T value) throws IOException {
+          delegate.write(out, value);
+        }
+
+        @Override public T read(JsonReader in) throws IOException {
+          return in instanceof CborReader ? delegate.fromJsonTree(treeAdapter.read(in))
+              : delegate.read(in);
+        }
+      };
+    }
+  };
+
+  private final InputStream in;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private int limit;
+  /**
+   * Stack of the containers that are being read, its bottom is the document itself, which is an
+   * array of a single item.
+   */
+  private boolean[] isMap = new boolean[32];
+  /**
+   * Items that are left to read in every container, or -1 for indefinite containers. Maps count
+   * their names and values separately.
+   */
+  private long[] remaining = new long[32];
+  /**
+   * Whether the next item of every indefinite map is a name.
+   */
+  private boolean[] indefiniteNames = new boolean[32];
+  private int depth = 1;
+  private @Nullable JsonToken peeked;
+  private @Nullable String peekedString;
+  private long peekedLong;
+  private double peekedDouble;
+  private boolean peekedIsDouble;
+  private boolean peekedBoolean;
+  /**
+   * Length of a peeked container, -1 for indefinite ones.
+   */
+  private long peekedLength;
+
+  /**
+   * @param in to read from.
+   */
+  public CborReader(InputStream in) {
+    super(new StringReader(""));
+    this.in = in;
+    remaining[0] = 1;
+  }
+
+  /**
+   * Refills the buffer once it was fully read.
+   */
+  private void fill() throws IOException {
+    limit = in.read(buffer, 0, buffer.length);
+    position = 0;
+    if (limit <= 0) {
+      limit = 0;
+      throw new EOFException("End of input");
+    }
+  }
+
+  private int readByte() throws IOException {
+    if (position == limit) {
+      fill();
+    }
+    return buffer[position++] & 0xFF;
+  }
+
+  private long readUnsigned(int bytes) throws IOException {
+    long value = 0;
+    for (int i = 0; i < bytes; i++) {
+      value = value << 8 | readByte();
+    }
+    return value;
+  }
+
+  /**
+   * @return the argument of a data item whose initial byte has {@code additionalInfo}, or -1 for
+   * indefinite lengths.
+   */
+  private long readArgument(int additionalInfo) throws IOException {
+    if (additionalInfo < 24) return additionalInfo;
+    switch (additionalInfo) {
+      case 24:
+        return readUnsigned(1);
+      case 25:
+        return readUnsigned(2);
+      case 26:
+        return readUnsigned(4);
+      case 27:
+        long argument = readUnsigned(8);
+        if (argument < 0) {
+          throw syntaxError("Argument is too large: " + Long.toUnsignedString(argument));
+        }
+        return argument;
+      case INDEFINITE:
+        return -1;
+      default:
+        throw syntaxError("Reserved additional info " + additionalInfo);
+    }
+  }
+
+  private String readText(long length) throws IOException {
+    if (length < 0) {
+      // Chunked text, made of definite text strings up to a break.
+      StringBuilder builder = new StringBuilder();
+      long total = 0;
+      for (int initialByte = readByte(); initialByte != BREAK; initialByte = readByte()) {
+        if (initialByte >>> 5 != MAJOR_TEXT || (initialByte & 0x1F) == INDEFINITE) {
+          throw syntaxError("Illegal chunk of text " + Integer.toHexString(initialByte));
+        }
+        long chunkLength = readArgument(initialByte & 0x1F);
+        total += chunkLength;
+        if (total > MAX_TEXT_LENGTH) throw syntaxError("Text is too long: " + total);
+        builder.append(readText(chunkLength));
+      }
+      return builder.toString();
+    }
+    if (length > MAX_TEXT_LENGTH) throw syntaxError("Text is too long: " + length);
+    int size = (int) length;
+    if (limit - position >= size) {
+      String text = new String(buffer, position, size, StandardCharsets.UTF_8);
+      position += size;
+      return text;
+    }
+    // The declared length is only trusted as far as the input actually goes.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(size, BUFFER_SIZE));
+    while (size > 0) {
+      if (position == limit) {
+        fill();
+      }
+      int copied = Math.min(size, limit - position);
+      bytes.write(buffer, position, copied);
+      position += copied;
+      size -= copied;
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static double halfToDouble(int half) {
+    int exponent = (half >> 10) & 0x1F;
+    int mantissa = half & 0x3FF;
+    double value;
+    if (exponent == 0) {
+      value = Math.scalb((double) mantissa, -24);
+    } else if (exponent == 0x1F) {
+      value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+    } else {
+      value = Math.scalb((double) (mantissa + 0x400), exponent - 25);
+    }
+    return (half & 0x8000) != 0 ? -value : value;
+  }
+
+  @Override public JsonToken peek() throws IOException {
+    if (peeked != null) return peeked;
+    int frame = depth - 1;
+    if (remaining[frame] == 0) {
+      if (frame == 0) return peeked = JsonToken.END_DOCUMENT;
+      return peeked = isMap[frame] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+    }
+    int initialByte = readByte();
+    if (remaining[frame] < 0 && initialByte == BREAK) {
+      if (isMap[frame] && !indefiniteNames[frame]) throw syntaxError("Map ended without a value");
+      return peeked = isMap[frame] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+    }
+    int major = initialByte >>> 5;
+    while (major == MAJOR_TAG) {
+      readArgument(initialByte & 0x1F);
+      initialByte = readByte();
+      major = initialByte >>> 5;
+    }
+    int additionalInfo = initialByte & 0x1F;
+    boolean name = isMap[frame] && (remaining[frame] < 0 ? indefiniteNames[frame]
+        : remaining[frame] % 2 == 0);
+    if (name) {
+      if (major != MAJOR_TEXT) {
+        throw syntaxError("Map keys must be text, but was " + Integer.toHexString(initialByte));
+      }
+      peekedString = readText(readArgument(additionalInfo));
+      return peeked = JsonToken.NAME;
+    }
+    switch (major) {
+      case MAJOR_UNSIGNED:
+        peekedLong = readArgument(additionalInfo);
+        peekedIsDouble = false;
+        return peeked = JsonToken.NUMBER;
+      case MAJOR_NEGATIVE:
+        peekedLong = -1 - readArgument(additionalInfo);
+        peekedIsDouble = false;
+        return peeked = JsonToken.NUMBER;
+      case MAJOR_TEXT:
+        peekedString = readText(readArgument(additionalInfo));
+        return peeked = JsonToken.STRING;
+      case MAJOR_ARRAY:
+        peekedLength = readArgument(additionalInfo);
+        return peeked = JsonToken.BEGIN_ARRAY;
+      case MAJOR_MAP:
+        peekedLength = readArgument(additionalInfo);
+        return peeked = JsonToken.BEGIN_OBJECT;
+      case MAJOR_SIMPLE:
+        switch (additionalInfo) {
+          case 20:
+          case 21:
+            peekedBoolean = additionalInfo == 21;
+            return peeked = JsonToken.BOOLEAN;
+          case 22:
+          case 23:
+            return peeked = JsonToken.NULL;
+          case 25:
+            peekedDouble = halfToDouble((int) readUnsigned(2));
+            break;
+          case 26:
+            peekedDouble = Float.intBitsToFloat((int) readUnsigned(4));
+            break;
+          case 27:
+            peekedDouble = Double.longBitsToDouble(readUnsigned(8));
+            break;
+          default:
+            throw syntaxError("Unsupported simple value " + additionalInfo);
+        }
+        peekedIsDouble = true;
+        return peeked = JsonToken.NUMBER;
+      default:
+        throw syntaxError("Unsupported major type " + major);
+    }
+  }
+
+  /**
+   * Consumes the peeked token, which is an item of the current container.
+   */
+  private void consume() {
+    int frame = depth - 1;
+    if (remaining[frame] < 0) {
+      indefiniteNames[frame] = isMap[frame];
+    } else {
+      remaining[frame]--;
+    }
+    peeked = null;
+    peekedString = null;
+  }
+
+  private void consumeName(int frame) {
+    if (remaining[frame] < 0) {
+      indefiniteNames[frame] = false;
+    } else {
+      remaining[frame]--;
+    }
+  }
+
+  private void expect(JsonToken expected) throws IOException {
+    JsonToken token = peek();
+    if (token != expected) {
+      throw new IllegalStateException("Expected " + expected + " but was " + token);
+    }
+  }
+
+  private void push(boolean map) {
+    long length = peekedLength;
+    consume();
+    if (depth == isMap.length) {
+      isMap = Arrays.copyOf(isMap, depth * 2);
+      remaining = Arrays.copyOf(remaining, depth * 2);
+      indefiniteNames = Arrays.copyOf(indefiniteNames, depth * 2);
+    }
+    isMap[depth] = map;
+    // Maps count their names and values separately.
+    remaining[depth] = length < 0 ? -1 : map ? length * 2 : length;
+    indefiniteNames[depth] = map;
+    depth++;
+  }
+
+  private void pop() {
+    peeked = null;
+    depth--;
+  }
+
+  @Override public void beginArray() throws IOException {
+    expect(JsonToken.BEGIN_ARRAY);
+    push(false);
+  }
+
+  @Override public void endArray() throws IOException {
+    expect(JsonToken.END_ARRAY);
+    pop();
+  }
+
+  @Override public void beginObject() throws IOException {
+    expect(JsonToken.BEGIN_OBJECT);
+    push(true);
+  }
+
+  @Override public void endObject() throws IOException {
+    expect(JsonToken.END_OBJECT);
+    pop();
+  }
+
+  @Override public boolean hasNext() throws IOException {
+    JsonToken token = peek();
+    return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY
+        && token != JsonToken.END_DOCUMENT;
+  }
+
+  @Override public String nextName() throws IOException {
+    expect(JsonToken.NAME);
+    String name = peekedString;
+    peeked = null;
+    peekedString = null;
+    consumeName(depth - 1);
+    return name;
+  }
+
+  /**
+   * @return the peeked number in decimal.
+   */
+  private String numberString() {
+    if (!peekedIsDouble) return Long.toString(peekedLong);
+    if (peekedDouble == Math.rint(peekedDouble) && Math.abs(peekedDouble) < 1e15) {
+      return Long.toString((long) peekedDouble);
+    }
+    return Double.toString(peekedDouble);
+  }
+
+  @Override public String nextString() throws IOException {
+    JsonToken token = peek();
+    String string;
+    if (token == JsonToken.STRING) {
+      string = peekedString;
+    } else if (token == JsonToken.NUMBER) {
+      string = numberString();
+    } else {
+      throw new IllegalStateException("Expected a string but was " + token);
+    }
+    consume();
+    return string;
+  }
+
+  @Override public boolean nextBoolean() throws IOException {
+    expect(JsonToken.BOOLEAN);
+    boolean value = peekedBoolean;
+    consume();
+    return value;
+  }
+
+  @Override public void nextNull() throws IOException {
+    expect(JsonToken.NULL);
+    consume();
+  }
+
+  @Override public double nextDouble() throws IOException {
+    JsonToken token = peek();
+    double value;
+    if (token == JsonToken.NUMBER) {
+      value = peekedIsDouble ? peekedDouble : peekedLong;
+    } else if (token == JsonToken.STRING) {
+      value = Double.parseDouble(peekedString);
+    } else {
+      throw new IllegalStateException("Expected a double but was " + token);
+    }
+    if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))) {
+      throw new MalformedJsonException("CBOR forbids NaN and infinities: " + value);
+    }
+    consume();
+    return value;
+  }
+
+  private static long toLong(double value) {
+    long asLong = (long) value;
+    if (asLong != value) throw new NumberFormatException("Expected a long but was " + value);
+    return asLong;
+  }
+
+  @Override public long nextLong() throws IOException {
+    JsonToken token = peek();
+    long value;
+    if (token == JsonToken.NUMBER) {
+      value = peekedIsDouble ? toLong(peekedDouble) : peekedLong;
+    } else if (token == JsonToken.STRING) {
+      try {
+        value = Long.parseLong(peekedString);
+      } catch (NumberFormatException e) {
+        value = toLong(Double.parseDouble(peekedString));
+      }
+    } else {
+      throw new IllegalStateException("Expected a long but was " + token);
+    }
+    consume();
+    return value;
+  }
+
+  @Override public int nextInt() throws IOException {
+    long value = nextLong();
+    if (value != (int) value) throw new NumberFormatException("Expected an int but was " + value);
+    return (int) value;
+  }
+
+  @Override public void skipValue() throws IOException {
+    switch (peek()) {
+      case BEGIN_ARRAY:
+        beginArray();
+        while (hasNext()) {
+          skipValue();
+        }
+        endArray();
+        break;
+      case BEGIN_OBJECT:
+        beginObject();
+        while (hasNext()) {
+          nextName();
+          skipValue();
+        }
+        endObject();
+        break;
+      case NAME:
+        nextName();
+        break;
+      case END_ARRAY:
+      case END_OBJECT:
+      case END_DOCUMENT:
+        throw new IllegalStateException("Expected a value but was " + peek());
+      default:
+        consume();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    peeked = null;
+    depth = 1;
+    remaining[0] = 0;
+    in.close();
+  }
+
+  @Override public String toString() {
+    return getClass().getSimpleName();
+  }
+
+  private MalformedJsonException syntaxError(String message) {
+    return new MalformedJsonException(message);
+  }
+}
@@ -0,0 +1,291 @@
+package com.truethat.backend.common;
+
+import com.google.common.io.CharStreams;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Proudly created by ohad on 09/10/2017.
+ * <p>
+ * A {@link JsonWriter} that encodes CBOR (<a href="https://tools.ietf.org/html/rfc7049">RFC
+ * 7049</a>) rather than JSON, so that every Gson type adapter can write it as is. Objects and
+ * arrays are encoded with indefinite lengths, so that they are streamed, numbers are encoded in
+ * binary, and {@link com.google.cloud.Timestamp}s are encoded as epoch-based date/time items
+ * (see {@link #epochMillisValue(long)}) rather than as ISO-8601 strings.
+ * <p>
+ * Output is buffered in a caller provided buffer, that is spilled into the output stream once
+ * full. Raw JSON values are not supported.
+ */
+public class CborWriter extends JsonWriter {
+  public static final String CONTENT_TYPE = "application/cbor";
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1 << 5;
+  private static final int MAJOR_TEXT = 3 << 5;
+  private static final int MAJOR_TAG = 6 << 5;
+  private static final int BEGIN_INDEFINITE_ARRAY = 0x9F;
+  private static final int BEGIN_INDEFINITE_MAP = 0xBF;
+  private static final int BREAK = 0xFF;
+  private static final int FALSE = 0xF4;
+  private static final int TRUE = 0xF5;
+  private static final int NULL = 0xF6;
+  private static final int FLOAT32 = 0xFA;
+  private static final int FLOAT64 = 0xFB;
+  /**
+   * Tag of epoch-based date/time, in seconds.
+   */
+  private static final int TAG_EPOCH_DATE_TIME = 1;
+  private final OutputStream out;
+  private final byte[] buffer;
+  private int count;
+  private boolean spilled;
+  private @Nullable String deferredName;
+
+  /**
+   * @param out    to write into.
+   * @param buffer in which output is buffered before it is written into {@code out}.
+   */
+  public CborWriter(OutputStream out, byte[] buffer) {
+    super(CharStreams.nullWriter());
+    this.out = out;
+    this.buffer = buffer;
+  }
+
+  /**
+   * @return whether the buffer was ever written into the output stream.
+   */
+  boolean isSpilled() {
+    return spilled;
+  }
+
+  /**
+   * @return the number of bytes that were not yet written into the output stream.
+   */
+  int getBufferedCount() {
+    return count;
+  }
+
+  private void spill() throws IOException {
+    out.write(buffer, 0, count);
+    count = 0;
+    spilled = true;
+  }
+
+  private void writeByte(int b) throws IOException {
+    if (count == buffer.length) {
+      spill();
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      if (count == buffer.length) {
+        spill();
+      }
+      int copied = Math.min(bytes.length - offset, buffer.length - count);
+      System.arraycopy(bytes, offset, buffer, count, copied);
+      count += copied;
+      offset += copied;
+    }
+  }
+
+  /**
+   * Writes the initial bytes of a data item, with the shortest encoding of {@code argument}.
+   *
+   * @param major    type of the item, shifted into the 3 high bits.
+   * @param argument unsigned argument of the item, such as its length or value.
+   */
+  private void writeHead(int major, long argument) throws IOException {
+    if (argument >= 0 && argument < 24) {
+      writeByte(major | (int) argument);
+    } else if (argument >= 0 && argument <= 0xFF) {
+      writeByte(major | 24);
+      writeByte((int) argument);
+    } else if (argument >= 0 && argument <= 0xFFFF) {
+      writeByte(major | 25);
+      writeByte((int) (argument >> 8));
+      writeByte((int) argument);
+    } else if (argument >= 0 && argument <= 0xFFFFFFFFL) {
+      writeByte(major | 26);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        writeByte((int) (argument >> shift));
+      }
+    } else {
+      // Arguments of 2^63 and above are negative as a signed long.
+      writeByte(major | 27);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        writeByte((int) (argument >> shift));
+      }
+    }
+  }
+
+  private void writeText(String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    writeHead(MAJOR_TEXT, bytes.length);
+    writeBytes(bytes);
+  }
+
+  private void writeDeferredName() throws IOException {
+    if (deferredName != null) {
+      writeText(deferredName);
+      deferredName = null;
+    }
+  }
+
+  private void writeLong(long value) throws IOException {
+    if (value >= 0) {
+      writeHead(MAJOR_UNSIGNED, value);
+    } else {
+      // Negative integers are encoded as -1 - n.
+      writeHead(MAJOR_NEGATIVE, -1 - value);
+    }
+  }
+
+  private void writeDouble(double value) throws IOException {
+    float single = (float) value;
+    if (single == value || Double.isNaN(value)) {
+      writeByte(FLOAT32);
+      int bits = Float.floatToIntBits(single);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        writeByte(bits >> shift);
+      }
+    } else {
+      writeByte(FLOAT64);
+      long bits = Double.doubleToLongBits(value);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        writeByte((int) (bits >> shift));
+      }
+    }
+  }
+
+  @Override public CborWriter beginArray() throws IOException {
+    writeDeferredName();
+    writeByte(BEGIN_INDEFINITE_ARRAY);
+    return this;
+  }
+
+  @Override public CborWriter endArray() throws IOException {
+    writeByte(BREAK);
+    return this;
+  }
+
+  @Override public CborWriter beginObject() throws IOException {
+    writeDeferredName();
+    writeByte(BEGIN_INDEFINITE_MAP);
+    return this;
+  }
+
+  @Override public CborWriter endObject() throws IOException {
+    if (deferredName != null) throw new IllegalStateException("Dangling name: " + deferredName);
+    writeByte(BREAK);
+    return this;
+  }
+
+  @Override public CborWriter name(String name) throws IOException {
+    if (name == null) throw new NullPointerException("name == null");
+    if (deferredName != null) throw new IllegalStateException("Dangling name: " + deferredName);
+    deferredName = name;
+    return this;
+  }
+
+  @Override public CborWriter value(String value) throws IOException {
+    if (value == null) return nullValue();
+    writeDeferredName();
+    writeText(value);
+    return this;
+  }
+
+  @Override public CborWriter jsonValue(String value) throws IOException {
+    throw new UnsupportedOperationException("Raw JSON values cannot be written as CBOR.");
+  }
+
+  @Override public CborWriter nullValue() throws IOException {
+    if (deferredName != null) {
+      if (!getSerializeNulls()) {
+        // Drops the name along with its value, as JsonWriter does.
+        deferredName = null;
+        return this;
+      }
+      writeDeferredName();
+    }
+    writeByte(NULL);
+    return this;
+  }
+
+  @Override public CborWriter value(boolean value) throws IOException {
+    writeDeferredName();
+    writeByte(value ? TRUE : FALSE);
+    return this;
+  }
+
+  @Override public CborWriter value(Boolean value) throws IOException {
+    if (value == null) return nullValue();
+    return value(value.booleanValue());
+  }
+
+  @Override public CborWriter value(double value) throws IOException {
+    if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    writeDeferredName();
+    writeDouble(value);
+    return this;
+  }
+
+  @Override public CborWriter value(long value) throws IOException {
+    writeDeferredName();
+    writeLong(value);
+    return this;
+  }
+
+  @Override public CborWriter value(Number value) throws IOException {
+    if (value == null) return nullValue();
+    if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte || value instanceof AtomicLong || value instanceof AtomicInteger) {
+      return value(value.longValue());
+    }
+    if (value instanceof Double || value instanceof Float) {
+      return value(value.doubleValue());
+    }
+    // Such as lazily parsed numbers of JSON trees.
+    String string = value.toString();
+    try {
+      return value(Long.parseLong(string));
+    } catch (NumberFormatException e) {
+      return value(value.doubleValue());
+    }
+  }
+
+  /**
+   * Writes a date/time, as a tagged number of seconds since epoch. Whole seconds are written as
+   * integers, and other times as floating point numbers, which are precise to the millisecond.
+   *
+   * @param epochMillis milliseconds since epoch.
+   */
+  public CborWriter epochMillisValue(long epochMillis) throws IOException {
+    writeDeferredName();
+    writeHead(MAJOR_TAG, TAG_EPOCH_DATE_TIME);
+    if (epochMillis % 1000 == 0) {
+      writeLong(epochMillis / 1000);
+    } else {
+      writeDouble(epochMillis / 1000.0);
+    }
+    return this;
+  }
+
+  @Override public void flush() throws IOException {
+    spill();
+    out.flush();
+  }
+
+  @Override public void close() throws IOException {
+    flush();
+    out.close();
+  }
+}
@@ -0,0 +1,141 @@
+package com.truethat.backend.common;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Utf8;
+import com.google.gson.JsonNull;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Proudly created by ohad on 06/10/2017.
+ * <p>
+ * Serializes response bodies with {@link Util#GSON} straight into the response, rather than into
+ * an intermediate {@link String}. Serialization goes through a per-thread buffer: bodies that fit
+ * in it are written at once along with their Content-Length, and larger ones are streamed as the
+ * buffer fills up.
+ */
+public class JsonResponses {
+  /**
+   * Size in chars of the per-thread buffer.
+   */
+  @VisibleForTesting static final int BUFFER_SIZE = 16 * 1024;
+  private static final String CONTENT_TYPE = "application/json";
+  private static final String CHARACTER_ENCODING = "UTF-8";
+  private static final ThreadLocal<ResponseWriter> WRITERS =
+      ThreadLocal.withInitial(ResponseWriter::new);
+
+  /**
+   * Writes {@code src} as the JSON body of {@code resp}. Its runtime type is serialized, as with
+   * {@link com.google.gson.Gson#toJson(Object)}.
+   *
+   * @param resp to write into.
+   * @param src  to serialize.
+   */
+  public static void write(HttpServletResponse resp, @Nullable Object src) throws IOException {
+    resp.setContentType(CONTENT_TYPE);
+    resp.setCharacterEncoding(CHARACTER_ENCODING);
+    ResponseWriter writer = WRITERS.get();
+    writer.open(resp);
+    try {
+      if (src == null) {
+        Util.GSON.toJson(JsonNull.INSTANCE, Util.GSON.newJsonWriter(writer));
+      } else {
+        Util.GSON.toJson(src, src.getClass(), Util.GSON.newJsonWriter(writer));
+      }
+      writer.finish();
+    } finally {
+      writer.release();
+    }
+  }
+
+  /**
+   * Buffers serialized chars, and spills them into the response writer once the buffer is full.
+   * Its lifecycle is managed by {@link #write(HttpServletResponse, Object)}, and so closing it
+   * does nothing.
+   */
+  private static class ResponseWriter extends Writer {
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int count;
+    private @Nullable HttpServletResponse resp;
+    /**
+     * Writer of {@link #resp}, once the buffer had spilled into it.
+     */
+    private @Nullable Writer out;
+
+    private void open(HttpServletResponse resp) {
+      this.resp = resp;
+    }
+
+    private void release() {
+      resp = null;
+      out = null;
+      count = 0;
+    }
+
+    /**
+     * Writes what is left in the buffer, with a Content-Length if the buffer never spilled.
+     */
+    private void finish() throws IOException {
+      if (out == null) {
+        //noinspection ConstantConditions
+        resp.setContentLength(Utf8.encodedLength(CharBuffer.wrap(buffer, 0, count)));
+        //noinspection ConstantConditions
+        resp.getWriter().write(buffer, 0, count);
+      } else {
+        spill();
+      }
+    }
+
+    private void spill() throws IOException {
+      if (out == null) {
+        //noinspection ConstantConditions
+        out = resp.getWriter();
+      }
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+
+    @Override public void write(char[] chars, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (count == buffer.length) {
+          spill();
+        }
+        int copied = Math.min(length, buffer.length - count);
+        System.arraycopy(chars, offset, buffer, count, copied);
+        count += copied;
+        offset += copied;
+        length -= copied;
+      }
+    }
+
+    @Override public void write(String string, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (count == buffer.length) {
+          spill();
+        }
+        int copied = Math.min(length, buffer.length - count);
+        string.getChars(offset, offset + copied, buffer, count);
+        count += copied;
+        offset += copied;
+        length -= copied;
+      }
+    }
+
+    @Override public void write(int c) throws IOException {
+      if (count == buffer.length) {
+        spill();
+      }
+      buffer[count++] = (char) c;
+    }
+
+    @Override public void flush() {
+      // Output is flushed by the container once the response is complete.
+    }
+
+    @Override public void close() {
+    }
+  }
+}
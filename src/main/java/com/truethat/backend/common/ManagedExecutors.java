@@ -0,0 +1,111 @@
+package com.truethat.backend.common;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Proudly created by ohad on 22/09/2017.
+ * <p>
+ * Creates bounded executors that are owned by the servlet container, i.e. they are shut down along
+ * with it by {@link com.truethat.backend.servlet.BackendContextListener}.
+ * <p>
+ * Executors are shut down one at a time, in the order of their creation, so that an executor whose
+ * tasks submit to another one should be created first.
+ */
+public class ManagedExecutors {
+  private static final Logger LOG = Logger.getLogger(ManagedExecutors.class.getName());
+  private static final List<ExecutorService> EXECUTORS = new CopyOnWriteArrayList<>();
+  private static final List<Runnable> SHUTDOWN_HOOKS = new CopyOnWriteArrayList<>();
+  /**
+   * Runs rejected tasks on the submitting thread. Unlike {@link
+   * java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy}, it runs tasks that were rejected
+   * because the pool was shut down as well, rather than discarding them, as a discarded task
+   * leaves its future pending forever.
+   */
+  public static final RejectedExecutionHandler CALLER_RUNS = (task, executor) -> task.run();
+
+  /**
+   * @param name             of the pool, used to name its threads.
+   * @param threads          number of pool threads.
+   * @param queueCapacity    maximum number of tasks that wait for a thread.
+   * @param rejectionHandler invoked once both threads and queue are exhausted.
+   *
+   * @return a fixed size pool with a bounded queue.
+   */
+  public static ThreadPoolExecutor newBoundedPool(String name, int threads, int queueCapacity,
+      RejectedExecutionHandler rejectionHandler) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(),
+            rejectionHandler);
+    EXECUTORS.add(executor);
+    return executor;
+  }
+
+  /**
+   * @param name of the scheduler, used to name its thread.
+   *
+   * @return a single threaded scheduler, whose periodic tasks are cancelled once it is shut down.
+   */
+  public static ScheduledExecutorService newScheduler(String name) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+    EXECUTORS.add(scheduler);
+    return scheduler;
+  }
+
+  /**
+   * Registers a hook that stops long running tasks, such as flusher loops, so that the executors
+   * running them can terminate.
+   *
+   * @param hook to run once the container shuts down, before executors are.
+   */
+  public static void registerShutdownHook(Runnable hook) {
+    SHUTDOWN_HOOKS.add(hook);
+  }
+
+  /**
+   * Runs shutdown hooks, then shuts down executors in the order of their creation, and waits for
+   * the running and queued tasks of each to complete before shutting down the next. Tasks of
+   * executors that do not terminate in time are interrupted and dropped.
+   *
+   * @param timeout of waiting for all executors.
+   * @param unit    of {@code timeout}.
+   */
+  public static void shutdownAll(long timeout, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (Runnable hook : SHUTDOWN_HOOKS) {
+      try {
+        hook.run();
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Shutdown hook failed.", e);
+      }
+    }
+    SHUTDOWN_HOOKS.clear();
+    for (ExecutorService executor : EXECUTORS) {
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()),
+            TimeUnit.NANOSECONDS)) {
+          LOG.warning("Executor did not terminate in time, " + executor.shutdownNow().size()
+              + " tasks were dropped.");
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+    EXECUTORS.clear();
+  }
+}
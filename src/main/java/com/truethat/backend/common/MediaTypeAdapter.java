@@ -0,0 +1,120 @@
+package com.truethat.backend.common;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.truethat.backend.model.Media;
+import com.truethat.backend.model.Photo;
+import com.truethat.backend.model.Video;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Proudly created by ohad on 08/10/2017.
+ * <p>
+ * Streams the {@link Media} hierarchy with its subtype in a {@link #TYPE_FIELD_NAME} field, such
+ * as {@code {"type":"Photo","url":"https://...","id":1}}. Fields are read and written directly,
+ * without building an intermediate {@link com.google.gson.JsonElement} tree, and in the order
+ * that reflective serialization had used, so that the output is unchanged.
+ * <p>
+ * Subtypes carry no fields of their own, and so fields are read regardless of their order, and
+ * the subtype is only constructed once the whole object was read.
+ */
+public class MediaTypeAdapter extends TypeAdapter<Media> {
+  public static final String TYPE_FIELD_NAME = "type";
+  private static final String URL_FIELD_NAME = "url";
+  private static final String VARIANTS_FIELD_NAME = "variants";
+  private static final String ID_FIELD_NAME = "id";
+
+  @Override public void write(JsonWriter out, Media media) throws IOException {
+    if (media == null) {
+      out.nullValue();
+      return;
+    }
+    if (media.getClass() != Photo.class && media.getClass() != Video.class) {
+      throw new JsonParseException("cannot serialize " + media.getClass().getName()
+          + "; did you forget to register a subtype?");
+    }
+    out.beginObject();
+    out.name(TYPE_FIELD_NAME).value(media.getClass().getSimpleName());
+    if (media.getUrl() != null) {
+      out.name(URL_FIELD_NAME).value(media.getUrl());
+    }
+    if (media.getVariants() != null) {
+      out.name(VARIANTS_FIELD_NAME).beginObject();
+      for (Map.Entry<Integer, String> variant : media.getVariants().entrySet()) {
+        out.name(String.valueOf(variant.getKey())).value(variant.getValue());
+      }
+      out.endObject();
+    }
+    if (media.getId() != null) {
+      out.name(ID_FIELD_NAME).value(media.getId());
+    }
+    out.endObject();
+  }
+
+  @Override public Media read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    String type = null;
+    String url = null;
+    Map<Integer, String> variants = null;
+    Long id = null;
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        continue;
+      }
+      switch (name) {
+        case TYPE_FIELD_NAME:
+          type = in.nextString();
+          break;
+        case URL_FIELD_NAME:
+          url = in.nextString();
+          break;
+        case VARIANTS_FIELD_NAME:
+          variants = new LinkedHashMap<>();
+          in.beginObject();
+          while (in.hasNext()) {
+            int width = Integer.parseInt(in.nextName());
+            if (in.peek() == JsonToken.NULL) {
+              in.nextNull();
+              variants.put(width, null);
+            } else {
+              variants.put(width, in.nextString());
+            }
+          }
+          in.endObject();
+          break;
+        case ID_FIELD_NAME:
+          id = in.nextLong();
+          break;
+        default:
+          in.skipValue();
+      }
+    }
+    in.endObject();
+    if (type == null) {
+      throw new JsonParseException("cannot deserialize " + Media.class
+          + " because it does not define a field named " + TYPE_FIELD_NAME);
+    }
+    Media media;
+    if (type.equals(Photo.class.getSimpleName())) {
+      media = new Photo(id, url);
+    } else if (type.equals(Video.class.getSimpleName())) {
+      media = new Video(id, url);
+    } else {
+      throw new JsonParseException("cannot deserialize " + Media.class + " subtype named " + type
+          + "; did you forget to register a subtype?");
+    }
+    media.setVariants(variants);
+    return media;
+  }
+}
@@ -0,0 +1,86 @@
+package com.truethat.backend.common;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Proudly created by ohad on 25/09/2017.
+ * <p>
+ * Process-wide registry of operational metrics, such as cache hit rates. Metrics are reported by
+ * {@link com.truethat.backend.servlet.MetricsServlet}.
+ */
+public class Metrics {
+  private static final ConcurrentMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, LongAccumulator> MAXIMUMS = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Supplier<? extends Number>> GAUGES =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Adds {@code delta} to the counter named {@code name}.
+   */
+  public static void add(String name, long delta) {
+    COUNTERS.computeIfAbsent(name, key -> new LongAdder()).add(delta);
+  }
+
+  public static void increment(String name) {
+    add(name, 1);
+  }
+
+  /**
+   * Records the duration of an operation, reported as {@code name.count}, {@code
+   * name.totalMicros} and {@code name.maxMicros}.
+   *
+   * @param name  of the operation.
+   * @param nanos it took.
+   */
+  public static void recordLatency(String name, long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    increment(name + ".count");
+    add(name + ".totalMicros", micros);
+    MAXIMUMS.computeIfAbsent(name + ".maxMicros", key -> new LongAccumulator(Math::max, 0))
+        .accumulate(micros);
+  }
+
+  /**
+   * Registers a metric whose value is sampled whenever metrics are reported.
+   *
+   * @param name  of the metric.
+   * @param gauge samples the metric value.
+   */
+  public static void registerGauge(String name, Supplier<? extends Number> gauge) {
+    GAUGES.put(name, gauge);
+  }
+
+  /**
+   * @return current values of all metrics, sorted by their names.
+   */
+  public static SortedMap<String, Number> snapshot() {
+    SortedMap<String, Number> snapshot = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+      snapshot.put(counter.getKey(), counter.getValue().sum());
+    }
+    for (Map.Entry<String, LongAccumulator> maximum : MAXIMUMS.entrySet()) {
+      snapshot.put(maximum.getKey(), maximum.getValue().get());
+    }
+    for (Map.Entry<String, Supplier<? extends Number>> gauge : GAUGES.entrySet()) {
+      snapshot.put(gauge.getKey(), gauge.getValue().get());
+    }
+    return snapshot;
+  }
+
+  /**
+   * Resets all counters, gauges remain registered.
+   */
+  @VisibleForTesting public static void resetCounters() {
+    COUNTERS.clear();
+    MAXIMUMS.clear();
+  }
+}
@@ -0,0 +1,213 @@
+package com.truethat.backend.common;
+
+import com.google.cloud.Timestamp;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proudly created by ohad on 07/10/2017.
+ * <p>
+ * Encodes {@link Timestamp}s as UTC ISO-8601 strings with millisecond precision, such as {@code
+ * 1970-01-01T00:00:00.001+0000}. It holds no shared mutable state, and so it is used concurrently
+ * by every request without contention.
+ * <p>
+ * Strings in the exact {@link #PATTERN} with a numeric offset are parsed by hand. Other strings,
+ * as well as timestamps outside years 1970 to 9999, go through a per-thread {@link
+ * SimpleDateFormat}, so that they are handled as they always were.
+ * <p>
+ * In CBOR, timestamps are rather encoded as epoch-based date/times, see {@link
+ * CborWriter#epochMillisValue(long)}.
+ */
+public class TimestampTypeAdapter extends TypeAdapter<Timestamp> {
+  @VisibleForTesting static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+  private static final ThreadLocal<DateFormat> FALLBACK_FORMAT = ThreadLocal.withInitial(() -> {
+    DateFormat dateFormat = new SimpleDateFormat(PATTERN, Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return dateFormat;
+  });
+  /**
+   * Length of {@code yyyy-MM-ddTHH:mm:ss.SSS}.
+   */
+  private static final int LOCAL_LENGTH = 23;
+  /**
+   * Days between 0000-03-01 and 1970-01-01, see {@link #daysFromCivil(int, int, int)}.
+   */
+  private static final int EPOCH_SHIFT_DAYS = 719468;
+  private static final int DAYS_PER_ERA = 146097;
+  private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+  /**
+   * First millisecond of year 10000, from which years no longer fit in four digits.
+   */
+  private static final long MAX_FAST_MILLIS = 253402300800000L;
+
+  /**
+   * @return days since epoch of a proleptic Gregorian date.
+   *
+   * @see <a href="http://howardhinnant.github.io/date_algorithms.html">Date algorithms</a>
+   */
+  private static long daysFromCivil(int year, int month, int day) {
+    year -= month <= 2 ? 1 : 0;
+    int era = Math.floorDiv(year, 400);
+    int yearOfEra = year - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return (long) era * DAYS_PER_ERA + dayOfEra - EPOCH_SHIFT_DAYS;
+  }
+
+  private static void writeDigits(char[] chars, int offset, int value, int digits) {
+    for (int i = offset + digits - 1; i >= offset; i--) {
+      chars[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  /**
+   * @return the value of {@code length} digits from {@code offset}, or -1 if they are not all
+   * digits.
+   */
+  private static int readDigits(String string, int offset, int length) {
+    int value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      char c = string.charAt(i);
+      if (c < '0' || c > '9') return -1;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * @param epochMillis to format.
+   *
+   * @return {@code epochMillis} formatted with {@link #PATTERN} in UTC.
+   */
+  @VisibleForTesting static String format(long epochMillis) {
+    if (epochMillis < 0 || epochMillis >= MAX_FAST_MILLIS) {
+      return FALLBACK_FORMAT.get().format(new Date(epochMillis));
+    }
+    // Civil from days, see daysFromCivil.
+    long epochDays = epochMillis / MILLIS_PER_DAY;
+    int millisOfDay = (int) (epochMillis % MILLIS_PER_DAY);
+    int shifted = (int) epochDays + EPOCH_SHIFT_DAYS;
+    int era = shifted / DAYS_PER_ERA;
+    int dayOfEra = shifted - era * DAYS_PER_ERA;
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    char[] chars = new char[LOCAL_LENGTH + 5];
+    writeDigits(chars, 0, year, 4);
+    chars[4] = '-';
+    writeDigits(chars, 5, month, 2);
+    chars[7] = '-';
+    writeDigits(chars, 8, day, 2);
+    chars[10] = 'T';
+    writeDigits(chars, 11, millisOfDay / 3600000, 2);
+    chars[13] = ':';
+    writeDigits(chars, 14, millisOfDay / 60000 % 60, 2);
+    chars[16] = ':';
+    writeDigits(chars, 17, millisOfDay / 1000 % 60, 2);
+    chars[19] = '.';
+    writeDigits(chars, 20, millisOfDay % 1000, 3);
+    chars[23] = '+';
+    chars[24] = '0';
+    chars[25] = '0';
+    chars[26] = '0';
+    chars[27] = '0';
+    return new String(chars);
+  }
+
+  /**
+   * @param string to parse.
+   *
+   * @return milliseconds since epoch of {@code string}.
+   *
+   * @throws ParseException if {@code string} is not a valid date.
+   */
+  @VisibleForTesting static long parse(String string) throws ParseException {
+    // yyyy-MM-ddTHH:mm:ss.SSS followed by Z, +HHMM or +HH:MM
+    int length = string.length();
+    if (length < LOCAL_LENGTH + 1 || string.charAt(4) != '-' || string.charAt(7) != '-'
+        || string.charAt(10) != 'T' || string.charAt(13) != ':' || string.charAt(16) != ':'
+        || string.charAt(19) != '.') {
+      return FALLBACK_FORMAT.get().parse(string).getTime();
+    }
+    int year = readDigits(string, 0, 4);
+    int month = readDigits(string, 5, 2);
+    int day = readDigits(string, 8, 2);
+    int hours = readDigits(string, 11, 2);
+    int minutes = readDigits(string, 14, 2);
+    int seconds = readDigits(string, 17, 2);
+    int millis = readDigits(string, 20, 3);
+    int offsetMinutes = 0;
+    char sign = string.charAt(LOCAL_LENGTH);
+    boolean validOffset;
+    if (sign == 'Z') {
+      validOffset = length == LOCAL_LENGTH + 1;
+    } else if (sign == '+' || sign == '-') {
+      int offsetHours = length >= LOCAL_LENGTH + 3 ? readDigits(string, LOCAL_LENGTH + 1, 2) : -1;
+      int offsetMinutesStart = length == LOCAL_LENGTH + 6 ? LOCAL_LENGTH + 4 : LOCAL_LENGTH + 3;
+      int offsetMinutesOfHour = -1;
+      if (length == LOCAL_LENGTH + 5
+          || (length == LOCAL_LENGTH + 6 && string.charAt(LOCAL_LENGTH + 3) == ':')) {
+        offsetMinutesOfHour = readDigits(string, offsetMinutesStart, 2);
+      }
+      validOffset = offsetHours >= 0 && offsetMinutesOfHour >= 0;
+      offsetMinutes = (offsetHours * 60 + offsetMinutesOfHour) * (sign == '-' ? -1 : 1);
+    } else {
+      validOffset = false;
+    }
+    if (!validOffset || year < 1970 || month < 1 || month > 12 || day < 1 || day > 31
+        || hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59
+        || millis < 0) {
+      return FALLBACK_FORMAT.get().parse(string).getTime();
+    }
+    return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+        + ((hours * 60L + minutes - offsetMinutes) * 60 + seconds) * 1000 + millis;
+  }
+
+  @Override public void write(JsonWriter out, Timestamp timestamp) throws IOException {
+    if (timestamp == null) {
+      out.nullValue();
+      return;
+    }
+    long epochMillis = TimeUnit.SECONDS.toMillis(timestamp.getSeconds())
+        + TimeUnit.NANOSECONDS.toMillis(timestamp.getNanos());
+    if (out instanceof CborWriter) {
+      ((CborWriter) out).epochMillisValue(epochMillis);
+    } else {
+      out.value(format(epochMillis));
+    }
+  }
+
+  @Override public Timestamp read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    if (in instanceof CborReader && in.peek() == JsonToken.NUMBER) {
+      // Seconds since epoch.
+      long epochMillis = Math.round(in.nextDouble() * TimeUnit.SECONDS.toMillis(1));
+      return Timestamp.ofTimeMicroseconds(TimeUnit.MILLISECONDS.toMicros(epochMillis));
+    }
+    String string = in.nextString();
+    try {
+      return Timestamp.ofTimeMicroseconds(TimeUnit.MILLISECONDS.toMicros(parse(string)));
+    } catch (ParseException e) {
+      throw new JsonParseException(e);
+    }
+  }
+}
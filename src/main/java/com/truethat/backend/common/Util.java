@@ -5,11 +5,7 @@ import com.google.common.base.Charsets;
 import com.google.common.io.CharStreams;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.truethat.backend.external.GsonUTCDateAdapter;
-import com.truethat.backend.external.RuntimeTypeAdapterFactory;
 import com.truethat.backend.model.Media;
-import com.truethat.backend.model.Photo;
-import com.truethat.backend.model.Video;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -21,11 +17,9 @@ import java.util.Date;
 public class Util {
   public static final Gson GSON =
       new GsonBuilder()
-          .registerTypeAdapter(Timestamp.class, new GsonUTCDateAdapter())
-          .registerTypeAdapterFactory(
-              RuntimeTypeAdapterFactory.of(Media.class)
-                  .registerSubtype(Photo.class)
-                  .registerSubtype(Video.class))
+          .registerTypeAdapter(Timestamp.class, new TimestampTypeAdapter())
+          .registerTypeHierarchyAdapter(Media.class, new MediaTypeAdapter())
+          .registerTypeAdapterFactory(CborReader.MAP_ADAPTER_FACTORY)
           .create();
 
   /**
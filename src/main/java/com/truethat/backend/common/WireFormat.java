@@ -0,0 +1,194 @@
+package com.truethat.backend.common;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.net.HttpHeaders;
+import com.google.gson.JsonNull;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Locale;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Proudly created by ohad on 09/10/2017.
+ * <p>
+ * Encodings of request and response bodies. JSON is the default, and clients opt into {@link
+ * #CBOR}, which is smaller and cheaper to parse, with a {@code Content-Type: application/cbor}
+ * request header for request bodies, and with an {@code Accept} header that prefers {@code
+ * application/cbor} over {@code application/json} for response bodies. Both go through the type
+ * adapters of {@link Util#GSON}, and so models are encoded with the same field names in both.
+ */
+public enum WireFormat {
+  JSON("application/json"), CBOR(CborWriter.CONTENT_TYPE);
+  /**
+   * Size in bytes of the per-thread buffer of CBOR responses.
+   */
+  @VisibleForTesting static final int BUFFER_SIZE = 16 * 1024;
+  private static final ThreadLocal<byte[]> BUFFERS =
+      ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+  private final String contentType;
+
+  WireFormat(String contentType) {
+    this.contentType = contentType;
+  }
+
+  /**
+   * @param contentType of a body, possibly with parameters.
+   *
+   * @return the format of a body of {@code contentType}, {@link #JSON} unless it is CBOR.
+   */
+  public static WireFormat ofContentType(@Nullable String contentType) {
+    return contentType != null && CBOR.matches(contentType.split(";", 2)[0]) ? CBOR : JSON;
+  }
+
+  /**
+   * @return the format of the body of {@code req}.
+   */
+  public static WireFormat ofRequest(HttpServletRequest req) {
+    return ofContentType(req.getContentType());
+  }
+
+  /**
+   * A response is encoded as CBOR only if the {@code Accept} header of {@code req} lists it with a
+   * higher quality than that of JSON, such as {@code application/cbor} or {@code
+   * application/cbor, application/json;q=0.5}. Wildcards are ignored, as they accept either.
+   *
+   * @return the format in which to respond to {@code req}.
+   */
+  public static WireFormat ofResponse(HttpServletRequest req) {
+    String accept = req.getHeader(HttpHeaders.ACCEPT);
+    if (accept == null) return JSON;
+    double cborQuality = 0;
+    double jsonQuality = 0;
+    for (String range : accept.split(",")) {
+      String[] parameters = range.split(";");
+      double quality = 1;
+      for (int i = 1; i < parameters.length; i++) {
+        String parameter = parameters[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(parameter.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (CBOR.matches(parameters[0])) {
+        cborQuality = Math.max(cborQuality, quality);
+      } else if (JSON.matches(parameters[0])) {
+        jsonQuality = Math.max(jsonQuality, quality);
+      }
+    }
+    return cborQuality > jsonQuality ? CBOR : JSON;
+  }
+
+  /**
+   * @param req whose body to read.
+   *
+   * @return a reader of the body of {@code req}, according to its format.
+   */
+  public static JsonReader newReader(HttpServletRequest req) throws IOException {
+    return ofRequest(req) == CBOR ? new CborReader(req.getInputStream())
+        : Util.GSON.newJsonReader(req.getReader());
+  }
+
+  /**
+   * @param req  whose body to read.
+   * @param type of the body.
+   *
+   * @return the body of {@code req}, or {@code null} if it is empty.
+   */
+  public static <T> T read(HttpServletRequest req, Class<T> type) throws IOException {
+    if (ofRequest(req) == CBOR) {
+      return Util.GSON.fromJson(new CborReader(req.getInputStream()), type);
+    }
+    return Util.GSON.fromJson(req.getReader(), type);
+  }
+
+  /**
+   * @param contentType of {@code in}, such as that of a multipart part.
+   * @param in          to read.
+   * @param type        of the body.
+   *
+   * @return the body in {@code in}, or {@code null} if it is empty.
+   */
+  public static <T> T read(@Nullable String contentType, InputStream in, Class<T> type) {
+    if (ofContentType(contentType) == CBOR) {
+      return Util.GSON.fromJson(new CborReader(in), type);
+    }
+    return Util.GSON.fromJson(new InputStreamReader(in), type);
+  }
+
+  /**
+   * Writes {@code src} as the body of {@code resp}, in the format that {@code req} prefers (see
+   * {@link #ofResponse(HttpServletRequest)}). Its runtime type is serialized, as with {@link
+   * com.google.gson.Gson#toJson(Object)}.
+   *
+   * @param req  that is responded.
+   * @param resp to write into.
+   * @param src  to serialize.
+   */
+  public static void write(HttpServletRequest req, HttpServletResponse resp, @Nullable Object src)
+      throws IOException {
+    // Caches must not serve a response in one format to a client that had asked for the other.
+    resp.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    if (ofResponse(req) == JSON) {
+      JsonResponses.write(resp, src);
+      return;
+    }
+    resp.setContentType(CBOR.contentType);
+    CborWriter writer = new CborWriter(new ResponseStream(resp), BUFFERS.get());
+    writer.setSerializeNulls(Util.GSON.serializeNulls());
+    if (src == null) {
+      Util.GSON.toJson(JsonNull.INSTANCE, writer);
+    } else {
+      Util.GSON.toJson(src, src.getClass(), writer);
+    }
+    if (!writer.isSpilled()) {
+      resp.setContentLength(writer.getBufferedCount());
+    }
+    writer.flush();
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @param mediaType such as {@code application/json}.
+   *
+   * @return whether {@code mediaType} is that of this format.
+   */
+  private boolean matches(String mediaType) {
+    return contentType.equals(mediaType.trim().toLowerCase(Locale.US));
+  }
+
+  /**
+   * Opens the output stream of a response only once bytes are written into it. Output is flushed
+   * by the container once the response is complete, and so flushing and closing do nothing.
+   */
+  private static class ResponseStream extends OutputStream {
+    private final HttpServletResponse resp;
+    private @Nullable OutputStream out;
+
+    private ResponseStream(HttpServletResponse resp) {
+      this.resp = resp;
+    }
+
+    @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) return;
+      if (out == null) {
+        out = resp.getOutputStream();
+      }
+      out.write(bytes, offset, length);
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+  }
+}
@@ -22,8 +22,8 @@ import javax.annotation.Nullable;
    * Datastore column names.
    */
   public static final String COLUMN_SCENE_ID = "sceneId";
+  public static final String COLUMN_USER_ID = "userId";
   private static final String COLUMN_TIMESTAMP = "timestamp";
-  private static final String COLUMN_USER_ID = "userId";
   private static final String COLUMN_EVENT_TYPE = "eventType";
   private static final String COLUMN_REACTION = "reaction";
   private static final String COLUMN_MEDIA_ID = "mediaId";
@@ -1,18 +1,23 @@
 package com.truethat.backend.model;
 
+import com.google.cloud.datastore.EntityValue;
 import com.google.cloud.datastore.FullEntity;
 import com.google.cloud.datastore.IncompleteKey;
 import com.google.common.annotations.VisibleForTesting;
+import com.truethat.backend.common.MediaTypeAdapter;
 import com.truethat.backend.common.Util;
 import com.truethat.backend.servlet.BaseServlet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 
 /**
  * Proudly created by ohad on 08/09/2017.
  * <p>
  * A media item, such as a photo or a video.
  * <p>
- * Each implementation should register at {@link Util#GSON}.
+ * Each implementation should be handled by {@link MediaTypeAdapter}, which {@link Util#GSON}
+ * uses.
  *
  * @android <a>https://github.com/true-that/android/blob/master/app/src/main/java/com/truethat/android/model/Media.java</a>
  * @ios <a>https://github.com/true-that/ios/blob/master/TrueThat/Model/Media.swift</a>
@@ -39,10 +44,17 @@ public class Media extends BaseModel {
    */
   private static final String COLUMN_URL = "url";
   private static final String COLUMN_TYPE = "type";
+  public static final String COLUMN_VARIANTS = "variants";
   /**
    * URL of media content as stored on Google storage.
    */
   private String url;
+  /**
+   * URLs of downscaled variants of the media content, by their maximal width. Variants are
+   * generated after the media is saved, and so they are not part of the media identity (i.e.
+   * {@link #equals(Object)}).
+   */
+  private Map<Integer, String> variants;
 
   @VisibleForTesting Media(Long id, String url) {
     super(id);
@@ -54,6 +66,25 @@ public class Media extends BaseModel {
     if (entity.contains(COLUMN_URL)) {
       url = entity.getString(COLUMN_URL);
     }
+    if (entity.contains(COLUMN_VARIANTS)) {
+      FullEntity<?> variantsEntity = entity.getEntity(COLUMN_VARIANTS);
+      variants = new TreeMap<>();
+      for (String width : variantsEntity.getNames()) {
+        variants.put(Integer.parseInt(width), variantsEntity.getString(width));
+      }
+    }
+  }
+
+  /**
+   * @param variants URLs by maximal width.
+   *
+   * @return a datastore value of {@code variants}, as stored in the {@link #COLUMN_VARIANTS}
+   * column.
+   */
+  public static EntityValue toVariantsValue(Map<Integer, String> variants) {
+    FullEntity.Builder<IncompleteKey> builder = FullEntity.newBuilder();
+    variants.forEach((width, variantUrl) -> builder.set(String.valueOf(width), variantUrl));
+    return EntityValue.newBuilder(builder.build()).setExcludeFromIndexes(true).build();
   }
 
   /**
@@ -82,6 +113,9 @@ public class Media extends BaseModel {
     if (url != null) {
       builder.set(COLUMN_URL, url);
     }
+    if (variants != null && !variants.isEmpty()) {
+      builder.set(COLUMN_VARIANTS, toVariantsValue(variants));
+    }
     return builder;
   }
 
@@ -112,4 +146,12 @@ public class Media extends BaseModel {
   public void setUrl(String url) {
     this.url = url;
   }
+
+  public Map<Integer, String> getVariants() {
+    return variants;
+  }
+
+  public void setVariants(Map<Integer, String> variants) {
+    this.variants = variants;
+  }
 }
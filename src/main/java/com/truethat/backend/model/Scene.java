@@ -10,12 +10,27 @@ import com.google.cloud.storage.BlobInfo;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 import com.google.common.io.ByteStreams;
+import com.truethat.backend.common.Metrics;
 import com.truethat.backend.servlet.BaseServlet;
+import com.truethat.backend.servlet.StagedPart;
 import com.truethat.backend.servlet.StudioServlet;
+import com.truethat.backend.storage.StorageClient;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.Part;
 
@@ -30,6 +45,7 @@ import static java.util.stream.Collectors.toList;
  * @ios <a>https://github.com/true-that/ios/blob/master/TrueThat/Model/Scene.swift</a>
  */
 public class Scene extends BaseModel {
+  private static final Logger LOG = Logger.getLogger(Scene.class.getName());
   /**
    * Multipart HTTP request part names, as used by backend endpoints such as {@link
    * com.truethat.backend.servlet.StudioServlet}.
@@ -45,7 +61,12 @@ public class Scene extends BaseModel {
   public static final String COLUMN_CREATED = "created";
   public static final String COLUMN_DIRECTOR_ID = "directorId";
   public static final String COLUMN_MEDIA = "media";
+  public static final String COLUMN_STATUS = "status";
   private static final String COLUMN_EDGES = "edge";
+  /**
+   * How long a save waits for its media items to be uploaded before it fails.
+   */
+  private static final long UPLOAD_TIMEOUT_SECONDS = 60;
   /**
    * The media items of this scene.
    */
@@ -62,6 +83,10 @@ public class Scene extends BaseModel {
    * Client created UTC timestamp
    */
   private Timestamp created;
+  /**
+   * Publishing state, {@code null} for scenes that were saved before statuses were introduced.
+   */
+  private SceneStatus status;
   /**
    * Whether the scene was viewed by the user.
    */
@@ -83,6 +108,19 @@ public class Scene extends BaseModel {
    * Maps media client IDs to datastore one.
    */
   private transient BiMap<Long, Long> clientIdToDatastoreId = HashBiMap.create();
+  /**
+   * Storage names of saved photos by their media IDs, from which photo variants are generated.
+   */
+  private transient Map<Long, String> photoBlobNames = new ConcurrentHashMap<>();
+  /**
+   * Storage items that were newly written by the current save, rather than reused, which are
+   * deleted if it fails. Guarded by itself, along with {@link #uploadsAbandoned}.
+   */
+  private transient List<BlobInfo> uploadedBlobs = new ArrayList<>();
+  /**
+   * Whether the current save failed, after which uploads that complete late delete their items.
+   */
+  private transient boolean uploadsAbandoned;
 
   public Scene(FullEntity entity) {
     super(entity);
@@ -92,6 +130,9 @@ public class Scene extends BaseModel {
     if (entity.contains(COLUMN_CREATED)) {
       created = entity.getTimestamp(COLUMN_CREATED);
     }
+    if (entity.contains(COLUMN_STATUS)) {
+      status = SceneStatus.fromCode((int) entity.getLong(COLUMN_STATUS));
+    }
     if (entity.contains(COLUMN_MEDIA)) {
       @SuppressWarnings("unchecked") List<EntityValue> mediaEntities =
           entity.getList(COLUMN_MEDIA);
@@ -169,6 +210,17 @@ public class Scene extends BaseModel {
     this.directorId = directorId;
   }
 
+  public SceneStatus getStatus() {
+    return status;
+  }
+
+  /**
+   * @return whether the scene can be shown to users.
+   */
+  public boolean isReady() {
+    return status == null || status == SceneStatus.READY;
+  }
+
   public Timestamp getCreated() {
     return created;
   }
@@ -185,6 +237,9 @@ public class Scene extends BaseModel {
     if (getDirectorId() != null) {
       builder.set(COLUMN_DIRECTOR_ID, getDirectorId());
     }
+    if (status != null) {
+      builder.set(COLUMN_STATUS, status.getCode());
+    }
     if (mediaNodes != null && !mediaNodes.isEmpty()) {
       builder.set(COLUMN_MEDIA, mediaNodes.stream()
           .map(media -> {
@@ -197,7 +252,6 @@ public class Scene extends BaseModel {
           .collect(toList()));
     }
     if (edges != null && !edges.isEmpty()) {
-      edges.forEach(edge -> edge.updateIds(clientIdToDatastoreId));
       builder.set(COLUMN_EDGES, edges.stream()
           .map(edge -> new EntityValue(edge.toEntityBuilder(servlet).build()))
           .collect(toList()));
@@ -247,58 +301,222 @@ public class Scene extends BaseModel {
   }
 
   /**
-   * Saves this scene to datastore and storage.
+   * Saves this scene to datastore and storage. Media items are uploaded concurrently, and the
+   * scene is saved once all of them are.
    *
    * @param req     in which the scene is described.
    * @param servlet from which the client requested the save.
    */
   public void save(HttpServletRequest req, StudioServlet servlet) throws Exception {
     if (mediaNodes != null) {
-      for (Media media : mediaNodes) {
-        updateMediaId(media, servlet);
-        saveMedia(media, req, servlet);
+      updateMediaIds(servlet);
+    }
+    publish(getParts(req), servlet);
+  }
+
+  /**
+   * Prepares this scene for publishing after its request is complete: allocates media IDs, stages
+   * the media parts in temporary files, and saves the scene as {@link SceneStatus#PROCESSING}, so
+   * that its ID can be responded right away.
+   *
+   * @param req     in which the scene is described.
+   * @param servlet from which the client requested the save.
+   *
+   * @return the staged media parts, to {@link #publish(List, StudioServlet)} in the background.
+   */
+  public List<Part> stage(HttpServletRequest req, StudioServlet servlet) throws Exception {
+    if (mediaNodes != null) {
+      updateMediaIds(servlet);
+    }
+    List<Part> staged = new ArrayList<>();
+    try {
+      for (Part part : getParts(req)) {
+        staged.add(StagedPart.of(part));
       }
+      Key key = servlet.getDatastore().allocateId(servlet.getKeyFactory(KIND).newKey());
+      id = key.getId();
+      status = SceneStatus.PROCESSING;
+      servlet.getDatastore().put(Entity.newBuilder(key, toEntityBuilder(servlet).build()).build());
+    } catch (Exception e) {
+      for (Part part : staged) {
+        part.delete();
+      }
+      throw e;
     }
-    FullEntity entity = toEntityBuilder(servlet).build();
-    Entity savedEntity = servlet.getDatastore().add(entity);
-    id = savedEntity.getKey().getId();
+    return staged;
   }
 
   /**
-   * Saves {@link #mediaNodes} to storage.
-   *  @param media to save.
-   * @param req        in which the scene is described.
-   * @param servlet    from which the client requested the save.
+   * Uploads the media items of this scene, and saves it as {@link SceneStatus#READY}. Scenes that
+   * were {@link #stage(HttpServletRequest, StudioServlet)}d keep their ID.
+   * <p>
+   * If any upload fails, or the scene itself cannot be saved, the items that this publish newly
+   * wrote are deleted. Items that already existed are shared with other scenes, and so they are
+   * kept.
+   *
+   * @param parts   of {@link #mediaNodes}, in the same order.
+   * @param servlet from which the client requested the save.
    */
-  private void saveMedia(Media media, HttpServletRequest req, StudioServlet servlet)
-      throws Exception {
-    Part part = req.getPart(generatePartName(media));
-    if (part == null) throw new IOException("Missing " + generatePartName(media) + " part");
-    String relativeUrl = getSaveDestination(media, part);
-    BlobInfo blobInfo = servlet.getStorageClient().save(relativeUrl,
-        part.getContentType(),
-        ByteStreams.toByteArray(part.getInputStream()),
-        servlet.getBucketName());
-    mediaNodes.get(mediaNodes.indexOf(media))
-        .setUrl(servlet.getStorageClient().getPublicLink(blobInfo));
+  public void publish(List<Part> parts, StudioServlet servlet) throws Exception {
+    try {
+      if (mediaNodes != null) {
+        saveMediaNodes(parts, servlet);
+      }
+      status = SceneStatus.READY;
+      FullEntity<IncompleteKey> entity = toEntityBuilder(servlet).build();
+      Entity savedEntity = id == null ? servlet.getDatastore().add(entity)
+          : servlet.getDatastore().put(Entity.newBuilder(
+              servlet.getKeyFactory(KIND).newKey(id), entity).build());
+      id = savedEntity.getKey().getId();
+      servlet.getPhotoVariants().submit(savedEntity.getKey(), photoBlobNames);
+    } catch (Exception e) {
+      List<BlobInfo> uploaded;
+      synchronized (uploadedBlobs) {
+        uploadsAbandoned = true;
+        uploaded = new ArrayList<>(uploadedBlobs);
+        uploadedBlobs.clear();
+      }
+      for (BlobInfo blobInfo : uploaded) {
+        deleteUploaded(blobInfo, servlet);
+      }
+      throw e;
+    }
   }
 
   /**
-   * @param media to get a save path for
-   * @param part       of {@link #mediaNodes}
+   * Deletes an item that was newly written by a failed save.
+   */
+  private static void deleteUploaded(BlobInfo blobInfo, StudioServlet servlet) {
+    try {
+      servlet.getStorageClient().delete(blobInfo);
+      Metrics.increment("studio.deletedUploads");
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Could not delete " + blobInfo.getName(), e);
+    }
+  }
+
+  /**
+   * Marks a staged scene whose publishing failed, so that it is never shown.
+   *
+   * @param servlet from which the client requested the save.
+   */
+  public void markFailed(StudioServlet servlet) {
+    status = SceneStatus.FAILED;
+    servlet.getDatastore().put(Entity.newBuilder(servlet.getKeyFactory(KIND).newKey(id),
+        toEntityBuilder(servlet).build()).build());
+  }
+
+  /**
+   * @param req in which the scene is described.
+   *
+   * @return the parts of {@link #mediaNodes}, in the same order.
+   */
+  private List<Part> getParts(HttpServletRequest req) throws Exception {
+    List<Part> parts = new ArrayList<>();
+    if (mediaNodes == null) return parts;
+    for (Media media : mediaNodes) {
+      Part part = req.getPart(generatePartName(media));
+      if (part == null) throw new IOException("Missing " + generatePartName(media) + " part");
+      parts.add(part);
+    }
+    return parts;
+  }
+
+  /**
+   * Uploads {@link #mediaNodes} to storage concurrently, and waits for all of them to complete,
+   * for at most {@link #UPLOAD_TIMEOUT_SECONDS}. Once an upload fails, the others are cancelled.
    *
-   * @return sub path within the storage in which to save {@code media} content.
+   * @param parts   of {@link #mediaNodes}, in the same order.
+   * @param servlet from which the client requested the save.
    */
-  private String getSaveDestination(Media media, Part part) {
-    return Media.STORAGE_SUB_PATH
-        + getDirectorId()
-        + "_"
-        + media.getId()
-        + "_"
-        + Math.round(
-        Math.random() * 1000000000)
-        + "."
-        + part.getContentType().split("/")[1];
+  private void saveMediaNodes(List<Part> parts, StudioServlet servlet) throws Exception {
+    List<Future<?>> uploads = new ArrayList<>(mediaNodes.size());
+    for (int i = 0; i < mediaNodes.size(); i++) {
+      Media media = mediaNodes.get(i);
+      Part part = parts.get(i);
+      uploads.add(servlet.getUploadExecutor().submit(() -> saveMedia(media, part, servlet)));
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(UPLOAD_TIMEOUT_SECONDS);
+    for (Future<?> upload : uploads) {
+      Exception failure = null;
+      try {
+        upload.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (ExecutionException e) {
+        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      } catch (TimeoutException e) {
+        failure = e;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = e;
+      }
+      if (failure != null) {
+        uploads.forEach(pending -> pending.cancel(true));
+        throw failure;
+      }
+    }
+  }
+
+  /**
+   * Saves {@code media} to storage under a name that is derived from its content, and updates
+   * its URL. If identical content was already saved, then it is reused rather than uploaded
+   * again.
+   * <p>
+   * Newly written items are recorded in {@link #uploadedBlobs}, unless the save had already failed,
+   * in which case they are deleted right away.
+   * <p>
+   * The part is read twice, first to hash it and then to upload it, as the existence check has to
+   * precede the upload. Multipart content is already buffered by the container, so the extra pass
+   * costs no network traffic.
+   *
+   * @param media   to save.
+   * @param part    that holds the content of {@code media}.
+   * @param servlet from which the client requested the save.
+   */
+  private Void saveMedia(Media media, Part part, StudioServlet servlet) throws Exception {
+    StorageClient storageClient = servlet.getStorageClient();
+    String relativeUrl = getSaveDestination(part);
+    if (media instanceof Photo) {
+      photoBlobNames.put(media.getId(), relativeUrl);
+    }
+    BlobInfo existing = storageClient.get(relativeUrl, servlet.getBucketName());
+    if (existing != null) {
+      Metrics.increment("studio.dedupedUploads");
+      media.setUrl(storageClient.getPublicLink(existing));
+      return null;
+    }
+    BlobInfo blobInfo;
+    // Streams the part, rather than buffering it on the heap.
+    try (InputStream inputStream = part.getInputStream()) {
+      blobInfo = storageClient.save(relativeUrl,
+          part.getContentType(),
+          inputStream,
+          servlet.getBucketName());
+    }
+    synchronized (uploadedBlobs) {
+      if (!uploadsAbandoned) {
+        uploadedBlobs.add(blobInfo);
+        media.setUrl(storageClient.getPublicLink(blobInfo));
+        return null;
+      }
+    }
+    deleteUploaded(blobInfo, servlet);
+    return null;
+  }
+
+  /**
+   * @param part of {@link #mediaNodes}
+   *
+   * @return sub path within the storage in which to save {@code part} content, named by the
+   * SHA-256 hash of the content, so that identical media items share a storage item.
+   */
+  private String getSaveDestination(Part part) throws IOException {
+    HashCode contentHash;
+    try (HashingInputStream inputStream = new HashingInputStream(Hashing.sha256(),
+        part.getInputStream())) {
+      ByteStreams.exhaust(inputStream);
+      contentHash = inputStream.hash();
+    }
+    return Media.STORAGE_SUB_PATH + contentHash + "." + part.getContentType().split("/")[1];
   }
 
   /**
@@ -311,15 +529,19 @@ public class Scene extends BaseModel {
   }
 
   /**
-   * Updates {@code media} ID with a new ID allocated by datastore.
+   * Updates {@link #mediaNodes} IDs with IDs reserved by datastore.
    *
-   * @param media   to update
-   * @param servlet to obtain datastore and key factories.
+   * @param servlet to obtain the media ID pool from.
    */
-  private void updateMediaId(Media media, BaseServlet servlet) {
-    Key newKey =
-        servlet.getDatastore().allocateId(servlet.getKeyFactory(Media.KIND).newKey());
-    clientIdToDatastoreId.put(media.getId(), newKey.getId());
-    media.setId(newKey.getId());
+  private void updateMediaIds(StudioServlet servlet) {
+    List<Long> mediaIds = servlet.getMediaIdPool().take(mediaNodes.size());
+    for (int i = 0; i < mediaNodes.size(); i++) {
+      Media media = mediaNodes.get(i);
+      clientIdToDatastoreId.put(media.getId(), mediaIds.get(i));
+      media.setId(mediaIds.get(i));
+    }
+    if (edges != null) {
+      edges.forEach(edge -> edge.updateIds(clientIdToDatastoreId));
+    }
   }
 }
@@ -0,0 +1,42 @@
+package com.truethat.backend.model;
+
+/**
+ * Proudly created by ohad on 02/10/2017.
+ * <p>
+ * Publishing state of a {@link Scene}. Scenes that were saved before statuses were introduced
+ * have none, and are considered {@link #READY}.
+ */
+// Next available - 4
+public enum SceneStatus {
+  /**
+   * Media items and datastore entity are complete, the scene can be shown to users.
+   */
+  READY(1),
+  /**
+   * The scene was accepted, and its media items are being uploaded in the background.
+   */
+  PROCESSING(2),
+  /**
+   * Background publishing failed, and the scene will never be shown.
+   */
+  FAILED(3);
+
+  private int code;
+
+  SceneStatus(int code) {
+    this.code = code;
+  }
+
+  public static SceneStatus fromCode(int code) {
+    for (SceneStatus status : values()) {
+      if (status.getCode() == code) {
+        return status;
+      }
+    }
+    throw new IllegalArgumentException("Illegal " + SceneStatus.class.getSimpleName() + " code.");
+  }
+
+  public int getCode() {
+    return code;
+  }
+}
@@ -1,14 +1,21 @@
 package com.truethat.backend.servlet;
 
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
 import com.google.cloud.datastore.StructuredQuery;
+import com.google.cloud.datastore.Transaction;
 import com.google.common.base.Strings;
-import com.truethat.backend.common.Util;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.common.WireFormat;
 import com.truethat.backend.model.User;
 import java.io.IOException;
+import java.util.Map;
 import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -24,33 +31,28 @@ import javax.servlet.http.HttpServletResponse;
 
 @WebServlet(value = "/auth", name = "Auth")
 public class AuthServlet extends BaseServlet {
+  /**
+   * How many times a sign in is retried after conflicting with a concurrent one.
+   */
+  private static final int MAX_SIGN_IN_ATTEMPTS = 3;
+  private UserLookups userLookups = new UserLookups(datastore);
+
+  @Override public void setDatastore(Datastore datastore) {
+    super.setDatastore(datastore);
+    userLookups = new UserLookups(datastore);
+  }
 
   @Override protected void doPost(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
     super.doPost(req, resp);
-    User user = Util.GSON.fromJson(req.getReader(), User.class);
+    User user = WireFormat.read(req, User.class);
     User respondedUser = null;
     // Validating input
     if (user == null) throw new IOException("Missing user");
-    FullEntity userEntity = user.toEntityBuilder(this).build();
+    FullEntity<IncompleteKey> userEntity = user.toEntityBuilder(this).build();
     // If ID is missing, then it is a sign up or a sign in.
     if (user.getId() == null) {
-      Entity similarUserEntity = similarUser(user);
-      if (similarUserEntity != null) {
-        // If a similar user was found, then don't create a new one in datastore,
-        // and use its ID for the response.
-        Entity mergedEntity = merge(similarUserEntity, user).build();
-        datastore.update(mergedEntity);
-        respondedUser = new User(mergedEntity);
-      } else {
-        // Validate input.
-        StringBuilder errorBuilder = new StringBuilder();
-        if (!isValidUser(user, errorBuilder)) {
-          throw new IOException("Invalid user: " + errorBuilder + ", input: " + user);
-        }
-        // Put a new entity in datastore.
-        respondedUser = new User(datastore.add(userEntity));
-      }
+      respondedUser = signIn(user, userEntity);
     } else {
       // Otherwise, it is a routine authentication.
       Entity existingUser = findUser(user);
@@ -61,31 +63,121 @@ public class AuthServlet extends BaseServlet {
         Entity mergedEntity = merge(existingUser, user).build();
         if (!mergedEntity.equals(existingUser)) {
           // Should update existing user.
-          datastore.update(mergedEntity);
+          Transaction transaction = datastore.newTransaction();
+          try {
+            transaction.put(mergedEntity);
+            userLookups.write(transaction, userLookups.read(transaction, mergedEntity),
+                existingUser, mergedEntity);
+            transaction.commit();
+          } finally {
+            if (transaction.isActive()) {
+              transaction.rollback();
+            }
+          }
+          DirectorCache.getInstance().invalidate(mergedEntity.getKey().getId());
         }
         respondedUser = new User(mergedEntity);
       }
     }
     if (respondedUser != null) {
-      resp.getWriter().print(Util.GSON.toJson(respondedUser));
+      resp.setHeader(SESSION_TOKEN_HEADER, SessionTokens.issue(respondedUser.getId()));
+      WireFormat.write(req, resp, respondedUser);
     }
   }
 
   /**
-   * Creates a query that looks for similar users. Similar users share the same device ID or phone number.
+   * Signs in the user that is similar to {@code user}, or signs up a new one. Either happens in a
+   * transaction that reads the {@link UserLookups} of {@code user}, so that concurrent sign ups
+   * of the same device or phone number conflict, and are retried as sign ins.
+   *
+   * @param user       that is being authenticated.
+   * @param userEntity of {@code user}.
+   *
+   * @return the signed in user.
+   */
+  private User signIn(User user, FullEntity<IncompleteKey> userEntity) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastore.newTransaction();
+      try {
+        Map<Key, Long> lookups = userLookups.read(transaction, userEntity);
+        Entity similarUserEntity = similarUser(transaction, userEntity, lookups);
+        Entity savedEntity;
+        if (similarUserEntity != null) {
+          // If a similar user was found, then don't create a new one in datastore,
+          // and use its ID for the response.
+          savedEntity = merge(similarUserEntity, user).build();
+        } else {
+          // Validate input.
+          StringBuilder errorBuilder = new StringBuilder();
+          if (!isValidUser(user, errorBuilder)) {
+            throw new IOException("Invalid user: " + errorBuilder + ", input: " + user);
+          }
+          savedEntity = Entity.newBuilder(datastore.allocateId(userEntity.getKey()), userEntity)
+              .build();
+        }
+        transaction.put(savedEntity);
+        userLookups.write(transaction, lookups, similarUserEntity, savedEntity);
+        transaction.commit();
+        if (similarUserEntity != null) {
+          DirectorCache.getInstance().invalidate(savedEntity.getKey().getId());
+        }
+        return new User(savedEntity);
+      } catch (DatastoreException e) {
+        if (attempt >= MAX_SIGN_IN_ATTEMPTS) throw e;
+        Metrics.increment("auth.signInConflicts");
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Looks for a similar user, that shares the same phone number or device ID, in that order of
+   * precedence. Users are looked up by their {@link UserLookups}, and users that predate them are
+   * queried by their properties.
+   *
+   * @param transaction in which the sign in happens.
+   * @param userEntity  that is being authenticated.
+   * @param lookups     of {@code userEntity}.
+   *
+   * @return the similar user entity, or {@code null} if no similar user was found.
+   */
+  private @Nullable Entity similarUser(Transaction transaction, FullEntity<?> userEntity,
+      Map<Key, Long> lookups) {
+    Long similarUserId = lookups.get(userLookups.phoneNumberKey(userEntity));
+    if (similarUserId == null) {
+      similarUserId = lookups.get(userLookups.deviceIdKey(userEntity));
+    }
+    if (similarUserId != null) {
+      Entity similarUserEntity = transaction.get(getKeyFactory(User.KIND).newKey(similarUserId));
+      if (similarUserEntity != null) return similarUserEntity;
+    }
+    Entity legacyUserEntity = queryLegacyUser(userEntity);
+    if (legacyUserEntity != null) {
+      Metrics.increment("auth.legacyLookups");
+      // Reads the user within the transaction, and so its lookups are added along with its update.
+      return transaction.get(legacyUserEntity.getKey());
+    }
+    return null;
+  }
+
+  /**
+   * Queries users that share the same device ID or phone number, for users that were saved before
+   * {@link UserLookups} were.
    *
-   * @param user that is being authenticated.
+   * @param userEntity that is being authenticated.
    *
-   * @return a query that looks for similar users. Null if no query filters could be derived from
-   * {@code userEntity}.
+   * @return a similar user entity, or {@code null} if no similar user was found.
    */
-  private @Nullable Entity similarUser(User user) {
+  private @Nullable Entity queryLegacyUser(FullEntity<?> userEntity) {
     Entity similarUserEntity = null;
     // Looking for users with the same device ID
-    if (!Strings.isNullOrEmpty(user.getDeviceId())) {
+    if (userLookups.deviceIdKey(userEntity) != null) {
       Query<Entity> query = Query.newEntityQueryBuilder().setKind(User.KIND)
           .setFilter(StructuredQuery.PropertyFilter.eq(User.COLUMN_DEVICE_ID,
-              user.getDeviceId()))
+              userEntity.getString(User.COLUMN_DEVICE_ID)))
           .build();
       QueryResults<Entity> existingUsers = datastore.run(query);
       if (existingUsers.hasNext()) {
@@ -93,10 +185,10 @@ public class AuthServlet extends BaseServlet {
       }
     }
     // Looking for users with the same phone number
-    if (!Strings.isNullOrEmpty(user.getPhoneNumber())) {
+    if (userLookups.phoneNumberKey(userEntity) != null) {
       Query<Entity> query = Query.newEntityQueryBuilder().setKind(User.KIND)
           .setFilter(StructuredQuery.PropertyFilter.eq(User.COLUMN_PHONE_NUMBER,
-              user.getPhoneNumber()))
+              userEntity.getString(User.COLUMN_PHONE_NUMBER)))
           .build();
       QueryResults<Entity> existingUsers = datastore.run(query);
       if (existingUsers.hasNext()) {
@@ -0,0 +1,37 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.truethat.backend.common.ManagedExecutors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Proudly created by ohad on 22/09/2017.
+ * <p>
+ * Ties the lifecycle of process-wide resources, such as {@link ManagedExecutors}, the {@link
+ * InteractionReconciler} and {@link PublishRecovery}, to the servlet container.
+ */
+@WebListener
+public class BackendContextListener implements ServletContextListener {
+  /**
+   * How long to wait for background work to complete on shutdown.
+   */
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 20;
+  private final Logger log = Logger.getLogger(getClass().getName());
+
+  @Override public void contextInitialized(ServletContextEvent servletContextEvent) {
+    SessionTokens.requireSecret();
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    InteractionReconciler.start(datastore);
+    PublishRecovery.start(datastore);
+  }
+
+  @Override public void contextDestroyed(ServletContextEvent servletContextEvent) {
+    log.info("Shutting down background executors.");
+    ManagedExecutors.shutdownAll(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+}
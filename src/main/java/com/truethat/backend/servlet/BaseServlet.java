@@ -1,12 +1,15 @@
 package com.truethat.backend.servlet;
 
+import com.google.cloud.datastore.Cursor;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.KeyFactory;
+import com.google.common.base.Strings;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -17,11 +20,67 @@ import javax.servlet.http.HttpServletResponse;
  * Proudly created by ohad on 24/08/2017.
  */
 public abstract class BaseServlet extends HttpServlet {
+  /**
+   * Header of an opaque token with which clients ask paged endpoints for the next page. Paged
+   * endpoints respond with this header when there are more results to fetch.
+   */
+  public static final String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+  /**
+   * Header of a signed session token, that {@link AuthServlet} responds to authenticated users
+   * and that clients send along following requests, see {@link SessionTokens}.
+   */
+  public static final String SESSION_TOKEN_HEADER = "X-Session-Token";
   private final Logger log = Logger.getLogger(getClass().getName());
   Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
   SceneEnricher enricher = new SceneEnricher(datastore);
+  ReactionCounters reactionCounters = new ReactionCounters(datastore);
+  UserSceneStates userSceneStates = new UserSceneStates(datastore);
   private Map<String, KeyFactory> keyFactories = new HashMap<>();
 
+  /**
+   * @param req of a paged endpoint.
+   *
+   * @return the continuation token of {@code req}, or {@code null} for the first page.
+   */
+  static @Nullable String getContinuationToken(HttpServletRequest req) {
+    return Strings.emptyToNull(req.getHeader(CONTINUATION_TOKEN_HEADER));
+  }
+
+  /**
+   * @param resp  of a paged endpoint.
+   * @param token with which the next page should be asked for, {@code null} when there are no
+   *              more pages.
+   */
+  static void setContinuationToken(HttpServletResponse resp, @Nullable String token) {
+    if (token != null) {
+      resp.setHeader(CONTINUATION_TOKEN_HEADER, token);
+    }
+  }
+
+  /**
+   * @param req of a paged endpoint.
+   *
+   * @return the cursor from which to continue a query, or {@code null} for the first page.
+   */
+  static @Nullable Cursor getContinuationCursor(HttpServletRequest req) throws IOException {
+    String token = getContinuationToken(req);
+    if (token == null) return null;
+    try {
+      return Cursor.fromUrlSafe(token);
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      throw new IOException("Invalid continuation token: " + token);
+    }
+  }
+
+  /**
+   * @param resp   of a paged endpoint.
+   * @param cursor from which the next page should be queried, {@code null} when there are no
+   *               more pages.
+   */
+  static void setContinuationCursor(HttpServletResponse resp, @Nullable Cursor cursor) {
+    setContinuationToken(resp, cursor == null ? null : cursor.toUrlSafe());
+  }
+
   public Datastore getDatastore() {
     return datastore;
   }
@@ -29,6 +88,8 @@ public abstract class BaseServlet extends HttpServlet {
   public void setDatastore(Datastore datastore) {
     this.datastore = datastore;
     enricher = new SceneEnricher(datastore);
+    reactionCounters = new ReactionCounters(datastore);
+    userSceneStates = new UserSceneStates(datastore);
     keyFactories = new HashMap<>();
   }
 
@@ -0,0 +1,525 @@
+package com.truethat.backend.servlet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.net.HttpHeaders;
+import com.truethat.backend.common.Metrics;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Proudly created by ohad on 10/10/2017.
+ * <p>
+ * Gzips the responses of the API servlets for clients that accept it. Bodies are streamed
+ * through the compressor as they are written, and only their first {@link #threshold} bytes are
+ * held back: bodies whose Content-Length is declared below the threshold, or that end before
+ * reaching it, are sent as is, since compressing them would hardly save a packet.
+ * <p>
+ * Bodies are only completed once the chain returns normally. Otherwise, and when an error is
+ * sent, the compressor is released and the held back bytes are dropped, so that the container
+ * can still respond with its own error.
+ * <p>
+ * Per endpoint, it reports the bytes before and after compression, their ratio, and the CPU time
+ * spent compressing, as {@code compression.<endpoint>.*} {@link Metrics}.
+ */
+@WebFilter(filterName = "Compression",
+    servletNames = {"Auth", "Theater", "Repertoire", "InteractionEvent", "Studio", "Metrics"})
+public class CompressionFilter implements Filter {
+  /**
+   * Default size in bytes from which bodies are compressed.
+   */
+  static final int DEFAULT_THRESHOLD = 1024;
+  private static final String GZIP = "gzip";
+  private static final int DEFLATER_BUFFER_SIZE = 8 * 1024;
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  private static final ConcurrentMap<String, EndpointStats> STATS = new ConcurrentHashMap<>();
+  private int threshold = DEFAULT_THRESHOLD;
+
+  /**
+   * @param acceptEncoding header of a request.
+   *
+   * @return whether {@code acceptEncoding} accepts gzip, either explicitly or by a wildcard.
+   */
+  @VisibleForTesting static boolean acceptsGzip(@Nullable String acceptEncoding) {
+    if (acceptEncoding == null) return false;
+    double gzipQuality = -1;
+    double wildcardQuality = -1;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parameters = coding.split(";");
+      double quality = 1;
+      for (int i = 1; i < parameters.length; i++) {
+        String parameter = parameters[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(parameter.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      String name = parameters[0].trim().toLowerCase(Locale.US);
+      if (name.equals(GZIP) || name.equals("x-gzip")) {
+        gzipQuality = Math.max(gzipQuality, quality);
+      } else if (name.equals("*")) {
+        wildcardQuality = Math.max(wildcardQuality, quality);
+      }
+    }
+    return gzipQuality >= 0 ? gzipQuality > 0 : wildcardQuality > 0;
+  }
+
+  /**
+   * @return CPU time of the current thread, or wall time if CPU time is not measurable.
+   */
+  private static long cpuTimeNanos() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime()
+        : System.nanoTime();
+  }
+
+  /**
+   * @param endpoint such as {@code theater}.
+   *
+   * @return the statistics of {@code endpoint}, which are registered on first use.
+   */
+  private static EndpointStats stats(String endpoint) {
+    return STATS.computeIfAbsent(endpoint, EndpointStats::new);
+  }
+
+  @Override public void init(FilterConfig filterConfig) throws ServletException {
+    String threshold = System.getenv("COMPRESSION_THRESHOLD_BYTES");
+    if (!Strings.isNullOrEmpty(threshold)) {
+      setThreshold(Integer.parseInt(threshold));
+    }
+  }
+
+  @VisibleForTesting void setThreshold(int threshold) {
+    if (threshold < 0) throw new IllegalArgumentException("Negative threshold " + threshold);
+    this.threshold = threshold;
+  }
+
+  @Override public void doFilter(ServletRequest request, ServletResponse response,
+      FilterChain chain) throws IOException, ServletException {
+    if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    HttpServletRequest req = (HttpServletRequest) request;
+    HttpServletResponse resp = (HttpServletResponse) response;
+    // Caches must not serve a compressed response to a client that does not accept it.
+    resp.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    if (!acceptsGzip(req.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+      chain.doFilter(request, response);
+      return;
+    }
+    String endpoint = Strings.nullToEmpty(req.getServletPath()).replace("/", "");
+    CompressingResponse compressingResponse = new CompressingResponse(resp, threshold);
+    boolean completed = false;
+    try {
+      chain.doFilter(request, compressingResponse);
+      completed = true;
+    } finally {
+      if (completed) {
+        compressingResponse.finish(stats(endpoint.isEmpty() ? "root" : endpoint));
+      } else {
+        compressingResponse.abort();
+      }
+    }
+  }
+
+  @Override public void destroy() {
+  }
+
+  /**
+   * Compression statistics of an endpoint, reported as gauges so that their ratio is derived
+   * from consistent totals.
+   */
+  private static class EndpointStats {
+    private final String name;
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+
+    private EndpointStats(String endpoint) {
+      name = "compression." + endpoint;
+      Metrics.registerGauge(name + ".uncompressedBytes", uncompressedBytes::sum);
+      Metrics.registerGauge(name + ".compressedBytes", compressedBytes::sum);
+      Metrics.registerGauge(name + ".ratio", () -> {
+        long uncompressed = uncompressedBytes.sum();
+        return uncompressed == 0 ? 0 : (double) compressedBytes.sum() / uncompressed;
+      });
+    }
+
+    private void record(long uncompressed, long compressed, long cpuNanos) {
+      uncompressedBytes.add(uncompressed);
+      compressedBytes.add(compressed);
+      Metrics.recordLatency(name + ".cpu", cpuNanos);
+    }
+  }
+
+  /**
+   * A gzip stream whose compressor can be released without completing the body.
+   */
+  private static class GzipStream extends GZIPOutputStream {
+    private GzipStream(OutputStream out) throws IOException {
+      super(out, DEFLATER_BUFFER_SIZE);
+    }
+
+    /**
+     * Releases the native memory of the compressor, after which the stream is unusable.
+     */
+    private void release() {
+      def.end();
+    }
+  }
+
+  /**
+   * Decides whether to compress once the body length is either declared or had reached the
+   * threshold, until then the body is held back.
+   */
+  @VisibleForTesting static class CompressingResponse extends HttpServletResponseWrapper {
+    private final HttpServletResponse resp;
+    private final int threshold;
+    private final CompressingStream stream = new CompressingStream();
+    private @Nullable PrintWriter writer;
+    /**
+     * Whether the body was abandoned, such as once an error was sent, after which it is neither
+     * written nor completed.
+     */
+    private boolean aborted;
+
+    CompressingResponse(HttpServletResponse resp, int threshold) {
+      super(resp);
+      this.resp = resp;
+      this.threshold = threshold;
+    }
+
+    private static boolean isContentLength(String name) {
+      return HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name);
+    }
+
+    @Override public ServletOutputStream getOutputStream() {
+      return stream;
+    }
+
+    @Override public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    @Override public void setContentLength(int length) {
+      setContentLengthLong(length);
+    }
+
+    @Override public void setContentLengthLong(long length) {
+      stream.declareLength(length);
+    }
+
+    @Override public void setHeader(String name, String value) {
+      if (isContentLength(name)) {
+        setContentLengthLong(Long.parseLong(value));
+      } else {
+        super.setHeader(name, value);
+      }
+    }
+
+    @Override public void addHeader(String name, String value) {
+      if (isContentLength(name)) {
+        setContentLengthLong(Long.parseLong(value));
+      } else {
+        super.addHeader(name, value);
+      }
+    }
+
+    @Override public void setIntHeader(String name, int value) {
+      if (isContentLength(name)) {
+        setContentLengthLong(value);
+      } else {
+        super.setIntHeader(name, value);
+      }
+    }
+
+    @Override public void addIntHeader(String name, int value) {
+      if (isContentLength(name)) {
+        setContentLengthLong(value);
+      } else {
+        super.addIntHeader(name, value);
+      }
+    }
+
+    @Override public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      stream.flush();
+    }
+
+    @Override public void reset() {
+      super.reset();
+      // Headers are cleared as well, and so compression is decided afresh.
+      stream.discard();
+      stream.encoding = false;
+    }
+
+    @Override public void resetBuffer() {
+      super.resetBuffer();
+      // Content-Encoding is kept, if it was set, and so what follows is compressed.
+      stream.discard();
+    }
+
+    @Override public void sendError(int status) throws IOException {
+      abortForError();
+      super.sendError(status);
+    }
+
+    @Override public void sendError(int status, String message) throws IOException {
+      abortForError();
+      super.sendError(status, message);
+    }
+
+    /**
+     * Drops the body before an error is sent. Containers keep the headers of errors, and so those
+     * of compression are reset as well.
+     */
+    private void abortForError() {
+      abort();
+      if (stream.encoding && !isCommitted()) {
+        super.reset();
+        stream.encoding = false;
+      }
+    }
+
+    /**
+     * Drops the body, and releases the compressor, without completing the response.
+     */
+    void abort() {
+      aborted = true;
+      stream.discard();
+    }
+
+    /**
+     * Completes the body, and records its statistics if it was compressed.
+     */
+    void finish(EndpointStats stats) throws IOException {
+      if (aborted) return;
+      if (writer != null) {
+        writer.flush();
+      }
+      stream.finish();
+      if (stream.compressed) {
+        stats.record(stream.uncompressedBytes, stream.compressedBytes, stream.cpuNanos);
+      }
+    }
+
+    private class CompressingStream extends ServletOutputStream {
+      /**
+       * Held back bytes, until it is decided whether to compress.
+       */
+      private @Nullable byte[] heldBack;
+      private int heldBackCount;
+      private boolean decided;
+      /**
+       * Whether Content-Encoding was set by this stream, after which the body has to be compressed.
+       */
+      private boolean encoding;
+      /**
+       * Whether a compressed body was completed.
+       */
+      private boolean compressed;
+      private boolean finished;
+      private @Nullable GzipStream gzip;
+      private long uncompressedBytes;
+      private long compressedBytes;
+      private long cpuNanos;
+
+      /**
+       * Drops the held back bytes and the compressor, whose output was either dropped along with
+       * the response buffer or is abandoned.
+       */
+      private void discard() {
+        if (gzip != null) {
+          gzip.release();
+          gzip = null;
+        }
+        heldBack = null;
+        heldBackCount = 0;
+        decided = false;
+        finished = false;
+        uncompressedBytes = 0;
+        compressedBytes = 0;
+      }
+
+      /**
+       * Decides by a declared length, provided that compression had not started yet. Bodies below
+       * the threshold are sent as is, along with their length.
+       */
+      private void declareLength(long length) {
+        if (gzip != null || encoding) return;
+        if (decided || length < threshold) {
+          decided = true;
+          resp.setContentLengthLong(length);
+        }
+      }
+
+      /**
+       * Starts compressing, and writes the held back bytes into the compressor.
+       */
+      private void startCompression() throws IOException {
+        decided = true;
+        if (!encoding) {
+          if (resp.containsHeader(HttpHeaders.CONTENT_ENCODING)) {
+            // Already encoded by the servlet.
+            writeHeldBack();
+            return;
+          }
+          resp.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+          encoding = true;
+        }
+        OutputStream counting = new OutputStream() {
+          @Override public void write(int b) throws IOException {
+            resp.getOutputStream().write(b);
+            compressedBytes++;
+          }
+
+          @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+            resp.getOutputStream().write(bytes, offset, length);
+            compressedBytes += length;
+          }
+        };
+        long start = cpuTimeNanos();
+        gzip = new GzipStream(counting);
+        cpuNanos += cpuTimeNanos() - start;
+        if (heldBackCount > 0) {
+          //noinspection ConstantConditions
+          compress(heldBack, 0, heldBackCount);
+        }
+        heldBack = null;
+        heldBackCount = 0;
+      }
+
+      private void writeHeldBack() throws IOException {
+        if (heldBackCount > 0) {
+          //noinspection ConstantConditions
+          resp.getOutputStream().write(heldBack, 0, heldBackCount);
+        }
+        heldBack = null;
+        heldBackCount = 0;
+      }
+
+      private void compress(byte[] bytes, int offset, int length) throws IOException {
+        long start = cpuTimeNanos();
+        //noinspection ConstantConditions
+        gzip.write(bytes, offset, length);
+        cpuNanos += cpuTimeNanos() - start;
+        uncompressedBytes += length;
+      }
+
+      @Override public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (aborted) return;
+        if (finished) throw new IOException("The response body was already completed.");
+        if (!decided) {
+          if (!encoding && heldBackCount + length < threshold) {
+            if (heldBack == null) {
+              heldBack = new byte[threshold];
+            }
+            System.arraycopy(bytes, offset, heldBack, heldBackCount, length);
+            heldBackCount += length;
+            return;
+          }
+          startCompression();
+        }
+        if (gzip != null) {
+          compress(bytes, offset, length);
+        } else {
+          writeHeldBack();
+          resp.getOutputStream().write(bytes, offset, length);
+        }
+      }
+
+      @Override public void flush() throws IOException {
+        // Held back bytes stay held back, as they are flushed once the response completes.
+        if (gzip != null) {
+          gzip.flush();
+        } else if (decided) {
+          writeHeldBack();
+          resp.getOutputStream().flush();
+        }
+      }
+
+      /**
+       * Writes what is left, uncompressed with its length if the body is below the threshold, and
+       * releases the compressor.
+       */
+      private void finish() throws IOException {
+        if (finished || aborted) return;
+        finished = true;
+        if (gzip == null && encoding) {
+          // The buffer was reset after compression had started.
+          startCompression();
+        }
+        if (gzip == null) {
+          if (!decided && heldBackCount > 0) {
+            resp.setContentLength(heldBackCount);
+          }
+          decided = true;
+          writeHeldBack();
+          return;
+        }
+        long start = cpuTimeNanos();
+        try {
+          gzip.finish();
+          compressed = true;
+        } finally {
+          cpuNanos += cpuTimeNanos() - start;
+          gzip.release();
+          gzip = null;
+        }
+      }
+
+      @Override public void close() throws IOException {
+        finish();
+      }
+
+      @Override public boolean isReady() {
+        try {
+          return resp.getOutputStream().isReady();
+        } catch (IOException e) {
+          return false;
+        }
+      }
+
+      @Override public void setWriteListener(WriteListener writeListener) {
+        try {
+          resp.getOutputStream().setWriteListener(writeListener);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package com.truethat.backend.servlet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.User;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proudly created by ohad on 25/09/2017.
+ * <p>
+ * Process-wide cache of {@link Scene} directors, as they are enriched into scenes. Popular
+ * directors appear in almost every theater response, and their profiles rarely change.
+ * <p>
+ * Cached profiles are stripped of private data (see {@link User#deletePrivateData()}), and are
+ * invalidated by {@link AuthServlet} when it updates a user.
+ */
+class DirectorCache {
+  /**
+   * Maximum number of cached directors.
+   */
+  private static final long MAXIMUM_SIZE = 10000;
+  /**
+   * How long a profile is cached, which bounds the staleness of changes made by other instances.
+   */
+  private static final long TTL_MINUTES = 10;
+  private static final DirectorCache INSTANCE = new DirectorCache();
+  private final Cache<Long, User> cache = CacheBuilder.newBuilder()
+      .maximumSize(MAXIMUM_SIZE)
+      .expireAfterWrite(TTL_MINUTES, TimeUnit.MINUTES)
+      .recordStats()
+      .build();
+
+  private DirectorCache() {
+    Metrics.registerGauge("directorCache.hits", () -> cache.stats().hitCount());
+    Metrics.registerGauge("directorCache.misses", () -> cache.stats().missCount());
+    Metrics.registerGauge("directorCache.hitRate", () -> cache.stats().hitRate());
+    Metrics.registerGauge("directorCache.evictions", () -> cache.stats().evictionCount());
+    Metrics.registerGauge("directorCache.size", cache::size);
+  }
+
+  static DirectorCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param directorIds to look for.
+   *
+   * @return the cached directors among {@code directorIds}, by their IDs.
+   */
+  Map<Long, User> getAllPresent(Iterable<Long> directorIds) {
+    return cache.getAllPresent(directorIds);
+  }
+
+  /**
+   * @param director whose private data was deleted.
+   */
+  void put(User director) {
+    cache.put(director.getId(), director);
+  }
+
+  /**
+   * @param userId whose profile was updated.
+   */
+  void invalidate(Long userId) {
+    cache.invalidate(userId);
+  }
+
+  @VisibleForTesting void invalidateAll() {
+    cache.invalidateAll();
+  }
+}
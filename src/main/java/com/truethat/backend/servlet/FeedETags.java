@@ -0,0 +1,175 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.Timestamp;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.net.HttpHeaders;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.common.WireFormat;
+import com.truethat.backend.model.Edge;
+import com.truethat.backend.model.Emotion;
+import com.truethat.backend.model.Media;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.User;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Proudly created by ohad on 11/10/2017.
+ * <p>
+ * Entity tags of feed pages, such as those of {@link TheaterServlet} and {@link
+ * RepertoireServlet}, so that clients that poll them are answered with {@link
+ * HttpServletResponse#SC_NOT_MODIFIED} rather than with the same scenes over and over.
+ * <p>
+ * A tag is a hash of the fields of the enriched scenes that are responded, which is far cheaper
+ * than their serialization, and so fields that are added to responses should be hashed as well.
+ * Tags are weak, as the same page is semantically the same regardless of its content coding.
+ */
+class FeedETags {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+  private static final String WEAK_PREFIX = "W/";
+
+  private static void putString(Hasher hasher, @Nullable String string) {
+    if (string == null) {
+      hasher.putInt(-1);
+    } else {
+      hasher.putInt(string.length()).putUnencodedChars(string);
+    }
+  }
+
+  private static void putLong(Hasher hasher, @Nullable Long value) {
+    hasher.putBoolean(value != null).putLong(value == null ? 0 : value);
+  }
+
+  private static void putEmotion(Hasher hasher, @Nullable Emotion emotion) {
+    hasher.putInt(emotion == null ? -1 : emotion.getCode());
+  }
+
+  private static void putTimestamp(Hasher hasher, @Nullable Timestamp timestamp) {
+    if (timestamp == null) {
+      hasher.putBoolean(false);
+    } else {
+      hasher.putBoolean(true).putLong(timestamp.getSeconds()).putInt(timestamp.getNanos());
+    }
+  }
+
+  private static void putScene(Hasher hasher, Scene scene) {
+    putLong(hasher, scene.getId());
+    putTimestamp(hasher, scene.getCreated());
+    hasher.putInt(scene.getStatus() == null ? -1 : scene.getStatus().getCode());
+    List<Media> mediaNodes = scene.getMediaNodes();
+    hasher.putInt(mediaNodes == null ? -1 : mediaNodes.size());
+    if (mediaNodes != null) {
+      for (Media media : mediaNodes) {
+        putString(hasher, media.getClass().getSimpleName());
+        putLong(hasher, media.getId());
+        putString(hasher, media.getUrl());
+        Map<Integer, String> variants = media.getVariants();
+        hasher.putInt(variants == null ? -1 : variants.size());
+        if (variants != null) {
+          for (Map.Entry<Integer, String> variant : variants.entrySet()) {
+            hasher.putInt(variant.getKey());
+            putString(hasher, variant.getValue());
+          }
+        }
+      }
+    }
+    List<Edge> edges = scene.getEdges();
+    hasher.putInt(edges == null ? -1 : edges.size());
+    if (edges != null) {
+      for (Edge edge : edges) {
+        putLong(hasher, edge.getSourceId());
+        putLong(hasher, edge.getTargetId());
+        putEmotion(hasher, edge.getReaction());
+      }
+    }
+    User director = scene.getDirector();
+    hasher.putBoolean(director != null);
+    if (director != null) {
+      putLong(hasher, director.getId());
+      putString(hasher, director.getFirstName());
+      putString(hasher, director.getLastName());
+      putTimestamp(hasher, director.getJoined());
+    }
+    // Enrichment of the requesting user.
+    hasher.putBoolean(scene.isViewed());
+    putEmotion(hasher, scene.getUserReaction());
+    Map<Emotion, Long> counters = scene.getReactionCounters();
+    hasher.putBoolean(counters != null);
+    if (counters != null) {
+      for (Emotion emotion : Emotion.values()) {
+        putLong(hasher, counters.get(emotion));
+      }
+    }
+  }
+
+  /**
+   * @param scenes     of a page, as they are responded.
+   * @param nextToken of the page, see {@link BaseServlet#setContinuationToken(HttpServletResponse,
+   *                  String)}.
+   * @param format    in which the page is responded.
+   *
+   * @return the entity tag of the page.
+   */
+  static String of(List<Scene> scenes, @Nullable String nextToken, WireFormat format) {
+    Hasher hasher = HASH_FUNCTION.newHasher();
+    hasher.putInt(format.ordinal());
+    putString(hasher, nextToken);
+    hasher.putInt(scenes.size());
+    for (Scene scene : scenes) {
+      putScene(hasher, scene);
+    }
+    return WEAK_PREFIX + "\""
+        + BaseEncoding.base64Url().omitPadding().encode(hasher.hash().asBytes()) + "\"";
+  }
+
+  /**
+   * @param ifNoneMatch header of a request.
+   * @param eTag        of the current response.
+   *
+   * @return whether {@code eTag} is listed in {@code ifNoneMatch}, by weak comparison.
+   */
+  static boolean matches(@Nullable String ifNoneMatch, String eTag) {
+    if (ifNoneMatch == null) return false;
+    String opaqueTag = eTag.startsWith(WEAK_PREFIX) ? eTag.substring(WEAK_PREFIX.length()) : eTag;
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*")) return true;
+      if (candidate.startsWith(WEAK_PREFIX)) {
+        candidate = candidate.substring(WEAK_PREFIX.length());
+      }
+      if (candidate.equals(opaqueTag)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Tags the response of a feed page, and responds {@link HttpServletResponse#SC_NOT_MODIFIED}
+   * if the client already has it. Feeds are fetched with POST requests, which do not modify
+   * anything, and so they are treated like GET requests in that respect.
+   *
+   * @param req       of the page.
+   * @param resp      to tag.
+   * @param scenes    of the page, as they are responded.
+   * @param nextToken of the page.
+   *
+   * @return whether the client already has the page, in which case nothing should be written into
+   * {@code resp}.
+   */
+  static boolean notModified(HttpServletRequest req, HttpServletResponse resp,
+      List<Scene> scenes, @Nullable String nextToken) {
+    String eTag = of(scenes, nextToken, WireFormat.ofResponse(req));
+    resp.setHeader(HttpHeaders.ETAG, eTag);
+    if (!matches(req.getHeader(HttpHeaders.IF_NONE_MATCH), eTag)) return false;
+    Metrics.increment("feedETags.notModified");
+    // The response would have varied by these.
+    resp.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    return true;
+  }
+}
@@ -0,0 +1,223 @@
+package com.truethat.backend.servlet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.truethat.backend.common.ManagedExecutors;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.model.InteractionEvent;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Proudly created by ohad on 27/09/2017.
+ * <p>
+ * Bounded in-memory queue of validated {@link InteractionEvent}s, that are written in batches by
+ * a single flusher thread. A batch is flushed once it reaches {@link #MAX_BATCH_SIZE} events, or
+ * {@link #FLUSH_INTERVAL_MILLIS} after its first event was queued, whichever comes first. Queued
+ * events are drained when the servlet container shuts down.
+ * <p>
+ * Queued events were already accepted, and so failed batches are retried with exponential
+ * backoff, and then put back in the queue, unless the buffer is draining, in which case they are
+ * logged. Retries write the same
+ * events again, and so writers should be idempotent.
+ */
+class InteractionEventBuffer {
+  /**
+   * Maximum number of queued events, beyond which new events are rejected.
+   */
+  static final int DEFAULT_CAPACITY = 10000;
+  /**
+   * Datastore limits the number of entities in a single commit.
+   */
+  static final int MAX_BATCH_SIZE = 500;
+  /**
+   * Maximum time an event waits in the queue before it is flushed.
+   */
+  static final long FLUSH_INTERVAL_MILLIS = 1000;
+  /**
+   * How many times to write a batch before it is put back in the queue.
+   */
+  static final int MAX_FLUSH_ATTEMPTS = 4;
+  /**
+   * Backoff before the first retry of a batch, doubled on each following retry.
+   */
+  static final long INITIAL_BACKOFF_MILLIS = 100;
+  /**
+   * Metric names.
+   */
+  static final String METRIC_DEPTH = "interactionBuffer.depth";
+  static final String METRIC_REJECTED = "interactionBuffer.rejected";
+  static final String METRIC_FLUSHES = "interactionBuffer.flushes";
+  static final String METRIC_FLUSHED_EVENTS = "interactionBuffer.flushedEvents";
+  static final String METRIC_FAILED_EVENTS = "interactionBuffer.failedEvents";
+  static final String METRIC_RETRIES = "interactionBuffer.retries";
+  static final String METRIC_REQUEUED_EVENTS = "interactionBuffer.requeuedEvents";
+  static final String METRIC_FLUSH_LATENCY = "interactionBuffer.flushLatency";
+  private final Logger log = Logger.getLogger(getClass().getName());
+  private final BlockingQueue<InteractionEvent> queue;
+  private final Consumer<List<InteractionEvent>> writer;
+  private final CountDownLatch terminated = new CountDownLatch(1);
+  private volatile boolean closed;
+
+  /**
+   * @param writer   writes a batch of events, invoked by the flusher thread only.
+   * @param capacity maximum number of queued events.
+   */
+  InteractionEventBuffer(Consumer<List<InteractionEvent>> writer, int capacity) {
+    this.writer = writer;
+    queue = new ArrayBlockingQueue<>(capacity);
+    Metrics.registerGauge(METRIC_DEPTH, queue::size);
+    ExecutorService flusher = ManagedExecutors.newBoundedPool("interaction-flusher", 1, 1,
+        new ThreadPoolExecutor.AbortPolicy());
+    ManagedExecutors.registerShutdownHook(this::close);
+    flusher.execute(this::run);
+  }
+
+  /**
+   * Queues an event for writing.
+   *
+   * @return whether the event was queued, {@code false} when the buffer is full or closed.
+   */
+  boolean offer(InteractionEvent interactionEvent) {
+    if (!closed && queue.offer(interactionEvent)) {
+      // The buffer may have been closed, and drained, in between. The event is rejected, unless
+      // the flusher had already taken it.
+      if (!closed || !removeQueued(interactionEvent)) return true;
+    }
+    Metrics.increment(METRIC_REJECTED);
+    return false;
+  }
+
+  /**
+   * Removes {@code interactionEvent} itself from the queue. Unlike {@link
+   * BlockingQueue#remove(Object)}, an equal event that another thread queued is left in place.
+   *
+   * @return whether the event was still queued.
+   */
+  private boolean removeQueued(InteractionEvent interactionEvent) {
+    for (Iterator<InteractionEvent> queued = queue.iterator(); queued.hasNext(); ) {
+      if (queued.next() == interactionEvent) {
+        queued.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stops accepting events, and waits for the queued ones to be flushed.
+   */
+  void close() {
+    closed = true;
+    try {
+      if (!terminated.await(FLUSH_INTERVAL_MILLIS * 10, TimeUnit.MILLISECONDS)) {
+        log.warning("Interaction buffer did not drain in time, " + queue.size()
+            + " events are left.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @VisibleForTesting int size() {
+    return queue.size();
+  }
+
+  private void run() {
+    List<InteractionEvent> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while (!closed || !queue.isEmpty()) {
+      try {
+        InteractionEvent first = closed ? queue.poll()
+            : queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) continue;
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS);
+        while (batch.size() < MAX_BATCH_SIZE) {
+          long remaining = deadline - System.nanoTime();
+          InteractionEvent next = closed || remaining <= 0 ? queue.poll()
+              : queue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next == null) break;
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // Drains whatever is left without waiting.
+        closed = true;
+      }
+      if (!batch.isEmpty()) {
+        flush(batch);
+        batch.clear();
+      }
+    }
+    terminated.countDown();
+  }
+
+  /**
+   * Writes {@code batch}, retrying with exponential backoff. A batch that still fails is put back
+   * in the queue, or dropped if the buffer is draining or full.
+   */
+  private void flush(List<InteractionEvent> batch) {
+    long start = System.nanoTime();
+    try {
+      long backoffMillis = INITIAL_BACKOFF_MILLIS;
+      for (int attempt = 1; ; attempt++) {
+        try {
+          writer.accept(batch);
+          Metrics.add(METRIC_FLUSHED_EVENTS, batch.size());
+          return;
+        } catch (RuntimeException e) {
+          if (attempt >= MAX_FLUSH_ATTEMPTS) {
+            requeue(batch, e);
+            return;
+          }
+          log.log(Level.WARNING, "Retrying " + batch.size() + " interaction events.", e);
+          Metrics.increment(METRIC_RETRIES);
+        }
+        try {
+          Thread.sleep(backoffMillis);
+        } catch (InterruptedException e) {
+          // Drains whatever is left without waiting.
+          closed = true;
+        }
+        backoffMillis *= 2;
+      }
+    } finally {
+      Metrics.increment(METRIC_FLUSHES);
+      Metrics.recordLatency(METRIC_FLUSH_LATENCY, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Puts a batch that could not be written back in the queue, so that it is retried along with
+   * following events.
+   *
+   * @param cause of the last failure to write {@code batch}.
+   */
+  private void requeue(List<InteractionEvent> batch, RuntimeException cause) {
+    int requeued = 0;
+    if (!closed) {
+      for (InteractionEvent interactionEvent : batch) {
+        if (!queue.offer(interactionEvent)) break;
+        requeued++;
+      }
+    }
+    Metrics.add(METRIC_REQUEUED_EVENTS, requeued);
+    if (requeued == batch.size()) {
+      log.log(Level.WARNING, "Failed to flush " + batch.size()
+          + " interaction events, they are queued again.", cause);
+      return;
+    }
+    int failed = batch.size() - requeued;
+    log.log(Level.SEVERE, "Failed to flush " + batch.size() + " interaction events, " + failed
+        + " of them are dropped: " + batch.subList(requeued, batch.size()), cause);
+    Metrics.add(METRIC_FAILED_EVENTS, failed);
+  }
+}
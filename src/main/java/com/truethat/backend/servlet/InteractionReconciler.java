@@ -0,0 +1,190 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.common.annotations.VisibleForTesting;
+import com.truethat.backend.common.ManagedExecutors;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.model.Emotion;
+import com.truethat.backend.model.EventType;
+import com.truethat.backend.model.InteractionEvent;
+import com.truethat.backend.model.Scene;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Proudly created by ohad on 12/10/2017.
+ * <p>
+ * Backfills the {@link ReactionCounters} and {@link UserSceneStates} of the scenes within the
+ * story window from their {@link InteractionEvent}s, for scenes that were interacted with before
+ * counters and states existed. Since then, both are maintained on the write path.
+ * <p>
+ * The backfill reads every event of the story, and so it runs once per datastore: a lease lets a
+ * single instance run it at a time, and once it completes it is recorded on the lease, after which
+ * instances only check that record. Attempts that fail are retried every {@link
+ * #INTERVAL_MILLIS}, by whichever instance takes the lease next.
+ */
+class InteractionReconciler {
+  /**
+   * How often to retry a backfill that did not complete, and for how long a lease is held.
+   */
+  static final long INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+  /**
+   * Datastore kind of the lease.
+   */
+  static final String LEASE_KIND = "ReconcilerLease";
+  /**
+   * Metric names.
+   */
+  static final String METRIC_SCENES = "reconciler.scenes";
+  static final String METRIC_RESET_COUNTERS = "reconciler.resetCounters";
+  static final String METRIC_BACKFILLED_STATES = "reconciler.backfilledStates";
+  private static final String LEASE_NAME = "interactions";
+  private static final String COLUMN_EXPIRES = "expires";
+  private static final String COLUMN_COMPLETED = "completed";
+  private final Logger log = Logger.getLogger(getClass().getName());
+  private final Datastore datastore;
+  private final ReactionCounters reactionCounters;
+  private final UserSceneStates userSceneStates;
+
+  InteractionReconciler(Datastore datastore) {
+    this.datastore = datastore;
+    reactionCounters = new ReactionCounters(datastore);
+    userSceneStates = new UserSceneStates(datastore);
+  }
+
+  /**
+   * Schedules the backfill of {@code datastore}, starting right away.
+   */
+  static void start(Datastore datastore) {
+    InteractionReconciler reconciler = new InteractionReconciler(datastore);
+    ManagedExecutors.newScheduler("interaction-reconciler")
+        .scheduleWithFixedDelay(reconciler::reconcileIfLeased, 0, INTERVAL_MILLIS,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Backfills the story, unless it was already backfilled, or another instance is doing so.
+   * Failures are logged, so that the backfill is retried.
+   */
+  private void reconcileIfLeased() {
+    try {
+      if (!acquireLease()) return;
+      long start = System.nanoTime();
+      int scenes = reconcileStory();
+      markCompleted();
+      log.info("Backfilled " + scenes + " scenes in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms.");
+    } catch (RuntimeException e) {
+      log.log(Level.SEVERE, "Failed to reconcile interactions.", e);
+    }
+  }
+
+  /**
+   * @return whether the lease of the current interval was acquired, i.e. the backfill has not
+   * completed yet, and no other instance holds it.
+   */
+  @VisibleForTesting boolean acquireLease() {
+    Key leaseKey = datastore.newKeyFactory().setKind(LEASE_KIND).newKey(LEASE_NAME);
+    long now = System.currentTimeMillis();
+    Transaction transaction = datastore.newTransaction();
+    try {
+      Entity lease = transaction.get(leaseKey);
+      if (lease != null && (lease.contains(COLUMN_COMPLETED) && lease.getBoolean(COLUMN_COMPLETED)
+          || lease.getLong(COLUMN_EXPIRES) > now)) {
+        return false;
+      }
+      transaction.put(
+          Entity.newBuilder(leaseKey).set(COLUMN_EXPIRES, now + INTERVAL_MILLIS).build());
+      transaction.commit();
+      return true;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /**
+   * Records that the backfill completed, so that it never runs again.
+   */
+  @VisibleForTesting void markCompleted() {
+    Key leaseKey = datastore.newKeyFactory().setKind(LEASE_KIND).newKey(LEASE_NAME);
+    datastore.put(Entity.newBuilder(leaseKey)
+        .set(COLUMN_EXPIRES, System.currentTimeMillis())
+        .set(COLUMN_COMPLETED, true)
+        .build());
+  }
+
+  /**
+   * Reconciles every scene within the story window.
+   *
+   * @return the number of reconciled scenes.
+   */
+  @VisibleForTesting int reconcileStory() {
+    Timestamp windowStart = RecentScenesIndex.storyWindowStart();
+    QueryResults<Entity> scenes = datastore.run(Query.newEntityQueryBuilder()
+        .setKind(Scene.KIND)
+        .setFilter(PropertyFilter.gt(Scene.COLUMN_CREATED, windowStart))
+        .build());
+    int count = 0;
+    while (scenes.hasNext()) {
+      reconcile(new Scene(scenes.next()));
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Merges the events of {@code scene} into the states of their users, and recounts the unique
+   * users that reacted to it with each reaction, other than its director, and resets its counters
+   * to these counts, unless they were incremented meanwhile.
+   */
+  @VisibleForTesting void reconcile(Scene scene) {
+    // Read before the events, so that resets can tell whether counters moved during the scan.
+    Map<Emotion, Long> countedBefore =
+        reactionCounters.get(Collections.singletonList(scene.getId())).get(scene.getId());
+    QueryResults<Entity> events = datastore.run(Query.newEntityQueryBuilder()
+        .setKind(InteractionEvent.KIND)
+        .setFilter(PropertyFilter.eq(InteractionEvent.COLUMN_SCENE_ID, scene.getId()))
+        .build());
+    List<InteractionEvent> interactionEvents = new ArrayList<>();
+    Map<Emotion, Set<Long>> reactorsByReaction = new EnumMap<>(Emotion.class);
+    while (events.hasNext()) {
+      InteractionEvent interactionEvent = new InteractionEvent(events.next());
+      if (interactionEvent.getUserId() == null) continue;
+      interactionEvents.add(interactionEvent);
+      if (interactionEvent.getEventType() == EventType.REACTION
+          && interactionEvent.getReaction() != null
+          && !Objects.equals(interactionEvent.getUserId(), scene.getDirectorId())) {
+        reactorsByReaction.computeIfAbsent(interactionEvent.getReaction(),
+            reaction -> new HashSet<>()).add(interactionEvent.getUserId());
+      }
+    }
+    Map<Emotion, Long> counts = new EnumMap<>(Emotion.class);
+    reactorsByReaction.forEach((reaction, reactors) -> counts.put(reaction,
+        (long) reactors.size()));
+    interactionEvents.sort(Comparator.comparing(InteractionEvent::getTimestamp,
+        Comparator.nullsFirst(Comparator.naturalOrder())));
+    Metrics.add(METRIC_BACKFILLED_STATES, userSceneStates.backfill(interactionEvents));
+    Metrics.increment(METRIC_SCENES);
+    Metrics.add(METRIC_RESET_COUNTERS,
+        reactionCounters.reset(scene.getId(), counts, countedBefore));
+  }
+}
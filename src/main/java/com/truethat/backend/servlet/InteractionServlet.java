@@ -1,21 +1,43 @@
 package com.truethat.backend.servlet;
 
 import com.google.cloud.datastore.Entity;
-import com.google.cloud.datastore.EntityValue;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.IncompleteKey;
 import com.google.cloud.datastore.Key;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.truethat.backend.common.Util;
+import com.truethat.backend.common.WireFormat;
+import com.truethat.backend.model.Emotion;
 import com.truethat.backend.model.EventType;
 import com.truethat.backend.model.InteractionEvent;
 import com.truethat.backend.model.Scene;
 import com.truethat.backend.model.User;
+import com.truethat.backend.servlet.InteractionValidationCache.SceneSummary;
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 /**
  * Proudly created by ohad on 03/07/2017.
@@ -26,31 +48,270 @@ import static java.util.stream.Collectors.toList;
 @WebServlet(value = "/interaction", name = "InteractionEvent")
 public class InteractionServlet extends BaseServlet {
   /**
-   * Saves events to Datastore, and response the saved {@link InteractionEvent}.
+   * Hints clients when to retry events that were rejected by a full buffer.
+   */
+  private static final int RETRY_AFTER_SECONDS = 5;
+  /**
+   * Maximum number of events in a batch request, as Datastore limits the number of entities in a
+   * single commit.
+   */
+  static final int MAX_BATCH_SIZE = InteractionEventBuffer.MAX_BATCH_SIZE;
+  /**
+   * Buffers events for batch writing, {@code null} when events are saved synchronously.
+   */
+  private @Nullable InteractionEventBuffer buffer;
+
+  @Override public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    if (Boolean.parseBoolean(System.getenv("BUFFERED_INTERACTIONS"))) {
+      buffer = new InteractionEventBuffer(this::saveBufferedEvents,
+          InteractionEventBuffer.DEFAULT_CAPACITY);
+    }
+  }
+
+  /**
+   * Saves events to Datastore, and response the saved {@link InteractionEvent}. In buffered mode,
+   * events are queued and responded with {@link HttpServletResponse#SC_ACCEPTED}, or rejected with
+   * {@link HttpServletResponse#SC_SERVICE_UNAVAILABLE} once the buffer is full.
+   * <p>
+   * An array of events is handled as a batch, see {@link #doPostBatch(List,
+   * Long, HttpServletRequest, HttpServletResponse)}.
+   * <p>
+   * The user of a request with a valid session token (see {@link SessionTokens}) is not looked
+   * up.
    */
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
     super.doPost(req, resp);
-    InteractionEvent interactionEvent = Util.GSON.fromJson(req.getReader(), InteractionEvent.class);
+    JsonReader body = WireFormat.newReader(req);
+    JsonToken token;
+    try {
+      token = body.peek();
+    } catch (EOFException e) {
+      token = JsonToken.END_DOCUMENT;
+    }
+    if (token == JsonToken.BEGIN_ARRAY) {
+      doPostBatch(Arrays.asList(Util.GSON.fromJson(body, InteractionEvent[].class)),
+          SessionTokens.authenticatedUserId(req), req, resp);
+      return;
+    }
+    InteractionEvent interactionEvent = token == JsonToken.END_DOCUMENT ? null
+        : Util.GSON.fromJson(body, InteractionEvent.class);
     if (interactionEvent == null) throw new IOException("Missing interaction event");
+    // IDs are allocated by the server.
+    interactionEvent.setId(null);
+    References references = getReferences(Collections.singletonList(interactionEvent),
+        SessionTokens.authenticatedUserId(req));
     StringBuilder errorBuilder = new StringBuilder();
-    if (!isValidEvent(interactionEvent, errorBuilder)) {
+    if (!isValidEvent(interactionEvent, references, errorBuilder)) {
       throw new IOException(
           "Invalid interaction event: " + errorBuilder + " in " + interactionEvent);
     }
-    // Puts the event in the datastore and responds it to the client.
-    resp.getWriter()
-        .print(Util.GSON.toJson(
-            new InteractionEvent(
-                datastore.add(interactionEvent.toEntityBuilder(this).build()))));
+    if (buffer != null) {
+      if (!buffer.offer(interactionEvent)) {
+        resp.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "Too many interaction events, try again later.");
+        return;
+      }
+      // Responds the event as received, it will be saved by the buffer flusher.
+      resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+      WireFormat.write(req, resp, interactionEvent);
+      return;
+    }
+    InteractionEvent saved = saveEvents(Collections.singletonList(interactionEvent)).get(0);
+    // Responds the event to the client.
+    WireFormat.write(req, resp, saved);
+  }
+
+  /**
+   * Validates a batch of events with a single batch get of their users and scenes, saves the
+   * valid ones within a single batch write, and responds an {@link EventStatus} per event, in the
+   * order of the request.
+   *
+   * @param authenticatedUserId the user ID of the request session token, if it had a valid one.
+   */
+  private void doPostBatch(List<InteractionEvent> interactionEvents,
+      @Nullable Long authenticatedUserId, HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    if (interactionEvents.isEmpty()) throw new IOException("Missing interaction events");
+    if (interactionEvents.size() > MAX_BATCH_SIZE) {
+      throw new IOException("Too many interaction events: " + interactionEvents.size()
+          + ", at most " + MAX_BATCH_SIZE + " are allowed.");
+    }
+    References references = getReferences(interactionEvents, authenticatedUserId);
+    EventStatus[] statuses = new EventStatus[interactionEvents.size()];
+    List<Integer> validIndices = new ArrayList<>(interactionEvents.size());
+    for (int i = 0; i < interactionEvents.size(); i++) {
+      InteractionEvent interactionEvent = interactionEvents.get(i);
+      StringBuilder errorBuilder = new StringBuilder();
+      if (interactionEvent == null) {
+        statuses[i] = new EventStatus(HttpServletResponse.SC_BAD_REQUEST,
+            "Missing interaction event");
+      } else if (!isValidEvent(interactionEvent, references, errorBuilder)) {
+        statuses[i] = new EventStatus(HttpServletResponse.SC_BAD_REQUEST,
+            "Invalid interaction event: " + errorBuilder);
+      } else if (buffer != null) {
+        interactionEvent.setId(null);
+        statuses[i] = buffer.offer(interactionEvent)
+            ? new EventStatus(HttpServletResponse.SC_ACCEPTED, interactionEvent)
+            : new EventStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "Too many interaction events, try again later.");
+      } else {
+        interactionEvent.setId(null);
+        validIndices.add(i);
+      }
+    }
+    if (!validIndices.isEmpty()) {
+      List<InteractionEvent> saved = saveEvents(
+          validIndices.stream().map(interactionEvents::get).collect(toList()));
+      for (int i = 0; i < validIndices.size(); i++) {
+        statuses[validIndices.get(i)] =
+            new EventStatus(HttpServletResponse.SC_OK, saved.get(i));
+      }
+    }
+    WireFormat.write(req, resp, statuses);
+  }
+
+  /**
+   * Looks up users and scenes in the {@link InteractionValidationCache}, and fetches the missing
+   * ones within a single batch get.
+   *
+   * @param userIds  to look up.
+   * @param sceneIds to look up.
+   *
+   * @return the users and scenes that were found.
+   */
+  private References getReferences(Collection<Long> userIds, Collection<Long> sceneIds) {
+    InteractionValidationCache validationCache = InteractionValidationCache.getInstance();
+    References references = new References();
+    references.userIds.addAll(validationCache.getExistingUsers(userIds));
+    references.scenes.putAll(validationCache.getScenes(sceneIds));
+    List<Key> missingKeys = new ArrayList<>();
+    for (Long userId : userIds) {
+      if (!references.userIds.contains(userId)) {
+        missingKeys.add(getKeyFactory(User.KIND).newKey(userId));
+      }
+    }
+    for (Long sceneId : sceneIds) {
+      if (!references.scenes.containsKey(sceneId)) {
+        missingKeys.add(getKeyFactory(Scene.KIND).newKey(sceneId));
+      }
+    }
+    if (missingKeys.isEmpty()) return references;
+    Iterator<Entity> entities = datastore.get(missingKeys);
+    while (entities.hasNext()) {
+      Entity entity = entities.next();
+      long id = entity.getKey().getId();
+      if (User.KIND.equals(entity.getKey().getKind())) {
+        validationCache.putUser(id);
+        references.userIds.add(id);
+      } else {
+        references.scenes.put(id, validationCache.putScene(entity));
+      }
+    }
+    return references;
+  }
+
+  /**
+   * @param authenticatedUserId of a user that is known to exist, and so is not looked up.
+   *
+   * @return the users and scenes that are referenced by {@code interactionEvents}.
+   */
+  private References getReferences(List<InteractionEvent> interactionEvents,
+      @Nullable Long authenticatedUserId) {
+    Set<Long> userIds = new HashSet<>();
+    Set<Long> sceneIds = new HashSet<>();
+    for (InteractionEvent interactionEvent : interactionEvents) {
+      if (interactionEvent == null) continue;
+      if (interactionEvent.getUserId() != null) {
+        userIds.add(interactionEvent.getUserId());
+      }
+      if (interactionEvent.getSceneId() != null) {
+        sceneIds.add(interactionEvent.getSceneId());
+      }
+    }
+    boolean authenticated = authenticatedUserId != null && userIds.remove(authenticatedUserId);
+    References references = getReferences(userIds, sceneIds);
+    if (authenticated) {
+      references.userIds.add(authenticatedUserId);
+    }
+    return references;
   }
 
   /**
+   * Puts validated events in the datastore within a single batch write, and updates the states
+   * and reaction counters of their scenes. Events that already have IDs overwrite their
+   * entities, so that saving them again does not duplicate them.
+   *
+   * @param interactionEvents to save, in the order they had occurred.
+   *
+   * @return the saved events.
+   */
+  List<InteractionEvent> saveEvents(List<InteractionEvent> interactionEvents) {
+    List<Entity> entities = datastore.put(interactionEvents.stream()
+        .map(interactionEvent -> {
+          FullEntity<IncompleteKey> entity = interactionEvent.toEntityBuilder(this).build();
+          return interactionEvent.getId() == null ? entity : Entity.newBuilder(
+              getKeyFactory(InteractionEvent.KIND).newKey(interactionEvent.getId()), entity)
+              .build();
+        })
+        .toArray(FullEntity[]::new));
+    List<InteractionEvent> newReactions = userSceneStates.record(interactionEvents);
+    if (!newReactions.isEmpty()) {
+      Map<Long, SceneSummary> scenes = getReferences(Collections.emptySet(),
+          newReactions.stream().map(InteractionEvent::getSceneId).collect(toSet())).scenes;
+      // Counts new reactions, unless they are of the director.
+      Map<Long, Map<Emotion, Long>> deltas = new HashMap<>();
+      for (InteractionEvent interactionEvent : newReactions) {
+        SceneSummary scene = scenes.get(interactionEvent.getSceneId());
+        if (scene == null || !Objects.equals(interactionEvent.getUserId(), scene.directorId)) {
+          deltas.computeIfAbsent(interactionEvent.getSceneId(),
+              sceneId -> new EnumMap<>(Emotion.class))
+              .merge(interactionEvent.getReaction(), 1L, Long::sum);
+        }
+      }
+      deltas.forEach((sceneId, counters) -> counters.forEach(
+          (reaction, delta) -> reactionCounters.increment(sceneId, reaction, delta)));
+    }
+    return entities.stream().map(InteractionEvent::new).collect(toList());
+  }
+
+  /**
+   * Allocates IDs to events that have none yet, and then saves them, so that {@link
+   * InteractionEventBuffer} can retry failed batches without duplicating their events.
+   *
+   * @param interactionEvents to save, see {@link #saveEvents(List)}.
+   */
+  @VisibleForTesting void saveBufferedEvents(List<InteractionEvent> interactionEvents) {
+    List<InteractionEvent> unallocated = interactionEvents.stream()
+        .filter(interactionEvent -> interactionEvent.getId() == null)
+        .collect(toList());
+    if (!unallocated.isEmpty()) {
+      IncompleteKey incompleteKey = getKeyFactory(InteractionEvent.KIND).newKey();
+      IncompleteKey[] incompleteKeys = new IncompleteKey[unallocated.size()];
+      Arrays.fill(incompleteKeys, incompleteKey);
+      List<Key> keys = datastore.allocateId(incompleteKeys);
+      for (int i = 0; i < unallocated.size(); i++) {
+        unallocated.get(i).setId(keys.get(i).getId());
+      }
+    }
+    saveEvents(interactionEvents);
+  }
+
+  @VisibleForTesting void setBuffer(@Nullable InteractionEventBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /**
+   * @param references users and scenes that were found, see {@link #getReferences(List, Long)}.
+   *
    * @return whether the event has a valid data.
    */
   @SuppressWarnings("RedundantIfStatement") private boolean isValidEvent(
-      InteractionEvent interactionEvent, StringBuilder errorBuilder) {
+      InteractionEvent interactionEvent, References references,
+      StringBuilder errorBuilder) {
     if (interactionEvent.getTimestamp() == null) {
       errorBuilder.append("missing timestamp.");
       return false;
@@ -73,7 +334,7 @@ public class InteractionServlet extends BaseServlet {
       errorBuilder.append("missing user ID.");
       return false;
     }
-    if (datastore.get(getKeyFactory(User.KIND).newKey(interactionEvent.getUserId())) == null) {
+    if (!references.userIds.contains(interactionEvent.getUserId())) {
       errorBuilder.append("user with ID ")
           .append(interactionEvent.getUserId())
           .append(" not found.");
@@ -87,24 +348,57 @@ public class InteractionServlet extends BaseServlet {
       errorBuilder.append("missing media ID.");
       return false;
     }
-    Entity entity = datastore.get(getKeyFactory(Scene.KIND).newKey(interactionEvent.getSceneId()));
-    if (entity == null) {
+    SceneSummary scene = references.scenes.get(interactionEvent.getSceneId());
+    if (scene == null) {
       errorBuilder.append("scene with ID ")
-          .append(interactionEvent.getUserId())
+          .append(interactionEvent.getSceneId())
           .append(" not found.");
       return false;
-    } else if (entity.getList(Scene.COLUMN_MEDIA)
-        .stream()
-        .filter(value -> Objects.equals(
-            ((Key) ((EntityValue) value).get().getKey()).getId(), interactionEvent.getMediaId()))
-        .collect(toList())
-        .isEmpty()) {
+    } else if (!scene.mediaIds.contains(interactionEvent.getMediaId())) {
       errorBuilder.append("media ID ")
           .append(interactionEvent.getMediaId())
           .append(" is not part of scene ")
-          .append(new Scene(entity));
+          .append(interactionEvent.getSceneId());
       return false;
     }
     return true;
   }
+
+  /**
+   * Users and scenes that events refer to, and were found.
+   */
+  private static class References {
+    private final Set<Long> userIds = new HashSet<>();
+    private final Map<Long, SceneSummary> scenes = new HashMap<>();
+  }
+
+  /**
+   * Outcome of a single event within a batch request.
+   */
+  static class EventStatus {
+    /**
+     * HTTP status code that the event would have been responded with on its own.
+     */
+    final int status;
+    /**
+     * The saved or queued event, absent on failures.
+     */
+    final @Nullable InteractionEvent event;
+    /**
+     * Describes failures.
+     */
+    final @Nullable String error;
+
+    private EventStatus(int status, InteractionEvent event) {
+      this.status = status;
+      this.event = event;
+      error = null;
+    }
+
+    private EventStatus(int status, String error) {
+      this.status = status;
+      this.error = error;
+      event = null;
+    }
+  }
 }
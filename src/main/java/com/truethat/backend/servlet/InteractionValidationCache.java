@@ -0,0 +1,126 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityValue;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Value;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.model.InteractionEvent;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.User;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Proudly created by ohad on 28/09/2017.
+ * <p>
+ * Process-wide cache of the entities that {@link InteractionEvent}s refer to, so that validating
+ * events of active users with popular scenes does not reach the datastore. Only entities that
+ * were found are cached, as they may be created at any moment.
+ * <p>
+ * Scenes are immutable once saved, and so they are summarized for longer than users are.
+ */
+class InteractionValidationCache {
+  /**
+   * Maximum number of cached users and scenes, respectively.
+   */
+  private static final long MAXIMUM_USERS = 100000;
+  private static final long MAXIMUM_SCENES = 10000;
+  /**
+   * How long entities are cached.
+   */
+  private static final long USER_TTL_MINUTES = 60;
+  private static final long SCENE_TTL_HOURS = 24;
+  private static final InteractionValidationCache INSTANCE = new InteractionValidationCache();
+  private final Cache<Long, Boolean> users = CacheBuilder.newBuilder()
+      .maximumSize(MAXIMUM_USERS)
+      .expireAfterWrite(USER_TTL_MINUTES, TimeUnit.MINUTES)
+      .recordStats()
+      .build();
+  private final Cache<Long, SceneSummary> scenes = CacheBuilder.newBuilder()
+      .maximumSize(MAXIMUM_SCENES)
+      .expireAfterWrite(SCENE_TTL_HOURS, TimeUnit.HOURS)
+      .recordStats()
+      .build();
+
+  private InteractionValidationCache() {
+    Metrics.registerGauge("validationCache.users.hitRate", () -> users.stats().hitRate());
+    Metrics.registerGauge("validationCache.users.size", users::size);
+    Metrics.registerGauge("validationCache.scenes.hitRate", () -> scenes.stats().hitRate());
+    Metrics.registerGauge("validationCache.scenes.size", scenes::size);
+  }
+
+  static InteractionValidationCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param userIds to look for.
+   *
+   * @return the IDs among {@code userIds} of users that are known to exist.
+   */
+  Set<Long> getExistingUsers(Iterable<Long> userIds) {
+    return users.getAllPresent(userIds).keySet();
+  }
+
+  /**
+   * @param sceneIds to look for.
+   *
+   * @return the cached scene summaries among {@code sceneIds}, by their IDs.
+   */
+  Map<Long, SceneSummary> getScenes(Iterable<Long> sceneIds) {
+    return scenes.getAllPresent(sceneIds);
+  }
+
+  /**
+   * @param userId of a user that was found.
+   */
+  void putUser(long userId) {
+    users.put(userId, true);
+  }
+
+  /**
+   * @param sceneEntity that was found.
+   *
+   * @return the summary of {@code sceneEntity}.
+   */
+  SceneSummary putScene(Entity sceneEntity) {
+    SceneSummary summary = new SceneSummary(sceneEntity);
+    scenes.put(sceneEntity.getKey().getId(), summary);
+    return summary;
+  }
+
+  @VisibleForTesting void invalidateAll() {
+    users.invalidateAll();
+    scenes.invalidateAll();
+  }
+
+  /**
+   * What event validation and reaction counting need to know of a {@link Scene}.
+   */
+  static class SceneSummary {
+    final @Nullable Long directorId;
+    final Set<Long> mediaIds;
+
+    private SceneSummary(Entity sceneEntity) {
+      directorId = sceneEntity.contains(Scene.COLUMN_DIRECTOR_ID) ? sceneEntity.getLong(
+          Scene.COLUMN_DIRECTOR_ID) : null;
+      ImmutableSet.Builder<Long> mediaIds = ImmutableSet.builder();
+      if (sceneEntity.contains(Scene.COLUMN_MEDIA)) {
+        for (Value<?> value : sceneEntity.<Value<?>>getList(Scene.COLUMN_MEDIA)) {
+          Key mediaKey = (Key) ((EntityValue) value).get().getKey();
+          if (mediaKey.getId() != null) {
+            mediaIds.add(mediaKey.getId());
+          }
+        }
+      }
+      this.mediaIds = mediaIds.build();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.truethat.backend.common.ManagedExecutors;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.model.Media;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor.AbortPolicy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Proudly created by ohad on 29/09/2017.
+ * <p>
+ * Local pool of {@link Media} IDs that were reserved by the datastore in blocks, so that saving a
+ * scene does not wait for ID allocation. The pool is refilled in the background once it runs
+ * low.
+ */
+public class MediaIdPool {
+  /**
+   * Number of IDs that are reserved at once.
+   */
+  @VisibleForTesting static final int BLOCK_SIZE = 100;
+  /**
+   * Pool size under which a background refill starts.
+   */
+  private static final int LOW_WATERMARK = BLOCK_SIZE / 4;
+  private static final ExecutorService REFILLER =
+      ManagedExecutors.newBoundedPool("media-id-refill", 1, 16, new AbortPolicy());
+  private final Logger log = Logger.getLogger(getClass().getName());
+  private final BlockingQueue<Long> ids = new LinkedBlockingQueue<>();
+  private final AtomicBoolean refilling = new AtomicBoolean();
+  private Datastore datastore;
+  private KeyFactory keyFactory;
+
+  MediaIdPool(Datastore datastore) {
+    this.datastore = datastore;
+    keyFactory = datastore.newKeyFactory().setKind(Media.KIND);
+    Metrics.registerGauge("mediaIdPool.size", ids::size);
+  }
+
+  /**
+   * Takes reserved IDs from the pool. If the pool ran dry, the missing IDs are allocated along
+   * with a fresh block, within a single allocation call.
+   *
+   * @param count number of IDs to take.
+   *
+   * @return {@code count} distinct media IDs.
+   */
+  public List<Long> take(int count) {
+    List<Long> taken = new ArrayList<>(count);
+    ids.drainTo(taken, count);
+    int missing = count - taken.size();
+    if (missing > 0) {
+      Metrics.increment("mediaIdPool.misses");
+      List<Long> allocated = allocate(missing + BLOCK_SIZE);
+      taken.addAll(allocated.subList(0, missing));
+      ids.addAll(allocated.subList(missing, allocated.size()));
+    } else if (ids.size() < LOW_WATERMARK) {
+      refillInBackground();
+    }
+    return taken;
+  }
+
+  @VisibleForTesting int size() {
+    return ids.size();
+  }
+
+  private void refillInBackground() {
+    if (!refilling.compareAndSet(false, true)) return;
+    try {
+      REFILLER.execute(() -> {
+        try {
+          ids.addAll(allocate(BLOCK_SIZE));
+        } catch (DatastoreException e) {
+          log.log(Level.WARNING, "Failed to refill media IDs.", e);
+        } finally {
+          refilling.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refilling.set(false);
+    }
+  }
+
+  /**
+   * @param count number of IDs to allocate.
+   *
+   * @return newly allocated IDs.
+   */
+  private List<Long> allocate(int count) {
+    IncompleteKey[] keys = new IncompleteKey[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = keyFactory.newKey();
+    }
+    return datastore.allocateId(keys).stream().map(Key::getId).collect(toList());
+  }
+}
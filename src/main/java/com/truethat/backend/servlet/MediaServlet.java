@@ -0,0 +1,215 @@
+package com.truethat.backend.servlet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.truethat.backend.storage.FileSystemStorageClient;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Proudly created by ohad on 03/10/2017.
+ * <p>
+ * Serves media items that were saved by {@link FileSystemStorageClient}, from {@code
+ * /media/<bucket>/<name>}. Responses carry validators (i.e. ETag and Last-Modified) for
+ * conditional requests, and single byte ranges are supported so that videos can be seeked.
+ * Temporary files of items that are still being saved are not served.
+ * <p>
+ * On Jetty, file content is memory mapped and handed to its output as is, so that it is written
+ * to the socket without being copied through the heap. Elsewhere, such as when the output is
+ * wrapped by {@link CompressionFilter}, it is streamed through a small fixed size buffer. Either
+ * way memory use does not depend on the size of the item.
+ */
+@WebServlet(value = "/media/*", name = "Media")
+public class MediaServlet extends HttpServlet {
+  /**
+   * Denotes a range that cannot be satisfied, see {@link #parseRange(String, long)}.
+   */
+  @VisibleForTesting static final long[] UNSATISFIABLE = new long[0];
+  /**
+   * Media items are content addressed, and so they never change once saved.
+   */
+  private static final long MAX_AGE_SECONDS = TimeUnit.DAYS.toSeconds(365);
+  /**
+   * Jetty's output, which can send buffers without copying them. Server classes are hidden from
+   * web applications, and so it is recognized by name and invoked reflectively.
+   */
+  private static final String JETTY_OUTPUT = "org.eclipse.jetty.server.HttpOutput";
+  private @Nullable Path root;
+
+  /**
+   * Parses a single byte range, such as {@code bytes=0-99}, {@code bytes=100-} or {@code
+   * bytes=-100}.
+   *
+   * @param header value of the Range header.
+   * @param length of the content.
+   *
+   * @return the inclusive first and last positions of the range, {@link #UNSATISFIABLE} if it
+   * starts after the content, or {@code null} when the whole content should be served (e.g. for
+   * malformed or multiple ranges).
+   */
+  @VisibleForTesting static @Nullable long[] parseRange(@Nullable String header, long length) {
+    if (header == null || !header.startsWith("bytes=") || header.contains(",")) return null;
+    String range = header.substring("bytes=".length()).trim();
+    int dash = range.indexOf('-');
+    if (dash < 0) return null;
+    try {
+      long start;
+      long end;
+      if (dash == 0) {
+        // A suffix range, of the last bytes.
+        long suffix = Long.parseLong(range.substring(1));
+        if (suffix <= 0 || length == 0) return UNSATISFIABLE;
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(range.substring(0, dash));
+        if (start >= length) return UNSATISFIABLE;
+        end = dash == range.length() - 1 ? length - 1
+            : Math.min(Long.parseLong(range.substring(dash + 1)), length - 1);
+        if (end < start) return null;
+      }
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @VisibleForTesting void setRoot(@Nullable Path root) {
+    this.root = root == null ? null : root.toAbsolutePath().normalize();
+  }
+
+  @Override public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    String storageRoot = System.getenv("STORAGE_ROOT");
+    setRoot(Strings.isNullOrEmpty(storageRoot) ? null : Paths.get(storageRoot));
+  }
+
+  @Override protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    if (root == null || Strings.isNullOrEmpty(req.getPathInfo())) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    Path path;
+    try {
+      path = FileSystemStorageClient.resolve(root, req.getPathInfo().substring(1));
+    } catch (FileNotFoundException e) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    if (!Files.isRegularFile(path) || FileSystemStorageClient.isTemporary(path)) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    long length = Files.size(path);
+    long lastModified = Files.getLastModifiedTime(path).toMillis();
+    String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+    resp.setHeader("ETag", etag);
+    resp.setDateHeader("Last-Modified", lastModified);
+    resp.setHeader("Accept-Ranges", "bytes");
+    resp.setHeader("Cache-Control", "public, max-age=" + MAX_AGE_SECONDS);
+    if (isNotModified(req, etag, lastModified)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    String contentType = getServletConfig() == null ? null
+        : getServletContext().getMimeType(path.getFileName().toString());
+    resp.setContentType(contentType == null ? "application/octet-stream" : contentType);
+    // Ranges of a different version of the item are ignored.
+    String ifRange = req.getHeader("If-Range");
+    long[] range = ifRange == null || ifRange.equals(etag) ? parseRange(req.getHeader("Range"),
+        length) : null;
+    if (range == UNSATISFIABLE) {
+      resp.setHeader("Content-Range", "bytes */" + length);
+      resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    }
+    long start = 0;
+    long count = length;
+    if (range != null) {
+      start = range[0];
+      count = range[1] - range[0] + 1;
+      resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      resp.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+    }
+    resp.setContentLengthLong(count);
+    if ("HEAD".equals(req.getMethod())) return;
+    OutputStream outputStream = resp.getOutputStream();
+    Method sendContent = count <= Integer.MAX_VALUE ? jettySendContent(outputStream) : null;
+    if (sendContent != null) {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        sendContent.invoke(outputStream, channel.map(FileChannel.MapMode.READ_ONLY, start, count));
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      } catch (InvocationTargetException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new IllegalStateException(e.getCause());
+      }
+      return;
+    }
+    try (InputStream inputStream = Files.newInputStream(path)) {
+      ByteStreams.skipFully(inputStream, start);
+      ByteStreams.copy(ByteStreams.limit(inputStream, count), outputStream);
+    }
+  }
+
+  /**
+   * @return {@code HttpOutput.sendContent(ByteBuffer)} if {@code outputStream} is Jetty's output,
+   * or {@code null} otherwise.
+   */
+  private static @Nullable Method jettySendContent(OutputStream outputStream) {
+    for (Class<?> type = outputStream.getClass(); type != null; type = type.getSuperclass()) {
+      if (!JETTY_OUTPUT.equals(type.getName())) continue;
+      try {
+        return type.getMethod("sendContent", ByteBuffer.class);
+      } catch (NoSuchMethodException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return whether the client already has the current version of the item.
+   */
+  private boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String candidate : ifNoneMatch.split(",")) {
+        String trimmed = candidate.trim();
+        if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ifModifiedSince;
+    try {
+      ifModifiedSince = req.getDateHeader("If-Modified-Since");
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    // HTTP dates have a precision of seconds.
+    return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+}
@@ -0,0 +1,58 @@
+package com.truethat.backend.servlet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.truethat.backend.common.JsonResponses;
+import com.truethat.backend.common.Metrics;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.annotation.Nullable;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Proudly created by ohad on 25/09/2017.
+ * <p>
+ * Reports the process {@link Metrics}, so that caches and queues can be sized. It does not extend
+ * {@link BaseServlet}, as it has no use for the datastore.
+ * <p>
+ * Metrics are only reported to requests that carry the {@code METRICS_SECRET} environment
+ * variable in their {@link #SECRET_HEADER}, as App Engine flexible serves every path publicly.
+ * Without a configured secret, the endpoint is disabled altogether.
+ */
+@WebServlet(value = "/metrics", name = "Metrics")
+public class MetricsServlet extends HttpServlet {
+  public static final String SECRET_HEADER = "X-Metrics-Secret";
+  /**
+   * Stands for the secret in the app yamls, and is replaced by the real secret upon deployment.
+   */
+  private static final String SECRET_PLACEHOLDER = "__METRICS_SECRET__";
+  private @Nullable byte[] secret;
+
+  @VisibleForTesting void setSecret(@Nullable String secret) {
+    this.secret = Strings.isNullOrEmpty(secret) || SECRET_PLACEHOLDER.equals(secret) ? null
+        : secret.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    setSecret(System.getenv("METRICS_SECRET"));
+  }
+
+  @Override protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    String provided = req.getHeader(SECRET_HEADER);
+    // Compares in constant time, so that the secret cannot be guessed byte by byte.
+    if (secret == null || provided == null
+        || !MessageDigest.isEqual(secret, provided.getBytes(StandardCharsets.UTF_8))) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    JsonResponses.write(resp, Metrics.snapshot());
+  }
+}
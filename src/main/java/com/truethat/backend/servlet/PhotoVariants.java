@@ -0,0 +1,237 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityValue;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.datastore.Value;
+import com.google.cloud.storage.BlobInfo;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.truethat.backend.common.ManagedExecutors;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.model.Media;
+import com.truethat.backend.model.Photo;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.storage.StorageClient;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor.AbortPolicy;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Proudly created by ohad on 01/10/2017.
+ * <p>
+ * Generates downscaled JPEG variants of saved {@link Photo}s, so that clients on slow networks or
+ * small screens do not have to download full resolution photos. Variants are stored next to the
+ * original, and their URLs are added to the scene once all of its photos were processed (see
+ * {@link Media#getVariants()}).
+ * <p>
+ * Generation runs on a small bounded pool, as decoding images is CPU and memory heavy. Scenes
+ * that arrive while the pool is saturated are left without variants, and so are photos with more
+ * than {@link #MAX_PIXELS}.
+ */
+public class PhotoVariants {
+  /**
+   * Maximal widths of the generated variants. Photos are only ever downscaled.
+   */
+  @VisibleForTesting static final List<Integer> WIDTHS = ImmutableList.of(160, 480, 1080);
+  /**
+   * Maximal number of pixels of photos to decode. A decoded pixel takes about 4 bytes of heap, no
+   * matter how well the photo is compressed.
+   */
+  @VisibleForTesting static final long MAX_PIXELS = 4096L * 4096L;
+  private static final String CONTENT_TYPE = "image/jpeg";
+  private static final ExecutorService EXECUTOR =
+      ManagedExecutors.newBoundedPool("photo-variants", 2, 64, new AbortPolicy());
+  private final Logger log = Logger.getLogger(getClass().getName());
+  private StudioServlet servlet;
+
+  PhotoVariants(StudioServlet servlet) {
+    this.servlet = servlet;
+  }
+
+  /**
+   * @param blobName of an original photo, such as {@code media/abc.jpg}.
+   * @param width    of the variant.
+   *
+   * @return the blob name of the variant, such as {@code media/abc_w160.jpg}.
+   */
+  private static String variantName(String blobName, int width) {
+    int extensionStart = blobName.lastIndexOf('.');
+    return (extensionStart < 0 ? blobName : blobName.substring(0, extensionStart))
+        + "_w" + width + ".jpg";
+  }
+
+  /**
+   * Decodes an image, after reading its dimensions from its header, so that images that are too
+   * large are never decoded.
+   *
+   * @param inputStream of an encoded image.
+   * @param maxPixels   maximal number of pixels to decode.
+   *
+   * @return the decoded image, or {@code null} if it is not an image that ImageIO can decode, or
+   * if it has more than {@code maxPixels}.
+   */
+  @VisibleForTesting static @Nullable BufferedImage decode(InputStream inputStream,
+      long maxPixels) throws IOException {
+    try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
+      if (imageInputStream == null) return null;
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+      if (!readers.hasNext()) return null;
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(imageInputStream, true, true);
+        if ((long) reader.getWidth(0) * reader.getHeight(0) > maxPixels) {
+          Metrics.increment("photoVariants.oversized");
+          return null;
+        }
+        return reader.read(0);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * @return {@code original} scaled down to {@code width}, preserving its aspect ratio.
+   */
+  private static BufferedImage scale(BufferedImage original, int width) {
+    int height = Math.max(1, Math.round((float) original.getHeight() * width / original.getWidth()));
+    BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = scaled.createGraphics();
+    try {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+          RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.drawImage(original, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+    return scaled;
+  }
+
+  /**
+   * Generates variants in the background.
+   *
+   * @param sceneKey             of the saved scene.
+   * @param blobNameByPhotoId storage names of the scene photos, by their media IDs.
+   */
+  public void submit(Key sceneKey, Map<Long, String> blobNameByPhotoId) {
+    if (blobNameByPhotoId.isEmpty()) return;
+    try {
+      EXECUTOR.execute(() -> process(sceneKey, blobNameByPhotoId));
+    } catch (RejectedExecutionException e) {
+      Metrics.increment("photoVariants.rejected");
+    }
+  }
+
+  /**
+   * Generates the variants of the scene photos, and adds their URLs to the scene.
+   */
+  @VisibleForTesting void process(Key sceneKey, Map<Long, String> blobNameByPhotoId) {
+    long start = System.nanoTime();
+    try {
+      Map<Long, Map<Integer, String>> variantsByPhotoId = new TreeMap<>();
+      for (Map.Entry<Long, String> photo : blobNameByPhotoId.entrySet()) {
+        Map<Integer, String> variants = generate(photo.getValue());
+        if (!variants.isEmpty()) {
+          variantsByPhotoId.put(photo.getKey(), variants);
+        }
+      }
+      if (!variantsByPhotoId.isEmpty()) {
+        updateScene(sceneKey, variantsByPhotoId);
+      }
+    } catch (Exception e) {
+      log.log(Level.WARNING, "Failed to generate photo variants of scene " + sceneKey.getId(), e);
+      Metrics.increment("photoVariants.failed");
+    } finally {
+      Metrics.recordLatency("photoVariants.latency", System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Generates the variants of a single photo. Variants that already exist, such as those of
+   * duplicate photos, are reused.
+   *
+   * @param blobName of the original photo.
+   *
+   * @return variant URLs by width.
+   */
+  private Map<Integer, String> generate(String blobName) throws Exception {
+    StorageClient storageClient = servlet.getStorageClient();
+    String bucketName = servlet.getBucketName();
+    Map<Integer, String> variants = new TreeMap<>();
+    BufferedImage original = null;
+    for (int width : WIDTHS) {
+      String variantName = variantName(blobName, width);
+      BlobInfo existing = storageClient.get(variantName, bucketName);
+      if (existing != null) {
+        variants.put(width, storageClient.getPublicLink(existing));
+        continue;
+      }
+      if (original == null) {
+        try (InputStream inputStream = storageClient.read(blobName, bucketName)) {
+          original = decode(inputStream, MAX_PIXELS);
+        }
+        // Not an image that ImageIO can decode, or one that is too large.
+        if (original == null) return variants;
+      }
+      if (width >= original.getWidth()) break;
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      if (!ImageIO.write(scale(original, width), "jpg", outputStream)) {
+        throw new IOException("No JPEG writer is available.");
+      }
+      BlobInfo saved =
+          storageClient.save(variantName, CONTENT_TYPE, outputStream.toByteArray(), bucketName);
+      variants.put(width, storageClient.getPublicLink(saved));
+      Metrics.increment("photoVariants.generated");
+    }
+    return variants;
+  }
+
+  /**
+   * Adds variant URLs to the media items of a scene.
+   */
+  private void updateScene(Key sceneKey, Map<Long, Map<Integer, String>> variantsByPhotoId) {
+    Datastore datastore = servlet.getDatastore();
+    Transaction transaction = datastore.newTransaction();
+    try {
+      Entity sceneEntity = transaction.get(sceneKey);
+      if (sceneEntity == null || !sceneEntity.contains(Scene.COLUMN_MEDIA)) return;
+      List<EntityValue> mediaValues = new ArrayList<>();
+      for (Value<?> value : sceneEntity.<Value<?>>getList(Scene.COLUMN_MEDIA)) {
+        FullEntity<?> mediaEntity = ((EntityValue) value).get();
+        Map<Integer, String> variants =
+            variantsByPhotoId.get(((Key) mediaEntity.getKey()).getId());
+        mediaValues.add(variants == null ? (EntityValue) value : new EntityValue(
+            FullEntity.newBuilder(mediaEntity)
+                .set(Media.COLUMN_VARIANTS, Media.toVariantsValue(variants))
+                .build()));
+      }
+      transaction.put(Entity.newBuilder(sceneEntity).set(Scene.COLUMN_MEDIA, mediaValues).build());
+      transaction.commit();
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+}
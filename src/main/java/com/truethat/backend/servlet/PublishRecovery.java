@@ -0,0 +1,136 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.common.annotations.VisibleForTesting;
+import com.truethat.backend.common.ManagedExecutors;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.SceneStatus;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Proudly created by ohad on 17/10/2017.
+ * <p>
+ * Recovers from asynchronous publishes that never completed, such as those that were dropped on
+ * shutdown or lost in a crash. Their scenes are left {@link SceneStatus#PROCESSING} forever, and
+ * their {@link StagedPart}s are never deleted. Once they are older than {@link #STALE_MILLIS},
+ * which is far longer than a publish may take, scenes are marked {@link SceneStatus#FAILED} and
+ * staged parts are deleted.
+ * <p>
+ * Staged parts are local to each instance, and scenes are only ever moved out of {@link
+ * SceneStatus#PROCESSING}, and so every instance runs its own sweep, without coordination.
+ */
+class PublishRecovery {
+  /**
+   * How often to sweep.
+   */
+  static final long INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  /**
+   * How long after their creation publishes are considered lost.
+   */
+  static final long STALE_MILLIS = TimeUnit.HOURS.toMillis(1);
+  /**
+   * Metric names.
+   */
+  static final String METRIC_FAILED_SCENES = "publishRecovery.failedScenes";
+  static final String METRIC_DELETED_PARTS = "publishRecovery.deletedParts";
+  private final Logger log = Logger.getLogger(getClass().getName());
+  private final Datastore datastore;
+
+  PublishRecovery(Datastore datastore) {
+    this.datastore = datastore;
+  }
+
+  /**
+   * Schedules sweeps of {@code datastore}, starting right away.
+   */
+  static void start(Datastore datastore) {
+    PublishRecovery recovery = new PublishRecovery(datastore);
+    ManagedExecutors.newScheduler("publish-recovery")
+        .scheduleWithFixedDelay(recovery::sweepSafely, 0, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sweeps, and logs failures, so that following sweeps are still scheduled.
+   */
+  private void sweepSafely() {
+    try {
+      sweep(STALE_MILLIS);
+    } catch (IOException | RuntimeException e) {
+      log.log(Level.SEVERE, "Failed to recover stale publishes.", e);
+    }
+  }
+
+  /**
+   * Marks scenes that were created at least {@code staleMillis} ago and are still {@link
+   * SceneStatus#PROCESSING} as {@link SceneStatus#FAILED}, and deletes staged parts that are as
+   * old.
+   * <p>
+   * Scenes are queried by status alone, which the built-in indexes serve, as there are only ever
+   * a few of them. Their creation time is set by clients, yet a skewed one can at worst fail a
+   * publish that is still running, which then completes it anyway.
+   *
+   * @return the number of scenes that were marked as failed.
+   */
+  @VisibleForTesting int sweep(long staleMillis) throws IOException {
+    Metrics.add(METRIC_DELETED_PARTS, StagedPart.deleteStale(staleMillis));
+    Timestamp staleBefore = Timestamp.ofTimeMicroseconds(
+        TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - staleMillis));
+    QueryResults<Entity> processing = datastore.run(Query.newEntityQueryBuilder()
+        .setKind(Scene.KIND)
+        .setFilter(PropertyFilter.eq(Scene.COLUMN_STATUS, SceneStatus.PROCESSING.getCode()))
+        .build());
+    List<Key> stale = new ArrayList<>();
+    while (processing.hasNext()) {
+      Scene scene = new Scene(processing.next());
+      if (scene.getCreated() == null || scene.getCreated().compareTo(staleBefore) <= 0) {
+        stale.add(datastore.newKeyFactory().setKind(Scene.KIND).newKey(scene.getId()));
+      }
+    }
+    int failed = 0;
+    for (Key key : stale) {
+      if (markFailed(key)) {
+        log.warning("Publishing of scene " + key.getId() + " was lost, marked it as failed.");
+        failed++;
+      }
+    }
+    Metrics.add(METRIC_FAILED_SCENES, failed);
+    return failed;
+  }
+
+  /**
+   * Marks a scene as {@link SceneStatus#FAILED}, unless its publish completed meanwhile.
+   *
+   * @return whether the scene was marked.
+   */
+  private boolean markFailed(Key sceneKey) {
+    Transaction transaction = datastore.newTransaction();
+    try {
+      Entity sceneEntity = transaction.get(sceneKey);
+      if (sceneEntity == null || new Scene(sceneEntity).getStatus() != SceneStatus.PROCESSING) {
+        return false;
+      }
+      transaction.put(Entity.newBuilder(sceneEntity)
+          .set(Scene.COLUMN_STATUS, SceneStatus.FAILED.getCode())
+          .build());
+      transaction.commit();
+      return true;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Transaction;
+import com.truethat.backend.model.Emotion;
+import com.truethat.backend.model.Scene;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Proudly created by ohad on 18/09/2017.
+ * <p>
+ * Counts unique users that reacted to a {@link Scene} with each {@link Emotion}. Every counter is
+ * split into {@link #SHARDS} entities, so that reactions to popular scenes do not contend on a
+ * single entity group.
+ */
+class ReactionCounters {
+  /**
+   * Datastore kind.
+   */
+  static final String KIND = "ReactionCounterShard";
+  /**
+   * Number of shards per counter.
+   */
+  static final int SHARDS = 8;
+  /**
+   * How many times to retry an increment that failed due to contention.
+   */
+  private static final int MAX_ATTEMPTS = 3;
+  /**
+   * Datastore column names.
+   */
+  private static final String COLUMN_COUNT = "count";
+  private final Logger log = Logger.getLogger(getClass().getName());
+  private Datastore datastore;
+  private KeyFactory shardKeyFactory;
+
+  ReactionCounters(Datastore datastore) {
+    this.datastore = datastore;
+    shardKeyFactory = datastore.newKeyFactory().setKind(KIND);
+  }
+
+  /**
+   * @return name of a shard key, such as {@code 123-1-7} for the 7th shard of {@link
+   * Emotion#HAPPY} reactions to scene 123.
+   */
+  private static String shardName(long sceneId, Emotion reaction, int shard) {
+    return sceneId + "-" + reaction.getCode() + "-" + shard;
+  }
+
+  /**
+   * Counts reactions to {@code sceneId}. Callers are responsible to count each user once, see
+   * {@link UserSceneStates#record(List)}.
+   *
+   * @param sceneId  that was reacted to.
+   * @param reaction of the users.
+   * @param delta    number of reacting users.
+   */
+  void increment(long sceneId, Emotion reaction, long delta) {
+    for (int attempt = 1; ; attempt++) {
+      Key shardKey = shardKeyFactory.newKey(
+          shardName(sceneId, reaction, ThreadLocalRandom.current().nextInt(SHARDS)));
+      Transaction transaction = datastore.newTransaction();
+      try {
+        Entity shard = transaction.get(shardKey);
+        long count = shard == null ? 0 : shard.getLong(COLUMN_COUNT);
+        transaction.put(Entity.newBuilder(shardKey).set(COLUMN_COUNT, count + delta).build());
+        transaction.commit();
+        return;
+      } catch (DatastoreException e) {
+        if (attempt >= MAX_ATTEMPTS) throw e;
+        log.warning("Retrying reaction count of scene " + sceneId + ": " + e.getMessage());
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the counters of {@code sceneId} to {@code counts}, which were recounted from its
+   * events. Each counter is reset within its own transaction, and only if it differs from its
+   * current total, so that a reset does not touch counters that are already correct.
+   * <p>
+   * Events are counted outside of these transactions, and so a counter is only reset if its total
+   * is still {@code expected}, i.e. it was not incremented since its events were counted.
+   * Otherwise the reset would drop reactions that were saved meanwhile.
+   *
+   * @param sceneId  of the counters.
+   * @param counts   number of reacting users per reaction, missing reactions are reset to zero.
+   * @param expected totals of the counters, as read before their events were counted.
+   *
+   * @return how many counters were reset.
+   */
+  int reset(long sceneId, Map<Emotion, Long> counts, Map<Emotion, Long> expected) {
+    int resetCount = 0;
+    for (Emotion reaction : Emotion.values()) {
+      long count = counts.getOrDefault(reaction, 0L);
+      Key[] shardKeys = new Key[SHARDS];
+      for (int shard = 0; shard < SHARDS; shard++) {
+        shardKeys[shard] = shardKeyFactory.newKey(shardName(sceneId, reaction, shard));
+      }
+      Transaction transaction = datastore.newTransaction();
+      try {
+        long current = 0;
+        Iterator<Entity> shards = transaction.get(shardKeys);
+        while (shards.hasNext()) {
+          current += shards.next().getLong(COLUMN_COUNT);
+        }
+        if (current == count) continue;
+        if (current != expected.getOrDefault(reaction, 0L)) {
+          log.info("Skipped resetting " + reaction + " reactions to scene " + sceneId
+              + ", as they were counted meanwhile.");
+          continue;
+        }
+        log.warning("Resetting " + reaction + " reactions to scene " + sceneId + " from "
+            + current + " to " + count + ".");
+        if (count == 0) {
+          transaction.delete(shardKeys);
+        } else {
+          // The entire count goes into the first shard.
+          transaction.delete(Arrays.copyOfRange(shardKeys, 1, SHARDS));
+          transaction.put(Entity.newBuilder(shardKeys[0]).set(COLUMN_COUNT, count).build());
+        }
+        transaction.commit();
+        resetCount++;
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+    return resetCount;
+  }
+
+  /**
+   * Reads the counters of all the given scenes within a single batch get.
+   *
+   * @param sceneIds to read counters of.
+   *
+   * @return reaction counters per scene ID. Scenes without reactions are mapped to empty maps.
+   */
+  Map<Long, Map<Emotion, Long>> get(Collection<Long> sceneIds) {
+    Map<Long, Map<Emotion, Long>> countersBySceneId = new HashMap<>();
+    List<Key> shardKeys = new ArrayList<>(sceneIds.size() * Emotion.values().length * SHARDS);
+    for (Long sceneId : sceneIds) {
+      countersBySceneId.put(sceneId, new EnumMap<>(Emotion.class));
+      for (Emotion emotion : Emotion.values()) {
+        for (int shard = 0; shard < SHARDS; shard++) {
+          shardKeys.add(shardKeyFactory.newKey(shardName(sceneId, emotion, shard)));
+        }
+      }
+    }
+    if (shardKeys.isEmpty()) return countersBySceneId;
+    Iterator<Entity> shards = datastore.get(shardKeys);
+    while (shards.hasNext()) {
+      Entity shard = shards.next();
+      String[] nameParts = shard.getKey().getName().split("-");
+      Map<Emotion, Long> counters = countersBySceneId.get(Long.parseLong(nameParts[0]));
+      counters.merge(Emotion.fromCode(Integer.parseInt(nameParts[1])),
+          shard.getLong(COLUMN_COUNT), Long::sum);
+    }
+    return countersBySceneId;
+  }
+}
@@ -0,0 +1,236 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.common.annotations.VisibleForTesting;
+import com.truethat.backend.model.Scene;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.truethat.backend.servlet.TheaterServlet.DAYS_IN_STORY;
+
+/**
+ * Proudly created by ohad on 14/09/2017.
+ * <p>
+ * Process-wide index of recent {@link Scene} headers (i.e. ID, director ID and creation time),
+ * ordered by recency. It is loaded once from the datastore, kept up to date by {@link
+ * StudioServlet} and evicts scenes that are older than {@link TheaterServlet#DAYS_IN_STORY}, so
+ * that the theater does not have to scan the entire story window on each request.
+ * <p>
+ * Only ready scenes are indexed, so that pages are not cut short by scenes that are filtered out
+ * after they are fetched. Scenes that are published asynchronously are added once they are
+ * ready.
+ */
+class RecentScenesIndex {
+  /**
+   * How often to look for scenes that were saved by other instances.
+   */
+  @VisibleForTesting static final long REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  /**
+   * Scene timestamps are created by clients, and so scenes saved by other instances may appear
+   * "older" than the latest refresh. Refreshes therefore look back a bit further.
+   */
+  private static final long REFRESH_SKEW_SECONDS = TimeUnit.MINUTES.toSeconds(10);
+  private static final RecentScenesIndex INSTANCE = new RecentScenesIndex();
+  private final Logger log = Logger.getLogger(getClass().getName());
+  private final ConcurrentSkipListSet<Header> headers =
+      new ConcurrentSkipListSet<>(Header.RECENCY);
+  /**
+   * The datastore from which {@link #headers} were loaded.
+   */
+  private volatile Datastore datastore;
+  /**
+   * The datastore from which {@link #headers} are being loaded, so that scenes that are saved
+   * meanwhile are added rather than missed.
+   */
+  private volatile Datastore loadingDatastore;
+  private KeyFactory sceneKeyFactory;
+  private volatile long lastRefreshMillis;
+
+  @VisibleForTesting RecentScenesIndex() {
+  }
+
+  static RecentScenesIndex getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return timestamp of the oldest scene that is still within the story window.
+   */
+  static Timestamp storyWindowStart() {
+    return Timestamp.ofTimeSecondsAndNanos(
+        Timestamp.now().getSeconds() - TimeUnit.DAYS.toSeconds(DAYS_IN_STORY), 0);
+  }
+
+  /**
+   * Loads the index from {@code datastore}, unless it was already loaded from it.
+   *
+   * @param datastore to load scenes from.
+   */
+  void load(Datastore datastore) {
+    if (this.datastore == datastore) return;
+    synchronized (this) {
+      if (this.datastore == datastore) return;
+      headers.clear();
+      sceneKeyFactory = datastore.newKeyFactory().setKind(Scene.KIND);
+      lastRefreshMillis = System.currentTimeMillis();
+      loadingDatastore = datastore;
+      addFrom(datastore, storyWindowStart());
+      this.datastore = datastore;
+      log.info("Loaded " + headers.size() + " recent scenes.");
+    }
+  }
+
+  /**
+   * Adds a newly saved scene to the index.
+   *
+   * @param datastore in which {@code scene} was saved.
+   * @param scene     that was saved.
+   */
+  void add(Datastore datastore, Scene scene) {
+    // An index that did not start loading yet will pick up the scene once it does.
+    if (this.datastore != datastore && loadingDatastore != datastore) return;
+    addIfReady(scene);
+  }
+
+  /**
+   * @param datastore       to load the index from, if it was not loaded yet.
+   * @param excludeDirector ID of a director whose scenes should be skipped, usually the user
+   *                        that is asking for scenes.
+   * @param limit           maximum number of keys to return.
+   *
+   * @return the most recent scenes, ordered by recency.
+   */
+  Candidates recent(Datastore datastore, Long excludeDirector, int limit) {
+    load(datastore);
+    refreshIfNeeded();
+    evictExpired();
+    Candidates candidates = new Candidates(limit);
+    Iterator<Header> iterator = headers.iterator();
+    while (iterator.hasNext() && candidates.keys.size() < limit) {
+      Header header = iterator.next();
+      candidates.scanned++;
+      candidates.lastCreated = header.created;
+      candidates.lastId = header.id;
+      if (!Objects.equals(header.directorId, excludeDirector)) {
+        candidates.keys.add(sceneKeyFactory.newKey(header.id));
+      }
+    }
+    candidates.hasMore = iterator.hasNext();
+    return candidates;
+  }
+
+  @VisibleForTesting int size() {
+    return headers.size();
+  }
+
+  /**
+   * Removes headers of scenes that are no longer within the story window. Evictions may run
+   * concurrently, and so headers are polled rather than peeked, and one that is still within the
+   * window is put back.
+   */
+  private void evictExpired() {
+    Timestamp windowStart = storyWindowStart();
+    Header header;
+    while ((header = headers.pollLast()) != null) {
+      if (header.created.compareTo(windowStart) > 0) {
+        headers.add(header);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Adds scenes that were saved by other instances since the last refresh.
+   */
+  private void refreshIfNeeded() {
+    long now = System.currentTimeMillis();
+    if (now - lastRefreshMillis < REFRESH_INTERVAL_MILLIS) return;
+    synchronized (this) {
+      if (now - lastRefreshMillis < REFRESH_INTERVAL_MILLIS) return;
+      long since =
+          TimeUnit.MILLISECONDS.toSeconds(lastRefreshMillis) - REFRESH_SKEW_SECONDS;
+      lastRefreshMillis = now;
+      Timestamp windowStart = storyWindowStart();
+      addFrom(datastore, since > windowStart.getSeconds() ? Timestamp.ofTimeSecondsAndNanos(
+          since, 0) : windowStart);
+    }
+  }
+
+  private void addFrom(Datastore datastore, Timestamp createdAfter) {
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind(Scene.KIND)
+        .setFilter(PropertyFilter.gt(Scene.COLUMN_CREATED, createdAfter))
+        .build();
+    QueryResults<Entity> results = datastore.run(query);
+    while (results.hasNext()) {
+      addIfReady(new Scene(results.next()));
+    }
+  }
+
+  private void addIfReady(Scene scene) {
+    if (!scene.isReady() || scene.getId() == null || scene.getCreated() == null) return;
+    headers.add(new Header(scene.getId(), scene.getDirectorId(), scene.getCreated()));
+  }
+
+  /**
+   * Scenes picked from the index.
+   */
+  static class Candidates {
+    /**
+     * Keys of picked scenes, ordered by recency.
+     */
+    final List<Key> keys;
+    /**
+     * How many headers were scanned, including skipped ones.
+     */
+    int scanned;
+    /**
+     * Creation time and ID of the last scanned header, from which following scenes are queried.
+     */
+    Timestamp lastCreated;
+    long lastId;
+    /**
+     * Whether there are more scenes following the scanned ones.
+     */
+    boolean hasMore;
+
+    private Candidates(int limit) {
+      keys = new ArrayList<>(limit);
+    }
+  }
+
+  /**
+   * The bare minimum of a {@link Scene} that is needed to pick theater candidates.
+   */
+  private static class Header {
+    /**
+     * Newest first, and than by ID, similarly to a descending datastore sort on {@link
+     * Scene#COLUMN_CREATED}.
+     */
+    private static final Comparator<Header> RECENCY =
+        Comparator.comparing((Header header) -> header.created)
+            .reversed()
+            .thenComparing(header -> header.id);
+    private final long id;
+    private final Long directorId;
+    private final Timestamp created;
+
+    private Header(long id, Long directorId, Timestamp created) {
+      this.id = id;
+      this.directorId = directorId;
+      this.created = created;
+    }
+  }
+}
@@ -1,26 +1,26 @@
 package com.truethat.backend.servlet;
 
-import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Cursor;
 import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
 import com.google.cloud.datastore.Query;
-import com.google.cloud.datastore.StructuredQuery;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
-import com.truethat.backend.common.Util;
+import com.truethat.backend.common.WireFormat;
 import com.truethat.backend.model.Scene;
 import com.truethat.backend.model.User;
 import java.io.IOException;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import static com.truethat.backend.servlet.TheaterServlet.DAYS_IN_STORY;
 import static com.truethat.backend.servlet.TheaterServlet.isValidUser;
-import static java.util.stream.Collectors.toList;
 
 /**
  * Proudly created by ohad on 03/07/2017.
@@ -33,32 +33,45 @@ public class RepertoireServlet extends BaseServlet {
   @VisibleForTesting static final int FETCH_LIMIT = 10;
 
   /**
-   * Getting the user's repertoire, i.e. the {@link Scene}s he had created.
+   * Getting the user's repertoire, i.e. the {@link Scene}s he had created, one page at a time.
+   * Scenes are filtered by the story window and ordered by recency within the datastore (see
+   * index.yaml), and following pages are queried from the {@link #CONTINUATION_TOKEN_HEADER}
+   * cursor. Pages are tagged by {@link FeedETags}, and pages that the client already has are not
+   * sent again.
    *
    * @param req with {@link User} in its body.
    */
   @Override protected void doPost(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
     super.doPost(req, resp);
-    User user = Util.GSON.fromJson(req.getReader(), User.class);
+    User user = WireFormat.read(req, User.class);
     if (user == null) throw new IOException("Missing user");
     StringBuilder errorBuilder = new StringBuilder();
-    if (!isValidUser(this, user, errorBuilder)) {
+    if (!isValidUser(this, req, user, errorBuilder)) {
       throw new IOException("Invalid user: " + errorBuilder + ", input: " + user);
     }
-    Query<Entity> query = Query.newEntityQueryBuilder().setKind(Scene.KIND)
-        .setFilter(StructuredQuery.PropertyFilter.eq(Scene.COLUMN_DIRECTOR_ID, user.getId()))
-        .setLimit(FETCH_LIMIT)
-        .build();
-    List<Scene> scenes = Lists.newArrayList(datastore.run(query))
-        .stream()
-        .map(Scene::new)
-        .filter(scene -> Timestamp.now().getSeconds() - scene.getCreated().getSeconds()
-            < TimeUnit.DAYS.toSeconds(DAYS_IN_STORY))
-        .collect(toList());
-    scenes.sort(Comparator.comparing(Scene::getCreated).reversed());
-    scenes = scenes.subList(0, Math.min(FETCH_LIMIT, scenes.size()));
+    EntityQuery.Builder queryBuilder = Query.newEntityQueryBuilder().setKind(Scene.KIND)
+        .setFilter(CompositeFilter.and(
+            PropertyFilter.eq(Scene.COLUMN_DIRECTOR_ID, user.getId()),
+            PropertyFilter.gt(Scene.COLUMN_CREATED, RecentScenesIndex.storyWindowStart())))
+        .setOrderBy(OrderBy.desc(Scene.COLUMN_CREATED))
+        .setLimit(FETCH_LIMIT);
+    Cursor startCursor = getContinuationCursor(req);
+    if (startCursor != null) {
+      queryBuilder.setStartCursor(startCursor);
+    }
+    QueryResults<Entity> results = datastore.run(queryBuilder.build());
+    List<Scene> scenes = new ArrayList<>(FETCH_LIMIT);
+    while (results.hasNext()) {
+      scenes.add(new Scene(results.next()));
+    }
+    String nextToken =
+        scenes.size() == FETCH_LIMIT ? results.getCursorAfter().toUrlSafe() : null;
+    setContinuationToken(resp, nextToken);
+    // Scenes that are still being published have no media to show.
+    scenes.removeIf(scene -> !scene.isReady());
     enricher.enrichScenes(scenes, user);
-    resp.getWriter().print(Util.GSON.toJson(scenes));
+    if (FeedETags.notModified(req, resp, scenes, nextToken)) return;
+    WireFormat.write(req, resp, scenes);
   }
 }
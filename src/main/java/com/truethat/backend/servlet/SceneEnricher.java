@@ -4,35 +4,71 @@ import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.KeyFactory;
-import com.google.cloud.datastore.Query;
-import com.google.cloud.datastore.StructuredQuery;
-import com.google.common.collect.Lists;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.truethat.backend.common.ManagedExecutors;
 import com.truethat.backend.model.Emotion;
-import com.truethat.backend.model.EventType;
 import com.truethat.backend.model.InteractionEvent;
 import com.truethat.backend.model.Scene;
 import com.truethat.backend.model.User;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
 
-import static java.util.stream.Collectors.collectingAndThen;
-import static java.util.stream.Collectors.counting;
-import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 /**
  * Proudly created by ohad on 29/06/2017.
  */
 class SceneEnricher {
+  /**
+   * Executor of concurrent enrichment reads, its rejection policy degrades to sequential reads
+   * once it is saturated or shut down.
+   */
+  private static final ExecutorService EXECUTOR =
+      ManagedExecutors.newBoundedPool("enricher", 16, 256, ManagedExecutors.CALLER_RUNS);
+  /**
+   * Default deadline of concurrent enrichment, after which scenes are responded with whatever was
+   * read by then, see {@link #enrichScenes(List, User)}.
+   */
+  private static final long DEFAULT_DEADLINE_MILLIS = 300;
+  private final Logger log = Logger.getLogger(getClass().getName());
   Datastore datastore;
   private KeyFactory userKeyFactory;
+  private ReactionCounters reactionCounters;
+  private UserSceneStates userSceneStates;
+  /**
+   * Whether to issue the datastore reads of enrichment concurrently.
+   */
+  private boolean concurrent = Boolean.parseBoolean(System.getenv("CONCURRENT_ENRICHMENT"));
+  private long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
 
   SceneEnricher(Datastore datastore) {
     this.datastore = datastore;
     userKeyFactory = datastore.newKeyFactory().setKind(User.KIND);
+    reactionCounters = new ReactionCounters(datastore);
+    userSceneStates = new UserSceneStates(datastore);
+  }
+
+  @VisibleForTesting void setConcurrent(boolean concurrent) {
+    this.concurrent = concurrent;
+  }
+
+  @VisibleForTesting void setDeadlineMillis(long deadlineMillis) {
+    this.deadlineMillis = deadlineMillis;
   }
 
   /**
@@ -43,82 +79,121 @@ class SceneEnricher {
    */
   void enrichScenes(List<Scene> scenes,
       User user) {
-    enrichUsers(scenes);
-    enrichEvents(scenes, user);
+    if (scenes.isEmpty()) return;
+    List<Long> sceneIds = scenes.stream().map(Scene::getId).collect(toList());
+    Set<Long> directorIds = scenes.stream().map(Scene::getDirectorId).collect(toSet());
+    if (!concurrent) {
+      enrichUsers(scenes, getDirectors(directorIds));
+      enrichEvents(scenes, user, reactionCounters.get(sceneIds), getStates(user, sceneIds));
+      return;
+    }
+    // Reads are issued concurrently, and joined within the deadline.
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    Future<Map<Long, User>> directors = EXECUTOR.submit(() -> getDirectors(directorIds));
+    Future<Map<Long, UserSceneStates.State>> states =
+        EXECUTOR.submit(() -> getStates(user, sceneIds));
+    Future<Map<Long, Map<Emotion, Long>>> counters =
+        EXECUTOR.submit(() -> reactionCounters.get(sceneIds));
+    // Late directors fall back to cached ones, and late states and counters are left out.
+    enrichUsers(scenes, await(directors, deadline, "directors",
+        () -> DirectorCache.getInstance().getAllPresent(directorIds)));
+    enrichEvents(scenes, user,
+        await(counters, deadline, "reaction counters", Collections::emptyMap),
+        await(states, deadline, "user states", Collections::emptyMap));
   }
 
   /**
-   * Enriches {@link Scene}s with data of {@link Scene#director} first and last names.
+   * @param future   of an enrichment read.
+   * @param deadline of the enrichment, in {@link System#nanoTime()} terms.
+   * @param name     of the read, for logging.
+   * @param fallback to use if {@code future} did not complete by {@code deadline}.
    *
-   * @param scenes to enrichScenes
+   * @return the result of {@code future}, or of {@code fallback} if it is late.
    */
-  private void enrichUsers(List<Scene> scenes) {
-    Map<Long, List<Scene>> sceneByDirectorId = scenes.stream().collect(groupingBy(
-        Scene::getDirectorId, toList()));
-    List<Key> directorsEntitiesKeys = sceneByDirectorId.keySet()
-        .stream()
+  private <T> T await(Future<T> future, long deadline, String name, Supplier<T> fallback) {
+    try {
+      return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      log.warning("Enrichment deadline exceeded, responding without " + name + ".");
+      future.cancel(true);
+      return fallback.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Enrichment was interrupted", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * @param directorIds to fetch.
+   *
+   * @return directors by their IDs, without their private data. Directors are looked for in
+   * {@link DirectorCache} first, and only missing ones are fetched.
+   */
+  private Map<Long, User> getDirectors(Collection<Long> directorIds) {
+    Map<Long, User> directorById = new HashMap<>(DirectorCache.getInstance().getAllPresent(
+        directorIds));
+    List<Key> directorsEntitiesKeys = directorIds.stream()
+        .filter(directorId -> !directorById.containsKey(directorId))
         .map(directorId -> userKeyFactory.newKey(directorId))
         .collect(toList());
+    if (directorsEntitiesKeys.isEmpty()) return directorById;
     Iterator<Entity> directorEntities = datastore.get(directorsEntitiesKeys);
     while (directorEntities.hasNext()) {
       User director = new User(directorEntities.next());
       director.deletePrivateData();
-      for (Scene scene : sceneByDirectorId.get(director.getId())) {
-        scene.setDirector(director);
-      }
+      directorById.put(director.getId(), director);
+      DirectorCache.getInstance().put(director);
     }
+    return directorById;
+  }
+
+  private Map<Long, UserSceneStates.State> getStates(User user, List<Long> sceneIds) {
+    return user.getId() == null ? new HashMap<>() : userSceneStates.get(user.getId(), sceneIds);
   }
 
   /**
    * Enriches {@link Scene}s with data of {@link Scene#director} first and last names.
    *
-   * @param scenes to enrichScenes
-   * @param user   for which to enrichScenes the scenes.
+   * @param scenes       to enrichScenes
+   * @param directorById as fetched from datastore.
    */
-  private void enrichEvents(List<Scene> scenes, User user) {
+  private void enrichUsers(List<Scene> scenes, Map<Long, User> directorById) {
     for (Scene scene : scenes) {
-      boolean isUserDirector = Objects.equals(user.getId(), scene.getDirectorId());
-      Query<Entity> query = Query.newEntityQueryBuilder().setKind(InteractionEvent.KIND)
-          .setFilter(StructuredQuery.PropertyFilter.eq(InteractionEvent.COLUMN_SCENE_ID,
-              scene.getId())).build();
-      List<InteractionEvent> interactionEvents = Lists.newArrayList(datastore.run(query))
-          .stream()
-          .map(InteractionEvent::new)
-          .collect(toList());
-      // Calculate reaction counters
-      Map<Emotion, Long> reactionCounters = interactionEvents.parallelStream()
-          // Filter for reaction event not of the user.
-          .filter(
-              interaction -> interaction.getEventType() == EventType.REACTION
-                  && !Objects.equals(interaction.getUserId(), scene.getDirectorId()))
-          // Group by reactions
-          .collect(groupingBy(InteractionEvent::getReaction,
-              // Group by user IDs, to avoid duplicates
-              collectingAndThen(groupingBy(InteractionEvent::getUserId, counting()),
-                  userIds -> (long) userIds.keySet().size())));
-      scene.setReactionCounters(reactionCounters);
-      // Determine user reaction.
-      if (!isUserDirector) {
-        // Find a reaction event of user.
-        Optional<InteractionEvent> reactionEvent = interactionEvents.stream()
-            .filter(interaction -> Objects.equals(interaction.getUserId(), user.getId())
-                && interaction.getEventType() == EventType.REACTION)
-            .findAny();
-        reactionEvent.ifPresent(
-            interaction -> scene.setUserReaction(interaction.getReaction()));
+      User director = directorById.get(scene.getDirectorId());
+      if (director != null) {
+        scene.setDirector(director);
       }
-      // Determine whether {@code scene} was viewed by {@code user}.
+    }
+  }
+
+  /**
+   * Enriches {@link Scene}s with reaction counters, and with whether and how {@code user}
+   * interacted with them.
+   *
+   * @param scenes            to enrichScenes
+   * @param user              for which to enrichScenes the scenes.
+   * @param countersBySceneId reaction counters, scenes that are missing are left without
+   *                          counters.
+   * @param stateBySceneId    interactions of {@code user} with the scenes.
+   */
+  private void enrichEvents(List<Scene> scenes, User user,
+      Map<Long, Map<Emotion, Long>> countersBySceneId,
+      Map<Long, UserSceneStates.State> stateBySceneId) {
+    for (Scene scene : scenes) {
+      scene.setReactionCounters(countersBySceneId.get(scene.getId()));
       // if the user is the director, then mark as viewed.
-      if (isUserDirector) {
+      if (Objects.equals(user.getId(), scene.getDirectorId())) {
         scene.setViewed(true);
+        continue;
       }
-      boolean viewed = scene.isViewed();
-      if (!viewed) {
-        viewed = interactionEvents.stream()
-            .anyMatch(interaction -> Objects.equals(interaction.getUserId(), user.getId())
-                && interaction.getEventType() == EventType.VIEW);
+      UserSceneStates.State state = stateBySceneId.get(scene.getId());
+      if (state != null) {
+        scene.setUserReaction(state.reaction);
+        scene.setViewed(scene.isViewed() || state.viewed);
       }
-      scene.setViewed(viewed);
     }
   }
 }
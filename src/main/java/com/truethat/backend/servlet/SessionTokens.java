@@ -0,0 +1,155 @@
+package com.truethat.backend.servlet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.truethat.backend.common.Metrics;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Proudly created by ohad on 04/10/2017.
+ * <p>
+ * Signed session tokens that {@link AuthServlet} issues to authenticated users, so that other
+ * endpoints can tell who the user is without looking it up in the datastore. A token is of the
+ * form {@code <user ID>.<expiry in epoch millis>.<signature>}, where the signature is an
+ * HMAC-SHA256 of the former two under the {@code SESSION_SECRET} environment variable.
+ * <p>
+ * Deployed instances share the secret through their app yaml, and refuse to start without it, as
+ * otherwise each would only recognize its own tokens. Locally and in tests, a random secret is
+ * generated per process instead.
+ */
+class SessionTokens {
+  /**
+   * How long an issued token is valid.
+   */
+  @VisibleForTesting static final long TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final String SECRET_VARIABLE = "SESSION_SECRET";
+  /**
+   * Stands for the secret in the app yamls, and is replaced by the real secret upon deployment.
+   */
+  private static final String SECRET_PLACEHOLDER = "__SESSION_SECRET__";
+  private static final Logger LOG = Logger.getLogger(SessionTokens.class.getName());
+  private static final SecretKeySpec KEY =
+      new SecretKeySpec(secret(System.getenv(SECRET_VARIABLE), isDeployed()), ALGORITHM);
+  /**
+   * {@link Mac} instances are not thread safe, and are costly to create.
+   */
+  private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(KEY);
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not initialize " + ALGORITHM, e);
+    }
+  });
+
+  /**
+   * Fails startup of deployed instances that have no secret configured.
+   *
+   * @throws IllegalStateException if {@code SESSION_SECRET} is missing on a deployed instance.
+   */
+  static void requireSecret() {
+    secret(System.getenv(SECRET_VARIABLE), isDeployed());
+  }
+
+  /**
+   * @return whether running on App Engine, which sets {@code GAE_INSTANCE} on every instance.
+   */
+  private static boolean isDeployed() {
+    return !Strings.isNullOrEmpty(System.getenv("GAE_INSTANCE"));
+  }
+
+  /**
+   * @param configured secret, from the environment.
+   * @param deployed   whether running on a deployed instance.
+   *
+   * @return the key bytes to sign with.
+   *
+   * @throws IllegalStateException if {@code configured} is missing on a deployed instance.
+   */
+  @VisibleForTesting static byte[] secret(@Nullable String configured, boolean deployed) {
+    if (!Strings.isNullOrEmpty(configured) && !SECRET_PLACEHOLDER.equals(configured)) {
+      return configured.getBytes(StandardCharsets.UTF_8);
+    }
+    if (deployed) {
+      throw new IllegalStateException(
+          SECRET_VARIABLE + " is not set, session tokens would only be valid within an instance.");
+    }
+    LOG.warning(SECRET_VARIABLE + " is not set, session tokens are only valid in this process.");
+    byte[] random = new byte[32];
+    new SecureRandom().nextBytes(random);
+    return random;
+  }
+
+  private static String sign(String payload) {
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(MAC.get().doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * @param userId of an authenticated user.
+   *
+   * @return a session token of {@code userId}, that expires after {@link #TTL_MILLIS}.
+   */
+  static String issue(long userId) {
+    return issue(userId, System.currentTimeMillis() + TTL_MILLIS);
+  }
+
+  @VisibleForTesting static String issue(long userId, long expiresAtMillis) {
+    String payload = userId + "." + expiresAtMillis;
+    return payload + "." + sign(payload);
+  }
+
+  /**
+   * Verifies a token in memory.
+   *
+   * @param token to verify.
+   *
+   * @return the ID of the user that {@code token} was issued to, or {@code null} if it is
+   * malformed, forged or expired.
+   */
+  static @Nullable Long verify(@Nullable String token) {
+    if (Strings.isNullOrEmpty(token)) return null;
+    int signatureStart = token.lastIndexOf('.');
+    int expiryStart = token.indexOf('.');
+    if (expiryStart <= 0 || signatureStart <= expiryStart) return null;
+    String payload = token.substring(0, signatureStart);
+    // Compares in constant time, so that signatures cannot be guessed byte by byte.
+    if (!MessageDigest.isEqual(sign(payload).getBytes(StandardCharsets.UTF_8),
+        token.substring(signatureStart + 1).getBytes(StandardCharsets.UTF_8))) {
+      Metrics.increment("sessionTokens.invalid");
+      return null;
+    }
+    try {
+      if (Long.parseLong(token.substring(expiryStart + 1, signatureStart))
+          < System.currentTimeMillis()) {
+        Metrics.increment("sessionTokens.expired");
+        return null;
+      }
+      return Long.parseLong(token.substring(0, expiryStart));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param req that may carry a session token in its {@link BaseServlet#SESSION_TOKEN_HEADER}.
+   *
+   * @return the ID of the authenticated user, or {@code null} if the request has no valid token.
+   */
+  static @Nullable Long authenticatedUserId(HttpServletRequest req) {
+    return verify(req.getHeader(BaseServlet.SESSION_TOKEN_HEADER));
+  }
+}
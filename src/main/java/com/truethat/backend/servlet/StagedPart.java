@@ -0,0 +1,122 @@
+package com.truethat.backend.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.stream.Stream;
+import javax.servlet.http.Part;
+
+/**
+ * Proudly created by ohad on 02/10/2017.
+ * <p>
+ * A copy of a multipart {@link Part} in a temporary file, so that it can be processed after its
+ * request is complete. Callers are responsible to {@link #delete()} it, and copies that outlive
+ * their callers, such as those of a crashed instance, are deleted by {@link #deleteStale(long)}.
+ */
+public class StagedPart implements Part {
+  /**
+   * Directory of the temporary files, so that they can be told apart from other temporary files.
+   */
+  private static final Path STAGING_DIRECTORY =
+      Paths.get(System.getProperty("java.io.tmpdir"), "staged-parts");
+  private final String name;
+  private final String contentType;
+  private final Path path;
+
+  private StagedPart(String name, String contentType, Path path) {
+    this.name = name;
+    this.contentType = contentType;
+    this.path = path;
+  }
+
+  /**
+   * @param part to copy.
+   *
+   * @return a staged copy of {@code part}.
+   */
+  public static StagedPart of(Part part) throws IOException {
+    Path path = Files.createTempFile(Files.createDirectories(STAGING_DIRECTORY), "staged-",
+        ".part");
+    try (InputStream inputStream = part.getInputStream()) {
+      Files.copy(inputStream, path, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(path);
+      throw e;
+    }
+    return new StagedPart(part.getName(), part.getContentType(), path);
+  }
+
+  /**
+   * Deletes staged copies that were last modified at least {@code maxAgeMillis} ago.
+   *
+   * @return the number of deleted copies.
+   */
+  static int deleteStale(long maxAgeMillis) throws IOException {
+    if (!Files.isDirectory(STAGING_DIRECTORY)) return 0;
+    long staleBefore = System.currentTimeMillis() - maxAgeMillis;
+    int deleted = 0;
+    try (Stream<Path> paths = Files.list(STAGING_DIRECTORY)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        try {
+          if (Files.getLastModifiedTime(path).toMillis() <= staleBefore
+              && Files.deleteIfExists(path)) {
+            deleted++;
+          }
+        } catch (IOException e) {
+          // Deleted concurrently by its owner.
+        }
+      }
+    }
+    return deleted;
+  }
+
+  @Override public InputStream getInputStream() throws IOException {
+    return Files.newInputStream(path);
+  }
+
+  @Override public String getContentType() {
+    return contentType;
+  }
+
+  @Override public String getName() {
+    return name;
+  }
+
+  @Override public String getSubmittedFileName() {
+    return null;
+  }
+
+  @Override public long getSize() {
+    try {
+      return Files.size(path);
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  @Override public void write(String fileName) throws IOException {
+    Files.copy(path, Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  @Override public void delete() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  @Override public String getHeader(String name) {
+    return "content-type".equalsIgnoreCase(name) ? contentType : null;
+  }
+
+  @Override public Collection<String> getHeaders(String name) {
+    return "content-type".equalsIgnoreCase(name) ? Collections.singletonList(contentType)
+        : Collections.emptyList();
+  }
+
+  @Override public Collection<String> getHeaderNames() {
+    return Collections.singletonList("content-type");
+  }
+}
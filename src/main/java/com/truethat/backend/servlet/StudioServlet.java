@@ -1,18 +1,31 @@
 package com.truethat.backend.servlet;
 
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
 import com.google.common.annotations.VisibleForTesting;
-import com.truethat.backend.common.Util;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
+import com.google.gson.JsonObject;
+import com.truethat.backend.common.ManagedExecutors;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.common.WireFormat;
 import com.truethat.backend.model.Edge;
 import com.truethat.backend.model.Media;
 import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.SceneStatus;
 import com.truethat.backend.model.User;
 import com.truethat.backend.storage.DefaultStorageClient;
+import com.truethat.backend.storage.FileSystemStorageClient;
 import com.truethat.backend.storage.StorageClient;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
@@ -31,7 +44,32 @@ import javax.servlet.http.Part;
 @WebServlet(value = "/studio", name = "Studio")
 @MultipartConfig
 public class StudioServlet extends BaseServlet {
+  /**
+   * Executor of asynchronous publishing, its rejection policy degrades to publishing within the
+   * request once it is saturated or shut down. Publishes submit uploads to {@link
+   * #UPLOAD_EXECUTOR}, and so it is created, and therefore shut down, first. Publishes that are
+   * lost nevertheless are recovered by {@link PublishRecovery}.
+   */
+  private static final ExecutorService PUBLISH_EXECUTOR =
+      ManagedExecutors.newBoundedPool("publisher", 4, 64, ManagedExecutors.CALLER_RUNS);
+  /**
+   * Executor of media uploads, its rejection policy degrades to sequential uploads once it is
+   * saturated or shut down.
+   */
+  private static final ExecutorService UPLOAD_EXECUTOR =
+      ManagedExecutors.newBoundedPool("upload", 8, 256, ManagedExecutors.CALLER_RUNS);
+  /**
+   * Request parameter with which clients ask to publish scenes asynchronously.
+   */
+  public static final String ASYNC_PARAMETER = "async";
+  /**
+   * Request parameter of the scene whose status is looked up.
+   */
+  public static final String SCENE_ID_PARAMETER = "sceneId";
+  private final Logger log = Logger.getLogger(getClass().getName());
   private StorageClient storageClient;
+  private MediaIdPool mediaIdPool = new MediaIdPool(datastore);
+  private PhotoVariants photoVariants = new PhotoVariants(this);
   private String bucketName = System.getenv("STUDIO_BUCKET");
 
   public String getBucketName() {
@@ -51,12 +89,33 @@ public class StudioServlet extends BaseServlet {
     this.storageClient = storageClient;
   }
 
+  public PhotoVariants getPhotoVariants() {
+    return photoVariants;
+  }
+
+  public MediaIdPool getMediaIdPool() {
+    return mediaIdPool;
+  }
+
+  @Override public void setDatastore(Datastore datastore) {
+    super.setDatastore(datastore);
+    mediaIdPool = new MediaIdPool(datastore);
+  }
+
+  public ExecutorService getUploadExecutor() {
+    return UPLOAD_EXECUTOR;
+  }
+
   @Override
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
-    // Initializes storage client
+    // Initializes storage client, on the local file system when a storage root is configured.
+    String storageRoot = System.getenv("STORAGE_ROOT");
     try {
-      storageClient = new DefaultStorageClient();
+      storageClient = Strings.isNullOrEmpty(storageRoot) ? new DefaultStorageClient()
+          : new FileSystemStorageClient(Paths.get(storageRoot),
+              MoreObjects.firstNonNull(System.getenv("MEDIA_BASE_URL"),
+                  FileSystemStorageClient.DEFAULT_PUBLIC_BASE_URL));
     } catch (IOException | GeneralSecurityException e) {
       e.printStackTrace();
       throw new ServletException("Could not initialize storage client: " + e.getMessage());
@@ -69,7 +128,10 @@ public class StudioServlet extends BaseServlet {
    * {@link Scene} and its {@link Media} items.
    *
    * @param req multipart request that contains {@link Scene} metadata and {@link Media} files
-   *            parts.
+   *            parts. With {@link #ASYNC_PARAMETER} set to {@code true}, the parts are staged, the
+   *            scene is responded right away as {@link SceneStatus#PROCESSING} and it is
+   *            published in the background, see {@link #doGet(HttpServletRequest,
+   *            HttpServletResponse)}.
    */
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse resp)
@@ -79,15 +141,22 @@ public class StudioServlet extends BaseServlet {
       Part scenePart = req.getPart(Scene.SCENE_PART);
       if (scenePart == null) throw new IOException("Missing scene, how dare you?");
       Scene scene =
-          Util.GSON.fromJson(new InputStreamReader(scenePart.getInputStream()),
-              Scene.class);
+          WireFormat.read(scenePart.getContentType(), scenePart.getInputStream(), Scene.class);
       StringBuilder errorBuilder = new StringBuilder();
       if (!isValidScene(scene, errorBuilder)) {
         throw new IOException(
             "Scene is invalid: " + errorBuilder + ", input: " + scene);
       }
+      if (Boolean.parseBoolean(req.getParameter(ASYNC_PARAMETER))) {
+        List<Part> staged = scene.stage(req, this);
+        resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        WireFormat.write(req, resp, scene);
+        PUBLISH_EXECUTOR.execute(() -> publish(scene, staged));
+        return;
+      }
       scene.save(req, this);
-      resp.getWriter().print(Util.GSON.toJson(scene));
+      RecentScenesIndex.getInstance().add(datastore, scene);
+      WireFormat.write(req, resp, scene);
     } catch (Exception e) {
       e.printStackTrace();
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
@@ -99,6 +168,61 @@ public class StudioServlet extends BaseServlet {
     }
   }
 
+  /**
+   * Responds the publishing status of the scene with {@link #SCENE_ID_PARAMETER}, such as {@code
+   * {"id":123,"status":"READY"}}, so that clients of asynchronous saves can poll it.
+   */
+  @Override protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    long sceneId;
+    try {
+      sceneId = Long.parseLong(req.getParameter(SCENE_ID_PARAMETER));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid scene ID: " + req.getParameter(SCENE_ID_PARAMETER));
+    }
+    Entity sceneEntity = datastore.get(getKeyFactory(Scene.KIND).newKey(sceneId));
+    if (sceneEntity == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Scene " + sceneId + " not found.");
+      return;
+    }
+    Scene scene = new Scene(sceneEntity);
+    JsonObject status = new JsonObject();
+    status.addProperty("id", sceneId);
+    status.addProperty("status",
+        (scene.getStatus() == null ? SceneStatus.READY : scene.getStatus()).name());
+    WireFormat.write(req, resp, status);
+  }
+
+  /**
+   * Publishes a staged scene, and deletes its staged parts.
+   *
+   * @param scene  that was staged.
+   * @param staged parts of the scene media items.
+   */
+  private void publish(Scene scene, List<Part> staged) {
+    try {
+      scene.publish(staged, this);
+      RecentScenesIndex.getInstance().add(datastore, scene);
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "Failed to publish scene " + scene.getId(), e);
+      Metrics.increment("studio.failedPublishes");
+      try {
+        scene.markFailed(this);
+      } catch (RuntimeException markException) {
+        log.log(Level.SEVERE, "Failed to mark scene " + scene.getId() + " as failed.",
+            markException);
+      }
+    } finally {
+      for (Part part : staged) {
+        try {
+          part.delete();
+        } catch (IOException e) {
+          log.warning("Could not delete staged part: " + e.getMessage());
+        }
+      }
+    }
+  }
+
   /**
    * @return whether the scene has a valid data, and can be saved.
    */
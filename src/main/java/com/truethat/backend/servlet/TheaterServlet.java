@@ -1,24 +1,33 @@
 package com.truethat.backend.servlet;
 
 import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Cursor;
 import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
 import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
 import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
-import com.truethat.backend.common.Util;
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.common.WireFormat;
 import com.truethat.backend.model.Scene;
 import com.truethat.backend.model.User;
 import java.io.IOException;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toList;
 
 /**
@@ -36,12 +45,19 @@ public class TheaterServlet extends BaseServlet {
    */
   static final int DAYS_IN_STORY = 30;
 
+  /**
+   * Validates that {@code user} exists. Users with a valid session token (see {@link
+   * SessionTokens}) are validated in memory, and others are looked up in the datastore.
+   */
   @SuppressWarnings("RedundantIfStatement")
-  static boolean isValidUser(BaseServlet servlet, User user, StringBuilder errorBuilder) {
+  static boolean isValidUser(BaseServlet servlet, HttpServletRequest req, User user,
+      StringBuilder errorBuilder) {
     if (user.getId() == null) {
       errorBuilder.append("missing user ID.");
       return false;
     }
+    if (user.getId().equals(SessionTokens.authenticatedUserId(req))) return true;
+    Metrics.increment("sessionTokens.fallbackLookups");
     if (servlet.getDatastore().get(servlet.getKeyFactory(User.KIND).newKey(user.getId())) == null) {
       errorBuilder.append("user with ID ")
           .append(user.getId())
@@ -55,33 +71,154 @@ public class TheaterServlet extends BaseServlet {
     return scene.getDirector() != null;
   }
 
+  @Override public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    // Loads the recent scenes index ahead of the first request.
+    RecentScenesIndex.getInstance().load(datastore);
+  }
+
+  /**
+   * Queries the scenes that follow {@code position} in the story, in batches, as scenes that were
+   * created at the very same time as its scene are skipped until the latter is passed.
+   *
+   * @param position        after which to query.
+   * @param excludeDirector ID of a director whose scenes should be skipped.
+   * @param scenes          to add the queried scenes into, ordered by recency.
+   *
+   * @return the position of the last scanned scene if a full page was scanned, and so there may
+   * be more scenes following it, or {@code null} otherwise.
+   */
+  private @Nullable Position queryAfter(Position position, Long excludeDirector,
+      List<Scene> scenes) {
+    int scanned = 0;
+    Cursor batchCursor = null;
+    while (true) {
+      EntityQuery.Builder queryBuilder = Query.newEntityQueryBuilder().setKind(Scene.KIND)
+          .setFilter(CompositeFilter.and(
+              PropertyFilter.le(Scene.COLUMN_CREATED, position.created),
+              PropertyFilter.gt(Scene.COLUMN_CREATED, RecentScenesIndex.storyWindowStart())))
+          .setOrderBy(OrderBy.desc(Scene.COLUMN_CREATED))
+          .setLimit(FETCH_LIMIT);
+      if (batchCursor != null) {
+        queryBuilder.setStartCursor(batchCursor);
+      }
+      QueryResults<Entity> results = datastore.run(queryBuilder.build());
+      int fetched = 0;
+      while (results.hasNext()) {
+        Scene scene = new Scene(results.next());
+        fetched++;
+        if (!position.precedes(scene)) continue;
+        scanned++;
+        if (!Objects.equals(scene.getDirectorId(), excludeDirector)) {
+          scenes.add(scene);
+        }
+        if (scanned == FETCH_LIMIT) return Position.of(scene);
+      }
+      if (fetched < FETCH_LIMIT) return null;
+      batchCursor = results.getCursorAfter();
+    }
+  }
+
   /**
-   * Retrieves {@link Scene}s from the Datastore.
+   * Retrieves {@link Scene}s from the Datastore, one page at a time. The first page is picked from
+   * {@link RecentScenesIndex}, so that only the returned scenes are fetched. Following pages are
+   * queried from the {@link Position} of the last scene of the previous page, that is encoded in
+   * the {@link #CONTINUATION_TOKEN_HEADER}. Unlike a datastore cursor, a position does not depend
+   * on the query that produced the previous page, and so pages neither skip nor repeat scenes
+   * when the index and the datastore disagree.
+   * <p>
+   * Pages are tagged by {@link FeedETags}, and pages that the client already has are not sent
+   * again.
    */
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
     super.doPost(req, resp);
-    User user = Util.GSON.fromJson(req.getReader(), User.class);
+    User user = WireFormat.read(req, User.class);
     if (user == null) throw new IOException("Missing user.");
     StringBuilder errorBuilder = new StringBuilder();
-    if (!isValidUser(this, user, errorBuilder)) {
+    if (!isValidUser(this, req, user, errorBuilder)) {
       throw new IOException("Invalid user: " + errorBuilder + ", input: " + user);
     }
-    Query<Entity> query = Query.newEntityQueryBuilder().setKind(Scene.KIND)
-        .setFilter(PropertyFilter.gt(Scene.COLUMN_CREATED, Timestamp.ofTimeSecondsAndNanos(
-            Timestamp.now().getSeconds() - TimeUnit.DAYS.toSeconds(DAYS_IN_STORY), 0)))
-        .build();
-    List<Scene> scenes = Lists.newArrayList(datastore.run(query))
-        .stream()
-        .map(Scene::new)
-        .filter(scene -> !Objects.equals(scene.getDirectorId(), user.getId()))
-        .collect(toList());
-    // Sort by recency
-    scenes.sort(Comparator.comparing(Scene::getCreated).reversed());
-    scenes = scenes.subList(0, Math.min(FETCH_LIMIT, scenes.size()));
+    String startToken = getContinuationToken(req);
+    List<Scene> scenes;
+    Position nextPosition = null;
+    if (startToken == null) {
+      // The first page is picked from memory.
+      RecentScenesIndex.Candidates candidates =
+          RecentScenesIndex.getInstance().recent(datastore, user.getId(), FETCH_LIMIT);
+      // Fetch preserves the order of keys, and so the scenes remain sorted by recency.
+      scenes = datastore.fetch(candidates.keys)
+          .stream()
+          .filter(Objects::nonNull)
+          .map(Scene::new)
+          .collect(toList());
+      if (candidates.hasMore) {
+        nextPosition = new Position(candidates.lastCreated, candidates.lastId);
+      }
+    } else {
+      scenes = new ArrayList<>(FETCH_LIMIT);
+      nextPosition = queryAfter(Position.fromToken(startToken), user.getId(), scenes);
+    }
+    String nextToken = nextPosition == null ? null : nextPosition.toToken();
+    setContinuationToken(resp, nextToken);
+    // Scenes that are still being published have no media to show.
+    scenes.removeIf(scene -> !scene.isReady());
     enricher.enrichScenes(scenes, user);
     scenes = scenes.stream().filter(TheaterServlet::isValidScene).collect(toList());
-    resp.getWriter().print(Util.GSON.toJson(scenes));
+    if (FeedETags.notModified(req, resp, scenes, nextToken)) return;
+    WireFormat.write(req, resp, scenes);
+  }
+
+  /**
+   * Position of a scene in the story, which is ordered by recency and then by ID, similarly to a
+   * descending datastore sort on {@link Scene#COLUMN_CREATED}.
+   */
+  @VisibleForTesting static class Position {
+    private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+    private static final Splitter SPLITTER = Splitter.on(':');
+    private final Timestamp created;
+    private final long id;
+
+    @VisibleForTesting Position(Timestamp created, long id) {
+      this.created = created;
+      this.id = id;
+    }
+
+    private static Position of(Scene scene) {
+      return new Position(scene.getCreated(), scene.getId());
+    }
+
+    /**
+     * @param token of a position, see {@link #toToken()}.
+     *
+     * @return the position that is encoded in {@code token}.
+     */
+    @VisibleForTesting static Position fromToken(String token) throws IOException {
+      try {
+        List<String> parts = SPLITTER.splitToList(new String(ENCODING.decode(token), UTF_8));
+        if (parts.size() != 3) throw new IllegalArgumentException();
+        return new Position(Timestamp.ofTimeSecondsAndNanos(Long.parseLong(parts.get(0)),
+            Integer.parseInt(parts.get(1))), Long.parseLong(parts.get(2)));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Invalid continuation token: " + token);
+      }
+    }
+
+    /**
+     * @return an opaque, URL safe, token of this position.
+     */
+    @VisibleForTesting String toToken() {
+      return ENCODING.encode(
+          (created.getSeconds() + ":" + created.getNanos() + ":" + id).getBytes(UTF_8));
+    }
+
+    /**
+     * @return whether {@code scene} follows this position in the story.
+     */
+    @VisibleForTesting boolean precedes(Scene scene) {
+      int comparison = created.compareTo(scene.getCreated());
+      return comparison > 0 || comparison == 0 && id < scene.getId();
+    }
   }
 }
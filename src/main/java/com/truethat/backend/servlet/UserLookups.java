@@ -0,0 +1,133 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Transaction;
+import com.google.common.base.Strings;
+import com.truethat.backend.model.User;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Proudly created by ohad on 05/10/2017.
+ * <p>
+ * Uniqueness index of {@link User}s by their device ID and by their phone number. Every indexed
+ * value has an entity keyed by the value itself that points to the ID of its user, and so similar
+ * users are found with a single strongly consistent batch get rather than with property queries.
+ * Reading these entities within a transaction also serializes concurrent sign ups of the same
+ * device or phone number.
+ */
+class UserLookups {
+  /**
+   * Datastore kinds.
+   */
+  static final String DEVICE_ID_KIND = "UserByDeviceId";
+  static final String PHONE_NUMBER_KIND = "UserByPhoneNumber";
+  /**
+   * Datastore column names.
+   */
+  static final String COLUMN_USER_ID = "userId";
+  private KeyFactory deviceIdKeyFactory;
+  private KeyFactory phoneNumberKeyFactory;
+
+  UserLookups(Datastore datastore) {
+    deviceIdKeyFactory = datastore.newKeyFactory().setKind(DEVICE_ID_KIND);
+    phoneNumberKeyFactory = datastore.newKeyFactory().setKind(PHONE_NUMBER_KIND);
+  }
+
+  private static @Nullable String getString(@Nullable FullEntity<?> userEntity, String column) {
+    return userEntity != null && userEntity.contains(column) ? userEntity.getString(column) : null;
+  }
+
+  @Nullable Key deviceIdKey(@Nullable FullEntity<?> userEntity) {
+    String deviceId = getString(userEntity, User.COLUMN_DEVICE_ID);
+    return Strings.isNullOrEmpty(deviceId) ? null : deviceIdKeyFactory.newKey(deviceId);
+  }
+
+  @Nullable Key phoneNumberKey(@Nullable FullEntity<?> userEntity) {
+    String phoneNumber = getString(userEntity, User.COLUMN_PHONE_NUMBER);
+    return Strings.isNullOrEmpty(phoneNumber) ? null : phoneNumberKeyFactory.newKey(phoneNumber);
+  }
+
+  /**
+   * @return the lookup keys of the values of {@code userEntity}.
+   */
+  private Set<Key> keys(@Nullable FullEntity<?> userEntity) {
+    Set<Key> keys = new LinkedHashSet<>();
+    Key deviceIdKey = deviceIdKey(userEntity);
+    if (deviceIdKey != null) {
+      keys.add(deviceIdKey);
+    }
+    Key phoneNumberKey = phoneNumberKey(userEntity);
+    if (phoneNumberKey != null) {
+      keys.add(phoneNumberKey);
+    }
+    return keys;
+  }
+
+  /**
+   * Reads lookups within a single batch get.
+   *
+   * @return user IDs by the keys of the lookups that exist.
+   */
+  private Map<Key, Long> read(Transaction transaction, Set<Key> keys) {
+    Map<Key, Long> userIds = new HashMap<>();
+    if (keys.isEmpty()) return userIds;
+    Iterator<Entity> lookups = transaction.get(keys.toArray(new Key[keys.size()]));
+    while (lookups.hasNext()) {
+      Entity lookup = lookups.next();
+      userIds.put(lookup.getKey(), lookup.getLong(COLUMN_USER_ID));
+    }
+    return userIds;
+  }
+
+  /**
+   * Reads the lookups of the device ID and phone number of {@code userEntity}, within a single
+   * batch get.
+   *
+   * @return user IDs by the keys of the lookups that exist.
+   */
+  Map<Key, Long> read(Transaction transaction, FullEntity<?> userEntity) {
+    return read(transaction, keys(userEntity));
+  }
+
+  /**
+   * Points the lookups of {@code userEntity} at it, and removes its lookups of values it no
+   * longer has.
+   *
+   * @param transaction in which {@code userEntity} is saved.
+   * @param current     lookups that were {@link #read(Transaction, FullEntity)} within {@code
+   *                    transaction}, missing lookups of {@code userEntity} are written.
+   * @param previous    version of {@code userEntity}, {@code null} for new users.
+   * @param userEntity  that is being saved.
+   */
+  void write(Transaction transaction, Map<Key, Long> current, @Nullable FullEntity<?> previous,
+      Entity userEntity) {
+    long userId = userEntity.getKey().getId();
+    Set<Key> keys = keys(userEntity);
+    // Reads the lookups of values that were replaced, so that only those of this user are removed.
+    Set<Key> replaced = new LinkedHashSet<>(keys(previous));
+    replaced.removeAll(keys);
+    Map<Key, Long> userIds = new HashMap<>(current);
+    replaced.removeAll(current.keySet());
+    userIds.putAll(read(transaction, replaced));
+    for (Key key : keys) {
+      if (!Objects.equals(userIds.get(key), userId)) {
+        transaction.put(Entity.newBuilder(key).set(COLUMN_USER_ID, userId).build());
+      }
+    }
+    for (Key key : keys(previous)) {
+      if (!keys.contains(key) && Objects.equals(userIds.get(key), userId)) {
+        transaction.delete(key);
+      }
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.datastore.Value;
+import com.google.common.collect.Iterables;
+import com.truethat.backend.model.Emotion;
+import com.truethat.backend.model.EventType;
+import com.truethat.backend.model.InteractionEvent;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.User;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Proudly created by ohad on 20/09/2017.
+ * <p>
+ * Summarizes the {@link InteractionEvent}s of a {@link User} with a {@link Scene}, in an entity
+ * whose key is derived from both their IDs. It spares enrichment from querying events, as the
+ * states of an entire page are read within a single batch get.
+ */
+class UserSceneStates {
+  /**
+   * Datastore kind.
+   */
+  static final String KIND = "UserSceneState";
+  /**
+   * Datastore column names.
+   */
+  private static final String COLUMN_VIEWED = "viewed";
+  private static final String COLUMN_REACTION = "reaction";
+  private static final String COLUMN_REACTIONS = "reactions";
+  /**
+   * Datastore limits the number of entity groups a single transaction can touch.
+   */
+  private static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 25;
+  /**
+   * How many times to retry an update that failed due to contention.
+   */
+  private static final int MAX_ATTEMPTS = 3;
+  private final Logger log = Logger.getLogger(getClass().getName());
+  private Datastore datastore;
+  private KeyFactory keyFactory;
+
+  UserSceneStates(Datastore datastore) {
+    this.datastore = datastore;
+    keyFactory = datastore.newKeyFactory().setKind(KIND);
+  }
+
+  private Key newKey(long userId, long sceneId) {
+    return keyFactory.newKey(userId + "-" + sceneId);
+  }
+
+  /**
+   * Updates the states of the events' users and scenes, within as few transactions as possible.
+   *
+   * @param interactionEvents to record, in the order they had occurred.
+   *
+   * @return the events that are the first reaction of their user to their scene with their
+   * {@link InteractionEvent#getReaction()}.
+   */
+  List<InteractionEvent> record(List<InteractionEvent> interactionEvents) {
+    return update(interactionEvents, false).newReactions;
+  }
+
+  /**
+   * Merges events that may have never been recorded, such as those that were saved before states
+   * existed, into their states. Unlike {@link #record(List)}, the latest reaction of an existing
+   * state is kept, as the events may be older than it.
+   *
+   * @param interactionEvents to merge, in the order they had occurred.
+   *
+   * @return the number of states that were created or changed.
+   */
+  int backfill(List<InteractionEvent> interactionEvents) {
+    return update(interactionEvents, true).changed;
+  }
+
+  /**
+   * Applies events on their states, retrying transactions that failed due to contention.
+   *
+   * @param backfill whether to keep the latest reactions of existing states, see {@link
+   *                 #backfill(List)}.
+   */
+  private Updates update(List<InteractionEvent> interactionEvents, boolean backfill) {
+    Map<Key, List<InteractionEvent>> eventsByKey = new LinkedHashMap<>();
+    for (InteractionEvent interactionEvent : interactionEvents) {
+      if (interactionEvent.getEventType() == EventType.VIEW
+          || interactionEvent.getEventType() == EventType.REACTION) {
+        eventsByKey.computeIfAbsent(
+            newKey(interactionEvent.getUserId(), interactionEvent.getSceneId()),
+            key -> new ArrayList<>()).add(interactionEvent);
+      }
+    }
+    Updates updates = new Updates();
+    for (List<Key> keys : Iterables.partition(eventsByKey.keySet(),
+        MAX_ENTITY_GROUPS_PER_TRANSACTION)) {
+      for (int attempt = 1; ; attempt++) {
+        Transaction transaction = datastore.newTransaction();
+        try {
+          Map<Key, Entity> existingByKey = new HashMap<>();
+          Iterator<Entity> existing = transaction.get(keys.toArray(new Key[keys.size()]));
+          while (existing.hasNext()) {
+            Entity entity = existing.next();
+            existingByKey.put(entity.getKey(), entity);
+          }
+          List<InteractionEvent> transactionNewReactions = new ArrayList<>();
+          List<Entity> updated = new ArrayList<>(keys.size());
+          for (Key key : keys) {
+            Entity current = existingByKey.get(key);
+            Entity entity =
+                apply(key, current, eventsByKey.get(key), transactionNewReactions, backfill);
+            if (!entity.equals(current)) {
+              updated.add(entity);
+            }
+          }
+          if (!updated.isEmpty()) {
+            transaction.put(updated.toArray(new Entity[updated.size()]));
+          }
+          transaction.commit();
+          updates.newReactions.addAll(transactionNewReactions);
+          updates.changed += updated.size();
+          break;
+        } catch (DatastoreException e) {
+          // Concurrent events of the same user and scene, such as a view and a reaction, contend
+          // on its state.
+          if (attempt >= MAX_ATTEMPTS) throw e;
+          log.warning("Retrying state update of " + keys.size() + " states: " + e.getMessage());
+        } finally {
+          if (transaction.isActive()) {
+            transaction.rollback();
+          }
+        }
+      }
+    }
+    return updates;
+  }
+
+  /**
+   * @param key               of the state entity.
+   * @param existing          state entity, {@code null} if there is none yet.
+   * @param interactionEvents to apply on the state, in the order they had occurred.
+   * @param newReactions      to which new reactions are added.
+   * @param backfill          whether to keep the latest reaction of {@code existing}.
+   *
+   * @return the updated state entity.
+   */
+  private Entity apply(Key key, @Nullable Entity existing,
+      List<InteractionEvent> interactionEvents, List<InteractionEvent> newReactions,
+      boolean backfill) {
+    boolean viewed = existing != null && existing.getBoolean(COLUMN_VIEWED);
+    Long reaction = existing != null && existing.contains(COLUMN_REACTION) ? existing.getLong(
+        COLUMN_REACTION) : null;
+    List<Value<?>> reactions = existing == null ? new ArrayList<>()
+        : new ArrayList<>(existing.<Value<?>>getList(COLUMN_REACTIONS));
+    for (InteractionEvent interactionEvent : interactionEvents) {
+      if (interactionEvent.getEventType() == EventType.VIEW) {
+        viewed = true;
+      } else {
+        long reactionCode = interactionEvent.getReaction().getCode();
+        if (reactions.stream().noneMatch(value -> ((LongValue) value).get() == reactionCode)) {
+          reactions.add(LongValue.of(reactionCode));
+          newReactions.add(interactionEvent);
+        }
+        if (!backfill || existing == null || !existing.contains(COLUMN_REACTION)) {
+          reaction = reactionCode;
+        }
+      }
+    }
+    Entity.Builder builder = existing == null ? Entity.newBuilder(key) : Entity.newBuilder(existing);
+    builder.set(COLUMN_VIEWED, viewed).set(COLUMN_REACTIONS, reactions);
+    if (reaction != null) {
+      builder.set(COLUMN_REACTION, reaction);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Reads the states of a user with multiple scenes within a single batch get.
+   *
+   * @param userId   of the user to read states of.
+   * @param sceneIds to read states of.
+   *
+   * @return states by scene ID. Scenes the user did not interact with are absent.
+   */
+  Map<Long, State> get(long userId, Collection<Long> sceneIds) {
+    Map<Long, State> stateBySceneId = new HashMap<>();
+    if (sceneIds.isEmpty()) return stateBySceneId;
+    List<Key> keys = sceneIds.stream().map(sceneId -> newKey(userId, sceneId)).collect(toList());
+    Iterator<Entity> entities = datastore.get(keys);
+    while (entities.hasNext()) {
+      Entity entity = entities.next();
+      String name = entity.getKey().getName();
+      stateBySceneId.put(Long.parseLong(name.substring(name.indexOf('-') + 1)),
+          new State(entity));
+    }
+    return stateBySceneId;
+  }
+
+  /**
+   * The interactions of a user with a scene, in brief.
+   */
+  static class State {
+    /**
+     * Whether the user viewed the scene.
+     */
+    final boolean viewed;
+    /**
+     * Latest reaction of the user to the scene, {@code null} if she did not react.
+     */
+    final @Nullable Emotion reaction;
+
+    private State(Entity entity) {
+      viewed = entity.getBoolean(COLUMN_VIEWED);
+      reaction = entity.contains(COLUMN_REACTION) ? Emotion.fromCode(
+          (int) entity.getLong(COLUMN_REACTION)) : null;
+    }
+  }
+
+  /**
+   * Outcome of {@link #update(List, boolean)}.
+   */
+  private static class Updates {
+    /**
+     * Events that are the first reaction of their user to their scene with their reaction.
+     */
+    private final List<InteractionEvent> newReactions = new ArrayList<>();
+    /**
+     * Number of states that were created or changed.
+     */
+    private int changed;
+  }
+}
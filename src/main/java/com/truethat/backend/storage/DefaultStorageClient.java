@@ -1,11 +1,18 @@
 package com.truethat.backend.storage;
 
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.BucketInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.security.GeneralSecurityException;
+import javax.annotation.Nullable;
 
 /**
  * Proudly created by ohad on 28/06/2017.
@@ -28,6 +35,39 @@ public class DefaultStorageClient implements StorageClient {
         bytes, Storage.BlobTargetOption.predefinedAcl(Storage.PredefinedAcl.PUBLIC_READ));
   }
 
+  @Override public BlobInfo save(String destinationName, String contentType,
+      InputStream inputStream, String bucketName) throws IOException, GeneralSecurityException {
+    BlobInfo blobInfo =
+        BlobInfo.newBuilder(bucketName, destinationName).setContentType(contentType).build();
+    // Uploads through a resumable session, one chunk at a time.
+    try (WriteChannel writer = storage.writer(blobInfo,
+        Storage.BlobWriteOption.predefinedAcl(Storage.PredefinedAcl.PUBLIC_READ))) {
+      writer.setChunkSize(UPLOAD_CHUNK_SIZE);
+      ReadableByteChannel reader = Channels.newChannel(inputStream);
+      ByteBuffer buffer = ByteBuffer.allocate(UPLOAD_CHUNK_SIZE);
+      while (reader.read(buffer) >= 0) {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          writer.write(buffer);
+        }
+        buffer.clear();
+      }
+    }
+    return blobInfo;
+  }
+
+  @Override public @Nullable BlobInfo get(String name, String bucketName) throws IOException {
+    return storage.get(BlobId.of(bucketName, name));
+  }
+
+  @Override public InputStream read(String name, String bucketName) throws IOException {
+    return Channels.newInputStream(storage.reader(BlobId.of(bucketName, name)));
+  }
+
+  @Override public boolean delete(BlobInfo blobInfo) throws IOException {
+    return storage.delete(blobInfo.getBlobId());
+  }
+
   @Override public String getPublicLink(BlobInfo blobInfo) {
     return STORAGE_BASE_URL + blobInfo.getBucket() + "/" + blobInfo.getName();
   }
@@ -0,0 +1,137 @@
+package com.truethat.backend.storage;
+
+import com.google.cloud.storage.BlobInfo;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import javax.annotation.Nullable;
+
+/**
+ * Proudly created by ohad on 03/10/2017.
+ * <p>
+ * Stores items in a local directory tree, in which every bucket is a directory under {@link
+ * #root}, for deployments without Google storage. Items are written to a temporary file that is
+ * atomically renamed once complete, so that readers never observe partial items. Items are
+ * served by {@link com.truethat.backend.servlet.MediaServlet}.
+ */
+public class FileSystemStorageClient implements StorageClient {
+  /**
+   * Path of {@link com.truethat.backend.servlet.MediaServlet}, relative to the host.
+   */
+  public static final String DEFAULT_PUBLIC_BASE_URL = "/media/";
+  /**
+   * Name prefix of the temporary files of items that are being saved.
+   */
+  private static final String TEMP_PREFIX = ".upload-";
+  private final Path root;
+  private final String publicBaseUrl;
+
+  /**
+   * @param root          directory under which buckets are created.
+   * @param publicBaseUrl URL from which {@link com.truethat.backend.servlet.MediaServlet} serves
+   *                      {@code root}, such as {@code https://example.com/media/}.
+   */
+  public FileSystemStorageClient(Path root, String publicBaseUrl) throws IOException {
+    this.root = root.toAbsolutePath().normalize();
+    this.publicBaseUrl = publicBaseUrl.endsWith("/") ? publicBaseUrl : publicBaseUrl + "/";
+    Files.createDirectories(this.root);
+  }
+
+  /**
+   * @param root         storage root directory.
+   * @param relativePath of an item, such as {@code bucket/media/abc.jpg}.
+   *
+   * @return the path of the item, which is guaranteed to be under {@code root}.
+   *
+   * @throws FileNotFoundException if {@code relativePath} escapes {@code root}.
+   */
+  public static Path resolve(Path root, String relativePath) throws FileNotFoundException {
+    Path path = root.resolve(relativePath).normalize();
+    if (!path.startsWith(root) || path.equals(root)) {
+      throw new FileNotFoundException(relativePath);
+    }
+    return path;
+  }
+
+  /**
+   * @param path of a file under the storage root.
+   *
+   * @return whether the file is the temporary file of an item that is being saved, rather than an
+   * item.
+   */
+  public static boolean isTemporary(Path path) {
+    return path.getFileName().toString().startsWith(TEMP_PREFIX);
+  }
+
+  @Override public void addBucket(String bucketName) throws IOException {
+    Files.createDirectories(resolve(root, bucketName));
+  }
+
+  @Override public BlobInfo save(String destinationName, String contentType, byte[] bytes,
+      String bucketName) throws IOException, GeneralSecurityException {
+    return save(destinationName, contentType, new ByteArrayInputStream(bytes), bucketName);
+  }
+
+  @Override public BlobInfo save(String destinationName, String contentType,
+      InputStream inputStream, String bucketName) throws IOException, GeneralSecurityException {
+    Path destination = resolve(root, bucketName + "/" + destinationName);
+    Files.createDirectories(destination.getParent());
+    Path temp = Files.createTempFile(destination.getParent(), TEMP_PREFIX, ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        ReadableByteChannel reader = Channels.newChannel(inputStream);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(UPLOAD_CHUNK_SIZE);
+        while (reader.read(buffer) >= 0) {
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+          buffer.clear();
+        }
+        channel.force(true);
+      }
+      try {
+        Files.move(temp, destination, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, destination, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    return BlobInfo.newBuilder(bucketName, destinationName).setContentType(contentType).build();
+  }
+
+  @Override public @Nullable BlobInfo get(String name, String bucketName) throws IOException {
+    Path path = resolve(root, bucketName + "/" + name);
+    if (!Files.isRegularFile(path)) return null;
+    return BlobInfo.newBuilder(bucketName, name)
+        .setContentType(Files.probeContentType(path))
+        .build();
+  }
+
+  @Override public InputStream read(String name, String bucketName) throws IOException {
+    Path path = resolve(root, bucketName + "/" + name);
+    if (!Files.isRegularFile(path)) throw new FileNotFoundException(bucketName + "/" + name);
+    return Files.newInputStream(path);
+  }
+
+  @Override public boolean delete(BlobInfo blobInfo) throws IOException {
+    return Files.deleteIfExists(resolve(root, blobInfo.getBucket() + "/" + blobInfo.getName()));
+  }
+
+  @Override public String getPublicLink(BlobInfo blobInfo) {
+    return publicBaseUrl + blobInfo.getBucket() + "/" + blobInfo.getName();
+  }
+}
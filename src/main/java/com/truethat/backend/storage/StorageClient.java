@@ -2,7 +2,9 @@ package com.truethat.backend.storage;
 
 import com.google.cloud.storage.BlobInfo;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.GeneralSecurityException;
+import javax.annotation.Nullable;
 
 /**
  * Proudly created by ohad on 28/06/2017.
@@ -12,6 +14,11 @@ public interface StorageClient {
    * Base google storage URL for public data.
    */
   String STORAGE_BASE_URL = "https://storage.googleapis.com/";
+  /**
+   * Size of the chunks in which streamed uploads are written, so that upload memory does not
+   * depend on the uploaded file size.
+   */
+  int UPLOAD_CHUNK_SIZE = 256 * 1024;
 
   void addBucket(String bucketName) throws IOException;
 
@@ -29,6 +36,45 @@ public interface StorageClient {
       throws IOException,
       GeneralSecurityException;
 
+  /**
+   * Streams data to a bucket in chunks of {@link #UPLOAD_CHUNK_SIZE}, and makes it publicly
+   * available. The stream is read to its end, but not closed.
+   *
+   * @param destinationName the name of the destination object.
+   * @param contentType     the MIME type of the data.
+   * @param inputStream     the file to upload.
+   * @param bucketName      the name of the bucket to create the object in.
+   *
+   * @return the saved object
+   */
+  BlobInfo save(String destinationName, String contentType, InputStream inputStream,
+      String bucketName) throws IOException, GeneralSecurityException;
+
+  /**
+   * @param name       of the storage item.
+   * @param bucketName the name of the bucket to look in.
+   *
+   * @return the storage item, or {@code null} if it does not exist.
+   */
+  @Nullable BlobInfo get(String name, String bucketName) throws IOException;
+
+  /**
+   * @param name       of the storage item.
+   * @param bucketName the name of the bucket in which the item is stored.
+   *
+   * @return a stream of the item content, that the caller should close.
+   */
+  InputStream read(String name, String bucketName) throws IOException;
+
+  /**
+   * Deletes a storage item, such as one that was uploaded as part of a failed save.
+   *
+   * @param blobInfo of the storage item.
+   *
+   * @return whether the item was found and deleted.
+   */
+  boolean delete(BlobInfo blobInfo) throws IOException;
+
   /**
    * @param blobInfo of a storage item.
    *
@@ -0,0 +1,125 @@
+package com.truethat.backend.benchmark;
+
+import com.google.cloud.Timestamp;
+import com.google.common.io.CharStreams;
+import com.truethat.backend.common.JsonResponses;
+import com.truethat.backend.common.Util;
+import com.truethat.backend.model.Edge;
+import com.truethat.backend.model.Emotion;
+import com.truethat.backend.model.Media;
+import com.truethat.backend.model.Photo;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.User;
+import com.truethat.backend.model.Video;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Proudly created by ohad on 06/10/2017.
+ * <p>
+ * Compares building a response body as a {@link String} against streaming it with {@link
+ * JsonResponses}, for pages of enriched theater scenes. Run with {@code -prof gc} to compare
+ * allocation rates:
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+ *   java -cp target/test-classes:target/backend-1.1.0/WEB-INF/classes:$(cat target/classpath.txt) \
+ *       org.openjdk.jmh.Main JsonResponseBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonResponseBenchmark {
+  /**
+   * Scenes per response, the theater responds up to 10.
+   */
+  @Param({"1", "10"}) private int sceneCount;
+  private List<Scene> scenes;
+  private HttpServletResponse response;
+
+  /**
+   * @return a response that discards its body, so that only serialization is measured.
+   */
+  private static HttpServletResponse discardingResponse() {
+    HttpServletResponse unsupported = (HttpServletResponse) Proxy.newProxyInstance(
+        HttpServletResponse.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+        (proxy, method, args) -> {
+          throw new UnsupportedOperationException(method.getName());
+        });
+    PrintWriter writer = new PrintWriter(CharStreams.nullWriter());
+    return new HttpServletResponseWrapper(unsupported) {
+      @Override public PrintWriter getWriter() {
+        return writer;
+      }
+
+      @Override public void setContentType(String type) {
+      }
+
+      @Override public void setCharacterEncoding(String charset) {
+      }
+
+      @Override public void setContentLength(int length) {
+      }
+    };
+  }
+
+  @Setup public void setUp() {
+    scenes = new ArrayList<>(sceneCount);
+    for (int i = 0; i < sceneCount; i++) {
+      User director = new User("device-" + i, "+1123456789" + i, "director", "number " + i,
+          Timestamp.now());
+      director.setId((long) i);
+      List<Media> mediaNodes = Arrays.asList(
+          new Photo(3L * i, "https://storage.googleapis.com/truethat/media/" + i + "-0.jpg"),
+          new Video(3L * i + 1, "https://storage.googleapis.com/truethat/media/" + i + "-1.mp4"),
+          new Photo(3L * i + 2, "https://storage.googleapis.com/truethat/media/" + i + "-2.jpg"));
+      List<Edge> edges = Arrays.asList(new Edge(3L * i, 3L * i + 1, Emotion.HAPPY),
+          new Edge(3L * i, 3L * i + 2, Emotion.DISGUST));
+      Scene scene = new Scene(director, Timestamp.now(), mediaNodes, edges);
+      scene.setId((long) i);
+      Map<Emotion, Long> reactionCounters = new EnumMap<>(Emotion.class);
+      for (Emotion emotion : Emotion.values()) {
+        reactionCounters.put(emotion, 1000L + i);
+      }
+      scene.setReactionCounters(reactionCounters);
+      scene.setUserReaction(Emotion.HAPPY);
+      scene.setViewed(true);
+      scenes.add(scene);
+    }
+    response = discardingResponse();
+  }
+
+  /**
+   * The previous path, that builds the whole body first.
+   */
+  @Benchmark public void toJsonString() throws IOException {
+    response.getWriter().print(Util.GSON.toJson(scenes));
+  }
+
+  @Benchmark public void streamed() throws IOException {
+    JsonResponses.write(response, scenes);
+  }
+}
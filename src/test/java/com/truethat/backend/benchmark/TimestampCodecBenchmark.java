@@ -0,0 +1,103 @@
+package com.truethat.backend.benchmark;
+
+import com.google.cloud.Timestamp;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.truethat.backend.common.TimestampTypeAdapter;
+import com.truethat.backend.common.Util;
+import java.lang.reflect.Type;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Proudly created by ohad on 07/10/2017.
+ * <p>
+ * Compares the throughput of {@link TimestampTypeAdapter} against the synchronized adapter it had
+ * replaced, when all threads share a single {@link Gson}, as they share {@link Util#GSON}. Runs
+ * on all cores by default, compare with a single thread to see how each scales:
+ * <pre>
+ *   java -cp ... org.openjdk.jmh.Main TimestampCodecBenchmark -t 1
+ *   java -cp ... org.openjdk.jmh.Main TimestampCodecBenchmark -t max
+ * </pre>
+ * See {@link JsonResponseBenchmark} for the class path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class TimestampCodecBenchmark {
+  private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+  private static final Timestamp TIMESTAMP = Timestamp.ofTimeMicroseconds(1507379696789000L);
+  private static final String JSON = "\"2017-10-07T12:34:56.789+0000\"";
+  private final Gson synchronizedGson = new GsonBuilder()
+      .registerTypeAdapter(Timestamp.class, new SynchronizedAdapter())
+      .create();
+  private final Gson gson = Util.GSON;
+
+  @Benchmark public String serialize_synchronized() {
+    return synchronizedGson.toJson(TIMESTAMP);
+  }
+
+  @Benchmark public String serialize() {
+    return gson.toJson(TIMESTAMP);
+  }
+
+  @Benchmark public Timestamp deserialize_synchronized() {
+    return synchronizedGson.fromJson(JSON, Timestamp.class);
+  }
+
+  @Benchmark public Timestamp deserialize() {
+    return gson.fromJson(JSON, Timestamp.class);
+  }
+
+  /**
+   * The adapter that {@link TimestampTypeAdapter} had replaced, which guards a shared {@link
+   * SimpleDateFormat}.
+   */
+  private static class SynchronizedAdapter
+      implements JsonSerializer<Timestamp>, JsonDeserializer<Timestamp> {
+    private final DateFormat dateFormat = new SimpleDateFormat(PATTERN, Locale.US);
+
+    private SynchronizedAdapter() {
+      dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override public synchronized JsonPrimitive serialize(Timestamp timestamp,
+        Type type, JsonSerializationContext context) {
+      return new JsonPrimitive(dateFormat.format(Util.timestampToDate(timestamp)));
+    }
+
+    @Override public synchronized Timestamp deserialize(JsonElement jsonElement,
+        Type type, JsonDeserializationContext context) {
+      try {
+        return Timestamp.of(dateFormat.parse(jsonElement.getAsString()));
+      } catch (ParseException e) {
+        throw new JsonParseException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package com.truethat.backend.common;
+
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import com.truethat.backend.model.Edge;
+import com.truethat.backend.model.Emotion;
+import com.truethat.backend.model.EventType;
+import com.truethat.backend.model.InteractionEvent;
+import com.truethat.backend.model.Media;
+import com.truethat.backend.model.Photo;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.User;
+import com.truethat.backend.model.Video;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Proudly created by ohad on 09/10/2017.
+ */
+public class CborTest {
+  private static byte[] toCbor(Object src) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // A tiny buffer, so that spilling is exercised.
+    CborWriter writer = new CborWriter(out, new byte[7]);
+    writer.setSerializeNulls(false);
+    Util.GSON.toJson(src, src.getClass(), writer);
+    writer.flush();
+    return out.toByteArray();
+  }
+
+  private static <T> T fromCbor(byte[] bytes, Type type) throws Exception {
+    return Util.GSON.fromJson(new CborReader(new ByteArrayInputStream(bytes)), type);
+  }
+
+  private static byte[] hex(String hex) {
+    return BaseEncoding.base16().lowerCase().decode(hex);
+  }
+
+  private static void assertRoundTrip(Object src) throws Exception {
+    byte[] cbor = toCbor(src);
+    Object read = fromCbor(cbor, src.getClass());
+    assertEquals(src, read);
+    String json = Util.GSON.toJson(src);
+    assertEquals(json, Util.GSON.toJson(read));
+    assertTrue(cbor.length + " bytes of CBOR, " + json.length() + " of JSON",
+        cbor.length < json.getBytes(StandardCharsets.UTF_8).length);
+  }
+
+  @Test public void roundTrip_scene() throws Exception {
+    Photo photo = new Photo(1L, "https://photo.com");
+    photo.setVariants(ImmutableMap.of(160, "https://photo.com/160"));
+    Scene scene = new Scene(new User("my-iPhone", "+1123456789", "elon", "musk",
+        Timestamp.ofTimeMicroseconds(1507500000123000L)),
+        Timestamp.ofTimeMicroseconds(1507500001000000L),
+        Arrays.asList(photo, new Video(2L, "https://video.com")),
+        Collections.singletonList(new Edge(1L, 2L, Emotion.HAPPY)));
+    assertRoundTrip(scene);
+    Scene[] scenes = {scene, scene};
+    assertArrayEquals(scenes, fromCbor(toCbor(scenes), Scene[].class));
+  }
+
+  @Test public void roundTrip_interactionEvent() throws Exception {
+    assertRoundTrip(new InteractionEvent(1L, 2L, Timestamp.ofTimeMicroseconds(1507500000123000L),
+        EventType.REACTION, Emotion.DISGUST, 3L));
+  }
+
+  @Test public void roundTrip_media() throws Exception {
+    Media media = fromCbor(toCbor(new Video(4L, "https://video.com")), Media.class);
+    assertEquals(new Video(4L, "https://video.com"), media);
+  }
+
+  @Test public void write_encoding() throws Exception {
+    // Examples of RFC 7049, appendix A.
+    assertArrayEquals(hex("00"), toCbor(0));
+    assertArrayEquals(hex("17"), toCbor(23));
+    assertArrayEquals(hex("1818"), toCbor(24));
+    assertArrayEquals(hex("1903e8"), toCbor(1000));
+    assertArrayEquals(hex("1b000000e8d4a51000"), toCbor(1000000000000L));
+    assertArrayEquals(hex("3863"), toCbor(-100));
+    assertArrayEquals(hex("fa3fc00000"), toCbor(1.5));
+    assertArrayEquals(hex("fb3ff199999999999a"), toCbor(1.1));
+    assertArrayEquals(hex("f5"), toCbor(true));
+    assertArrayEquals(hex("6449455446"), toCbor("IETF"));
+    assertArrayEquals(hex("9f010203ff"), toCbor(new int[] {1, 2, 3}));
+    assertArrayEquals(hex("bf616101ff"), toCbor(ImmutableMap.of("a", 1)));
+  }
+
+  @Test public void write_timestamp() throws Exception {
+    // Tag 1, followed by seconds since epoch.
+    assertArrayEquals(hex("c11a59da4f20"),
+        toCbor(Timestamp.ofTimeMicroseconds(1507479328000000L)));
+    assertEquals(Timestamp.ofTimeMicroseconds(1507479328001000L),
+        fromCbor(toCbor(Timestamp.ofTimeMicroseconds(1507479328001000L)), Timestamp.class));
+  }
+
+  @Test public void write_nullsOmitted() throws Exception {
+    // User has no names, and so they are omitted as in JSON.
+    User user = new User("my-iPhone", null, null, null, null);
+    User read = fromCbor(toCbor(user), User.class);
+    assertEquals(user, read);
+    assertNull(read.getFirstName());
+  }
+
+  @Test public void read_definiteLengthsAndHalfFloats() throws Exception {
+    // {"a": [1, -2.5 as a half float], "b": "s"}
+    Map<String, Object> map = fromCbor(hex("a2616182" + "01f9c100" + "61626173"),
+        new TypeToken<Map<String, Object>>() {
+        }.getType());
+    assertEquals(ImmutableMap.of("a", Arrays.asList(1.0, -2.5), "b", "s"), map);
+  }
+
+  @Test public void read_mapKeys() throws Exception {
+    // {"160": "s", "320": "a"}
+    Map<Integer, String> map = fromCbor(hex("bf633136306173633332306161ff"),
+        new TypeToken<Map<Integer, String>>() {
+        }.getType());
+    assertEquals(ImmutableMap.of(160, "s", 320, "a"), map);
+    Map<Emotion, Long> counters = fromCbor(toCbor(ImmutableMap.of(Emotion.HAPPY, 3L)),
+        new TypeToken<Map<Emotion, Long>>() {
+        }.getType());
+    assertEquals(ImmutableMap.of(Emotion.HAPPY, 3L), counters);
+  }
+
+  @Test(expected = JsonSyntaxException.class)
+  public void read_nonTextMapKeysRejected() throws Exception {
+    // {160: "s"}
+    fromCbor(hex("a118a06173"), new TypeToken<Map<Integer, String>>() {
+    }.getType());
+  }
+
+  @Test(expected = MalformedJsonException.class)
+  public void read_textTooLong() throws Exception {
+    // Declares 2^31 - 1 bytes of text, yet holds a single one.
+    new CborReader(new ByteArrayInputStream(hex("7a7fffffff61"))).nextString();
+  }
+
+  @Test public void read_skipsUnknownFields() throws Exception {
+    // {"unknown": [{"a": "b"}], "type": "Photo", "id": 1}
+    Photo photo = fromCbor(hex("bf67756e6b6e6f776e9fbf61616162ffff647479706565"
+        + "50686f746f626964" + "01ff"), Photo.class);
+    assertEquals(new Photo(1L, null), photo);
+  }
+
+  @Test public void read_chunkedText() throws Exception {
+    CborReader reader = new CborReader(new ByteArrayInputStream(hex("7f62616263626364ff")));
+    assertEquals("abbcd", reader.nextString());
+    assertEquals(JsonToken.END_DOCUMENT, reader.peek());
+  }
+
+  @Test public void read_empty() throws Exception {
+    assertNull(fromCbor(new byte[0], User.class));
+  }
+}
@@ -0,0 +1,73 @@
+package com.truethat.backend.common;
+
+import com.google.cloud.Timestamp;
+import com.google.common.base.Strings;
+import com.truethat.backend.model.Photo;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.User;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Proudly created by ohad on 06/10/2017.
+ */
+public class JsonResponsesTest {
+  @Mock private HttpServletResponse mockResponse;
+  private StringWriter responseWriter;
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    responseWriter = new StringWriter();
+    when(mockResponse.getWriter()).thenReturn(new PrintWriter(responseWriter));
+  }
+
+  @Test public void write() throws Exception {
+    Scene scene = new Scene(new User("my-iPhone", "+1123456789", "elon", "musk", Timestamp.now()),
+        Timestamp.now(), Collections.singletonList(new Photo(1L, "https://photo.com")),
+        Collections.emptyList());
+    JsonResponses.write(mockResponse, scene);
+    String expected = Util.GSON.toJson(scene);
+    assertEquals(expected, responseWriter.toString());
+    verify(mockResponse).setContentLength(expected.getBytes(StandardCharsets.UTF_8).length);
+    verify(mockResponse).setCharacterEncoding("UTF-8");
+  }
+
+  @Test public void write_contentLengthInBytes() throws Exception {
+    User user = new User(null, null, "שלום", "עולם", Timestamp.now());
+    JsonResponses.write(mockResponse, user);
+    String expected = Util.GSON.toJson(user);
+    assertEquals(expected, responseWriter.toString());
+    verify(mockResponse).setContentLength(expected.getBytes(StandardCharsets.UTF_8).length);
+  }
+
+  @Test public void write_null() throws Exception {
+    JsonResponses.write(mockResponse, null);
+    assertEquals("null", responseWriter.toString());
+  }
+
+  @Test public void write_streamed() throws Exception {
+    // Larger than the buffer, and so it is streamed without a Content-Length.
+    User user = new User(null, null, Strings.repeat("a", JsonResponses.BUFFER_SIZE * 2 + 1),
+        "b", Timestamp.now());
+    JsonResponses.write(mockResponse, user);
+    assertEquals(Util.GSON.toJson(user), responseWriter.toString());
+    verify(mockResponse, never()).setContentLength(anyInt());
+    // The buffer is reused by following responses.
+    setUp();
+    JsonResponses.write(mockResponse, Collections.singletonList(1));
+    assertEquals("[1]", responseWriter.toString());
+  }
+}
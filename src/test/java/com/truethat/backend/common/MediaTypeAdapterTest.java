@@ -0,0 +1,62 @@
+package com.truethat.backend.common;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonParseException;
+import com.truethat.backend.model.Media;
+import com.truethat.backend.model.Photo;
+import com.truethat.backend.model.Video;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Proudly created by ohad on 08/10/2017.
+ */
+public class MediaTypeAdapterTest {
+  private static final String PHOTO_JSON =
+      "{\"type\":\"Photo\",\"url\":\"https://a.com/\\u003cb\\u003e\",\"variants\":{\"160\":\"s\"},"
+          + "\"id\":1}";
+
+  @Test public void write() throws Exception {
+    Photo photo = new Photo(1L, "https://a.com/<b>");
+    photo.setVariants(ImmutableMap.of(160, "s"));
+    // The field order of reflective serialization is kept.
+    assertEquals(PHOTO_JSON, Util.GSON.toJson(photo));
+    assertEquals(PHOTO_JSON, Util.GSON.toJson(photo, Media.class));
+    assertEquals("{\"type\":\"Video\"}", Util.GSON.toJson(new Video(null, null)));
+  }
+
+  @Test public void read() throws Exception {
+    Media media = Util.GSON.fromJson(PHOTO_JSON, Media.class);
+    assertEquals(new Photo(1L, "https://a.com/<b>"), media);
+    assertEquals(ImmutableMap.of(160, "s"), media.getVariants());
+  }
+
+  @Test public void read_anyFieldOrder() throws Exception {
+    Video video = Util.GSON.fromJson(
+        "{\"id\":2,\"unknown\":{\"a\":[1]},\"url\":\"https://b.com\",\"type\":\"Video\"}",
+        Video.class);
+    assertEquals(new Video(2L, "https://b.com"), video);
+    assertNull(video.getVariants());
+  }
+
+  @Test public void read_subtypeMismatch() throws Exception {
+    try {
+      Util.GSON.fromJson("{\"type\":\"Video\"}", Photo.class);
+    } catch (JsonParseException e) {
+      assertTrue(e.getMessage().contains("Photo"));
+      return;
+    }
+    throw new AssertionError("A video should not be read as a photo.");
+  }
+
+  @Test(expected = JsonParseException.class) public void read_missingType() throws Exception {
+    Util.GSON.fromJson("{\"id\":2}", Media.class);
+  }
+
+  @Test(expected = JsonParseException.class) public void read_unknownType() throws Exception {
+    Util.GSON.fromJson("{\"type\":\"Hologram\"}", Media.class);
+  }
+}
@@ -0,0 +1,38 @@
+package com.truethat.backend.common;
+
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Proudly created by ohad on 25/09/2017.
+ */
+public class MetricsTest {
+  @Before public void setUp() throws Exception {
+    Metrics.resetCounters();
+  }
+
+  @Test public void counters() throws Exception {
+    Metrics.increment("test.counter");
+    Metrics.add("test.counter", 2);
+    assertEquals(3L, Metrics.snapshot().get("test.counter"));
+  }
+
+  @Test public void latencies() throws Exception {
+    Metrics.recordLatency("test.latency", TimeUnit.MILLISECONDS.toNanos(1));
+    Metrics.recordLatency("test.latency", TimeUnit.MILLISECONDS.toNanos(3));
+    SortedMap<String, Number> snapshot = Metrics.snapshot();
+    assertEquals(2L, snapshot.get("test.latency.count"));
+    assertEquals(4000L, snapshot.get("test.latency.totalMicros"));
+    assertEquals(3000L, snapshot.get("test.latency.maxMicros"));
+  }
+
+  @Test public void gauges() throws Exception {
+    Metrics.registerGauge("test.gauge", () -> 42);
+    SortedMap<String, Number> snapshot = Metrics.snapshot();
+    assertEquals(42, snapshot.get("test.gauge"));
+  }
+}
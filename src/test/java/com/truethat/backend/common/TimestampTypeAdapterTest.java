@@ -0,0 +1,69 @@
+package com.truethat.backend.common;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Proudly created by ohad on 07/10/2017.
+ */
+public class TimestampTypeAdapterTest {
+  /**
+   * 2017-10-07T12:34:56.789+0000
+   */
+  private static final long MILLIS = 1507379696789L;
+  private DateFormat dateFormat;
+
+  @Before public void setUp() throws Exception {
+    dateFormat = new SimpleDateFormat(TimestampTypeAdapter.PATTERN, Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  @Test public void format() throws Exception {
+    assertEquals("1970-01-01T00:00:00.000+0000", TimestampTypeAdapter.format(0));
+    assertEquals("2017-10-07T12:34:56.789+0000", TimestampTypeAdapter.format(MILLIS));
+    // Leap day.
+    assertEquals("2016-02-29T23:59:59.999+0000",
+        TimestampTypeAdapter.format(1456790399999L));
+  }
+
+  @Test public void format_matchesDateFormat() throws Exception {
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      // Up to year 2286.
+      long millis = (long) (random.nextDouble() * 1e13);
+      assertEquals(dateFormat.format(new Date(millis)), TimestampTypeAdapter.format(millis));
+    }
+    assertEquals(dateFormat.format(new Date(-1)), TimestampTypeAdapter.format(-1));
+  }
+
+  @Test public void parse() throws Exception {
+    assertEquals(MILLIS, TimestampTypeAdapter.parse("2017-10-07T12:34:56.789+0000"));
+    assertEquals(MILLIS, TimestampTypeAdapter.parse("2017-10-07T14:34:56.789+0200"));
+    assertEquals(MILLIS, TimestampTypeAdapter.parse("2017-10-07T07:04:56.789-0530"));
+    assertEquals(MILLIS, TimestampTypeAdapter.parse("2017-10-07T14:34:56.789+02:00"));
+    assertEquals(MILLIS, TimestampTypeAdapter.parse("2017-10-07T12:34:56.789Z"));
+    assertEquals(-1, TimestampTypeAdapter.parse("1969-12-31T23:59:59.999+0000"));
+  }
+
+  @Test public void parse_matchesDateFormat() throws Exception {
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      long millis = (long) (random.nextDouble() * 1e13);
+      String formatted = dateFormat.format(new Date(millis));
+      assertEquals(millis, TimestampTypeAdapter.parse(formatted));
+    }
+  }
+
+  @Test(expected = ParseException.class) public void parse_invalid() throws Exception {
+    TimestampTypeAdapter.parse("2017-10-07 12:34");
+  }
+}
@@ -9,7 +9,7 @@ import java.io.InputStream;
 import java.util.Date;
 import org.junit.Test;
 
-import static com.truethat.backend.external.RuntimeTypeAdapterFactory.TYPE_FIELD_NAME;
+import static com.truethat.backend.common.MediaTypeAdapter.TYPE_FIELD_NAME;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
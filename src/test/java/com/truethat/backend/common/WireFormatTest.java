@@ -0,0 +1,129 @@
+package com.truethat.backend.common;
+
+import com.google.cloud.Timestamp;
+import com.truethat.backend.model.User;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Proudly created by ohad on 09/10/2017.
+ */
+public class WireFormatTest {
+  private static final User USER =
+      new User("my-iPhone", "+1123456789", "elon", "musk", Timestamp.ofTimeMicroseconds(1000L));
+  @Mock private HttpServletRequest mockRequest;
+  @Mock private HttpServletResponse mockResponse;
+  private ByteArrayOutputStream responseBytes;
+  private StringWriter responseWriter;
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    responseBytes = new ByteArrayOutputStream();
+    responseWriter = new StringWriter();
+    when(mockResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override public boolean isReady() {
+        return true;
+      }
+
+      @Override public void setWriteListener(WriteListener writeListener) {
+      }
+
+      @Override public void write(int b) throws IOException {
+        responseBytes.write(b);
+      }
+    });
+    when(mockResponse.getWriter()).thenReturn(new PrintWriter(responseWriter));
+  }
+
+  private WireFormat ofAccept(String accept) {
+    when(mockRequest.getHeader("Accept")).thenReturn(accept);
+    return WireFormat.ofResponse(mockRequest);
+  }
+
+  @Test public void ofResponse() throws Exception {
+    assertEquals(WireFormat.JSON, WireFormat.ofResponse(mockRequest));
+    assertEquals(WireFormat.JSON, ofAccept("*/*"));
+    assertEquals(WireFormat.JSON, ofAccept("application/json"));
+    assertEquals(WireFormat.CBOR, ofAccept("application/cbor"));
+    assertEquals(WireFormat.CBOR, ofAccept("Application/CBOR, */*;q=0.1"));
+    assertEquals(WireFormat.CBOR, ofAccept("application/json;q=0.5, application/cbor"));
+    // JSON is preferred on a tie.
+    assertEquals(WireFormat.JSON, ofAccept("application/cbor, application/json"));
+    assertEquals(WireFormat.JSON, ofAccept("application/cbor;q=0"));
+    assertEquals(WireFormat.JSON, ofAccept("application/cbor;q=oops"));
+  }
+
+  @Test public void ofContentType() throws Exception {
+    assertEquals(WireFormat.JSON, WireFormat.ofContentType(null));
+    assertEquals(WireFormat.JSON, WireFormat.ofContentType("application/json; charset=UTF-8"));
+    assertEquals(WireFormat.CBOR, WireFormat.ofContentType("application/cbor"));
+  }
+
+  @Test public void write_json() throws Exception {
+    WireFormat.write(mockRequest, mockResponse, USER);
+    assertEquals(Util.GSON.toJson(USER), responseWriter.toString());
+    verify(mockResponse).addHeader("Vary", "Accept");
+    verify(mockResponse, never()).getOutputStream();
+  }
+
+  @Test public void write_cbor() throws Exception {
+    when(mockRequest.getHeader("Accept")).thenReturn("application/cbor");
+    WireFormat.write(mockRequest, mockResponse, USER);
+    verify(mockResponse).setContentType("application/cbor");
+    verify(mockResponse).setContentLength(responseBytes.size());
+    verify(mockResponse).addHeader("Vary", "Accept");
+    verify(mockResponse, never()).getWriter();
+    User read = Util.GSON.fromJson(
+        new CborReader(new ByteArrayInputStream(responseBytes.toByteArray())), User.class);
+    assertEquals(USER, read);
+    assertEquals(USER.getJoined(), read.getJoined());
+  }
+
+  @Test public void read() throws Exception {
+    when(mockRequest.getReader()).thenReturn(
+        new BufferedReader(new StringReader(Util.GSON.toJson(USER))));
+    assertEquals(USER, WireFormat.read(mockRequest, User.class));
+    // CBOR requests are read from their input stream.
+    when(mockRequest.getHeader("Accept")).thenReturn("application/cbor");
+    WireFormat.write(mockRequest, mockResponse, USER);
+    ByteArrayInputStream body = new ByteArrayInputStream(responseBytes.toByteArray());
+    when(mockRequest.getContentType()).thenReturn("application/cbor");
+    when(mockRequest.getInputStream()).thenReturn(new ServletInputStream() {
+      @Override public boolean isFinished() {
+        return body.available() == 0;
+      }
+
+      @Override public boolean isReady() {
+        return true;
+      }
+
+      @Override public void setReadListener(ReadListener readListener) {
+      }
+
+      @Override public int read() throws IOException {
+        return body.read();
+      }
+    });
+    assertEquals(USER, WireFormat.read(mockRequest, User.class));
+  }
+}
@@ -1,6 +1,7 @@
 package com.truethat.backend.servlet;
 
 import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
 import com.google.cloud.datastore.Query;
 import com.google.common.collect.Lists;
 import com.truethat.backend.common.Util;
@@ -8,13 +9,17 @@ import com.truethat.backend.model.User;
 import java.io.IOException;
 import java.util.List;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import static com.truethat.backend.common.TestUtil.toBufferedReader;
 import static java.util.stream.Collectors.toList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -36,6 +41,14 @@ public class AuthServletTest extends BaseServletTestSuite {
     assertEquals(defaultUser, respondedUser);
   }
 
+  @Test
+  public void createUser_sessionToken() throws Exception {
+    saveUser(defaultUser);
+    ArgumentCaptor<String> token = ArgumentCaptor.forClass(String.class);
+    verify(mockResponse).setHeader(eq(BaseServlet.SESSION_TOKEN_HEADER), token.capture());
+    assertEquals(defaultUser.getId(), SessionTokens.verify(token.getValue()));
+  }
+
   @Test
   public void similarUser_deviceId() throws Exception {
     saveUser(defaultUser);
@@ -76,6 +89,43 @@ public class AuthServletTest extends BaseServletTestSuite {
     assertEquals(defaultUser, respondedUser);
   }
 
+  @Test
+  public void createUser_lookups() throws Exception {
+    saveUser(defaultUser);
+    Entity deviceIdLookup = datastore.get(
+        datastore.newKeyFactory().setKind(UserLookups.DEVICE_ID_KIND).newKey(DEVICE_ID));
+    assertEquals((long) defaultUser.getId(), deviceIdLookup.getLong(UserLookups.COLUMN_USER_ID));
+    Entity phoneNumberLookup = datastore.get(
+        datastore.newKeyFactory().setKind(UserLookups.PHONE_NUMBER_KIND).newKey(PHONE_NUMBER));
+    assertEquals((long) defaultUser.getId(),
+        phoneNumberLookup.getLong(UserLookups.COLUMN_USER_ID));
+  }
+
+  @Test
+  public void similarUser_legacy() throws Exception {
+    // Saves a user without lookups, as users were saved before they were introduced.
+    Entity legacyUserEntity = datastore.add(defaultUser.toEntityBuilder(authServlet).build());
+    defaultUser.setDeviceId(defaultUser.getDeviceId() + "1");
+    saveUser(defaultUser);
+    assertEquals(legacyUserEntity.getKey().getId(), defaultUser.getId());
+    // The lookups of the legacy user are backfilled.
+    assertEquals((long) defaultUser.getId(), datastore.get(
+        datastore.newKeyFactory().setKind(UserLookups.PHONE_NUMBER_KIND).newKey(PHONE_NUMBER))
+        .getLong(UserLookups.COLUMN_USER_ID));
+  }
+
+  @Test
+  public void updateUser_lookupsReplaced() throws Exception {
+    saveUser(defaultUser);
+    defaultUser.setDeviceId(DEVICE_ID + "1");
+    saveUser(defaultUser);
+    KeyFactory deviceIdKeyFactory = datastore.newKeyFactory().setKind(UserLookups.DEVICE_ID_KIND);
+    assertNull(datastore.get(deviceIdKeyFactory.newKey(DEVICE_ID)));
+    assertEquals((long) defaultUser.getId(),
+        datastore.get(deviceIdKeyFactory.newKey(DEVICE_ID + "1"))
+            .getLong(UserLookups.COLUMN_USER_ID));
+  }
+
   @Test
   public void updateUser() throws Exception {
     User user = new User(DEVICE_ID, PHONE_NUMBER, "old", "old", NOW);
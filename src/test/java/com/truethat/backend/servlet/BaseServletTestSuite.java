@@ -62,7 +62,7 @@ public class BaseServletTestSuite {
   StudioServlet studioServlet;
   AuthServlet authServlet;
   SceneEnricher enricher;
-  private InteractionServlet interactionServlet;
+  InteractionServlet interactionServlet;
   @Mock private Part mockScenePart;
 
   @BeforeClass
@@ -84,6 +84,9 @@ public class BaseServletTestSuite {
     userKeyFactory = datastore.newKeyFactory().setKind(User.KIND);
     eventKeyFactory = datastore.newKeyFactory().setKind(InteractionEvent.KIND);
     emptyDatastore(null);
+    // Resets process-wide caches.
+    DirectorCache.getInstance().invalidateAll();
+    InteractionValidationCache.getInstance().invalidateAll();
     // Initialize Servlets
     resetResponseMock();
     interactionServlet = new InteractionServlet();
@@ -137,7 +140,10 @@ public class BaseServletTestSuite {
         when(mockFilePart.getContentType()).thenReturn("video/mp4");
       }
       if (file != null) {
-        when(mockFilePart.getInputStream()).thenReturn(new FileInputStream(file));
+        File content = file;
+        // Parts can be read more than once.
+        when(mockFilePart.getInputStream()).thenAnswer(
+            invocation -> new FileInputStream(content));
       }
       when(mockRequest.getPart(Media.MEDIA_PART_PREFIX + i)).thenReturn(mockFilePart);
     }
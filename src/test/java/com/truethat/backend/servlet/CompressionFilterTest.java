@@ -0,0 +1,223 @@
+package com.truethat.backend.servlet;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.truethat.backend.common.Metrics;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Proudly created by ohad on 10/10/2017.
+ */
+public class CompressionFilterTest {
+  private static final String LARGE_BODY = Strings.repeat("{\"url\":\"https://a.com\"},", 200);
+  @Mock private HttpServletRequest mockRequest;
+  @Mock private HttpServletResponse mockResponse;
+  private ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+  private CompressionFilter filter = new CompressionFilter();
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    Metrics.resetCounters();
+    when(mockRequest.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    when(mockRequest.getServletPath()).thenReturn("/theater");
+    when(mockResponse.getCharacterEncoding()).thenReturn("UTF-8");
+    when(mockResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override public boolean isReady() {
+        return true;
+      }
+
+      @Override public void setWriteListener(WriteListener writeListener) {
+      }
+
+      @Override public void write(int b) {
+        responseBody.write(b);
+      }
+    });
+  }
+
+  /**
+   * @return a chain that writes {@code body} in chunks, declaring its length if {@code
+   * declareLength}.
+   */
+  private FilterChain chainOf(String body, boolean declareLength) throws Exception {
+    FilterChain chain = mock(FilterChain.class);
+    doAnswer(invocation -> {
+      HttpServletResponse resp = (HttpServletResponse) invocation.getArguments()[1];
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      if (declareLength) {
+        resp.setContentLength(bytes.length);
+      }
+      for (int offset = 0; offset < bytes.length; offset += 100) {
+        resp.getOutputStream().write(bytes, offset, Math.min(100, bytes.length - offset));
+      }
+      return null;
+    }).when(chain).doFilter(eq(mockRequest), any());
+    return chain;
+  }
+
+  private String gunzip(byte[] bytes) throws Exception {
+    return new String(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(bytes))),
+        StandardCharsets.UTF_8);
+  }
+
+  @Test public void acceptsGzip() throws Exception {
+    assertTrue(CompressionFilter.acceptsGzip("gzip"));
+    assertTrue(CompressionFilter.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertTrue(CompressionFilter.acceptsGzip("*"));
+    assertFalse(CompressionFilter.acceptsGzip(null));
+    assertFalse(CompressionFilter.acceptsGzip("identity"));
+    assertFalse(CompressionFilter.acceptsGzip("gzip;q=0"));
+    assertFalse(CompressionFilter.acceptsGzip("*, gzip;q=0"));
+  }
+
+  private static long metric(String name) {
+    Number value = Metrics.snapshot().get(name);
+    return value == null ? 0 : value.longValue();
+  }
+
+  @Test public void compressed() throws Exception {
+    // Byte totals are gauges, which outlive resets.
+    long uncompressedBefore = metric("compression.theater.uncompressedBytes");
+    long compressedBefore = metric("compression.theater.compressedBytes");
+    filter.doFilter(mockRequest, mockResponse, chainOf(LARGE_BODY, false));
+    verify(mockResponse).setHeader("Content-Encoding", "gzip");
+    verify(mockResponse).addHeader("Vary", "Accept-Encoding");
+    verify(mockResponse, never()).setContentLength(anyInt());
+    verify(mockResponse, never()).setContentLengthLong(anyLong());
+    assertEquals(LARGE_BODY, gunzip(responseBody.toByteArray()));
+    assertTrue(responseBody.size() < LARGE_BODY.length() / 10);
+    assertEquals(LARGE_BODY.length(),
+        metric("compression.theater.uncompressedBytes") - uncompressedBefore);
+    assertEquals(responseBody.size(),
+        metric("compression.theater.compressedBytes") - compressedBefore);
+    assertEquals(1L, metric("compression.theater.cpu.count"));
+    assertTrue(Metrics.snapshot().get("compression.theater.ratio").doubleValue() < 0.1);
+  }
+
+  @Test public void compressed_declaredLength() throws Exception {
+    filter.doFilter(mockRequest, mockResponse, chainOf(LARGE_BODY, true));
+    verify(mockResponse).setHeader("Content-Encoding", "gzip");
+    verify(mockResponse, never()).setContentLengthLong(anyLong());
+    assertEquals(LARGE_BODY, gunzip(responseBody.toByteArray()));
+  }
+
+  @Test public void compressed_writer() throws Exception {
+    FilterChain chain = mock(FilterChain.class);
+    doAnswer(invocation -> {
+      ((HttpServletResponse) invocation.getArguments()[1]).getWriter().print(LARGE_BODY);
+      return null;
+    }).when(chain).doFilter(eq(mockRequest), any());
+    filter.doFilter(mockRequest, mockResponse, chain);
+    assertEquals(LARGE_BODY, gunzip(responseBody.toByteArray()));
+  }
+
+  @Test public void resetBuffer() throws Exception {
+    // The buffer of the mocked response is the body.
+    doAnswer(invocation -> {
+      responseBody.reset();
+      return null;
+    }).when(mockResponse).resetBuffer();
+    FilterChain chain = mock(FilterChain.class);
+    doAnswer(invocation -> {
+      HttpServletResponse resp = (HttpServletResponse) invocation.getArguments()[1];
+      resp.getOutputStream().write(LARGE_BODY.getBytes(StandardCharsets.UTF_8));
+      resp.resetBuffer();
+      // Content-Encoding is kept, and so even a short body is compressed.
+      resp.getOutputStream().write("{}".getBytes(StandardCharsets.UTF_8));
+      return null;
+    }).when(chain).doFilter(eq(mockRequest), any());
+    filter.doFilter(mockRequest, mockResponse, chain);
+    assertEquals("{}", gunzip(responseBody.toByteArray()));
+  }
+
+  @Test public void errorSent() throws Exception {
+    FilterChain chain = mock(FilterChain.class);
+    doAnswer(invocation -> {
+      HttpServletResponse resp = (HttpServletResponse) invocation.getArguments()[1];
+      resp.getOutputStream().write(LARGE_BODY.getBytes(StandardCharsets.UTF_8));
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Oops");
+      return null;
+    }).when(chain).doFilter(eq(mockRequest), any());
+    filter.doFilter(mockRequest, mockResponse, chain);
+    // The compression headers are reset, and the body is not completed.
+    verify(mockResponse).reset();
+    verify(mockResponse).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Oops");
+    assertEquals(0L, metric("compression.theater.cpu.count"));
+  }
+
+  @Test public void chainFailed() throws Exception {
+    FilterChain chain = mock(FilterChain.class);
+    doAnswer(invocation -> {
+      ((HttpServletResponse) invocation.getArguments()[1]).getOutputStream()
+          .write(LARGE_BODY.getBytes(StandardCharsets.UTF_8));
+      throw new IOException("Oops");
+    }).when(chain).doFilter(eq(mockRequest), any());
+    try {
+      filter.doFilter(mockRequest, mockResponse, chain);
+      fail("The failure should be propagated.");
+    } catch (IOException expected) {
+    }
+    // The body is abandoned, rather than completed.
+    assertEquals(0L, metric("compression.theater.cpu.count"));
+    try {
+      gunzip(responseBody.toByteArray());
+      fail("The body should not have been completed.");
+    } catch (EOFException expected) {
+    }
+  }
+
+  @Test public void belowThreshold() throws Exception {
+    String body = Strings.repeat("a", CompressionFilter.DEFAULT_THRESHOLD - 1);
+    filter.doFilter(mockRequest, mockResponse, chainOf(body, false));
+    verify(mockResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(mockResponse).setContentLength(body.length());
+    assertEquals(body, responseBody.toString("UTF-8"));
+    assertEquals(0L, metric("compression.theater.cpu.count"));
+  }
+
+  @Test public void belowThreshold_declaredLength() throws Exception {
+    filter.setThreshold(LARGE_BODY.length() + 1);
+    filter.doFilter(mockRequest, mockResponse, chainOf(LARGE_BODY, true));
+    verify(mockResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(mockResponse).setContentLengthLong(LARGE_BODY.length());
+    assertEquals(LARGE_BODY, responseBody.toString("UTF-8"));
+  }
+
+  @Test public void notAccepted() throws Exception {
+    when(mockRequest.getHeader("Accept-Encoding")).thenReturn(null);
+    filter.doFilter(mockRequest, mockResponse, chainOf(LARGE_BODY, true));
+    verify(mockResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(mockResponse).addHeader("Vary", "Accept-Encoding");
+    verify(mockResponse).setContentLength(LARGE_BODY.length());
+    assertEquals(LARGE_BODY, responseBody.toString("UTF-8"));
+  }
+}
@@ -0,0 +1,93 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableMap;
+import com.truethat.backend.common.WireFormat;
+import com.truethat.backend.model.Emotion;
+import com.truethat.backend.model.Photo;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.User;
+import java.util.Collections;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Proudly created by ohad on 11/10/2017.
+ */
+public class FeedETagsTest {
+  @Mock private HttpServletRequest mockRequest;
+  @Mock private HttpServletResponse mockResponse;
+  private Scene scene;
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    scene = new Scene(new User("my-iPhone", null, "elon", "musk", Timestamp.ofTimeMicroseconds(0)),
+        Timestamp.ofTimeMicroseconds(1000), Collections.singletonList(new Photo(1L, "a.jpg")),
+        Collections.emptyList());
+    scene.setId(2L);
+    scene.setReactionCounters(ImmutableMap.of(Emotion.HAPPY, 3L));
+  }
+
+  private String eTag() {
+    return FeedETags.of(Collections.singletonList(scene), null, WireFormat.JSON);
+  }
+
+  @Test public void of() throws Exception {
+    String eTag = eTag();
+    assertTrue(eTag, eTag.matches("W/\"[\\w-]+\""));
+    assertEquals(eTag, eTag());
+    assertNotEquals(eTag, FeedETags.of(Collections.singletonList(scene), null, WireFormat.CBOR));
+    assertNotEquals(eTag, FeedETags.of(Collections.emptyList(), null, WireFormat.JSON));
+  }
+
+  @Test public void of_enrichmentChanged() throws Exception {
+    String eTag = eTag();
+    scene.setReactionCounters(ImmutableMap.of(Emotion.HAPPY, 4L));
+    String countedETag = eTag();
+    assertNotEquals(eTag, countedETag);
+    scene.setViewed(true);
+    String viewedETag = eTag();
+    assertNotEquals(countedETag, viewedETag);
+    scene.setUserReaction(Emotion.OMG);
+    assertNotEquals(viewedETag, eTag());
+  }
+
+  @Test public void of_variantsAdded() throws Exception {
+    String eTag = eTag();
+    scene.getMediaNodes().get(0).setVariants(ImmutableMap.of(160, "a-160.jpg"));
+    assertNotEquals(eTag, eTag());
+  }
+
+  @Test public void matches() throws Exception {
+    String eTag = eTag();
+    assertTrue(FeedETags.matches(eTag, eTag));
+    assertTrue(FeedETags.matches("\"other\", " + eTag.substring(2), eTag));
+    assertTrue(FeedETags.matches("*", eTag));
+    assertFalse(FeedETags.matches(null, eTag));
+    assertFalse(FeedETags.matches("W/\"other\"", eTag));
+  }
+
+  @Test public void notModified() throws Exception {
+    List<Scene> scenes = Collections.singletonList(scene);
+    assertFalse(FeedETags.notModified(mockRequest, mockResponse, scenes, null));
+    verify(mockResponse).setHeader("ETag", eTag());
+    verify(mockResponse, never()).setStatus(anyInt());
+    when(mockRequest.getHeader("If-None-Match")).thenReturn(eTag());
+    assertTrue(FeedETags.notModified(mockRequest, mockResponse, scenes, null));
+    verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+}
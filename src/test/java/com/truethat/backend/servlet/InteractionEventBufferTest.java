@@ -0,0 +1,77 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.Timestamp;
+import com.truethat.backend.common.Metrics;
+import com.truethat.backend.model.EventType;
+import com.truethat.backend.model.InteractionEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Proudly created by ohad on 12/10/2017.
+ */
+public class InteractionEventBufferTest {
+  private static final InteractionEvent EVENT =
+      new InteractionEvent(1L, 2L, Timestamp.now(), EventType.VIEW, null, 3L);
+  private final List<InteractionEvent> written = new ArrayList<>();
+
+  private static long metric(String name) {
+    Number value = Metrics.snapshot().get(name);
+    return value == null ? 0 : value.longValue();
+  }
+
+  @Before public void setUp() throws Exception {
+    Metrics.resetCounters();
+  }
+
+  @Test public void flush_retried() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    InteractionEventBuffer buffer = new InteractionEventBuffer(batch -> {
+      if (attempts.incrementAndGet() < InteractionEventBuffer.MAX_FLUSH_ATTEMPTS) {
+        throw new IllegalStateException("Datastore is down");
+      }
+      written.addAll(batch);
+    }, InteractionEventBuffer.DEFAULT_CAPACITY);
+    assertTrue(buffer.offer(EVENT));
+    buffer.close();
+    assertEquals(1, written.size());
+    assertEquals(InteractionEventBuffer.MAX_FLUSH_ATTEMPTS - 1,
+        metric(InteractionEventBuffer.METRIC_RETRIES));
+    assertEquals(0, metric(InteractionEventBuffer.METRIC_FAILED_EVENTS));
+  }
+
+  @Test public void flush_requeued() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    InteractionEventBuffer buffer = new InteractionEventBuffer(batch -> {
+      // Fails every attempt of the first flush.
+      if (attempts.incrementAndGet() <= InteractionEventBuffer.MAX_FLUSH_ATTEMPTS) {
+        throw new IllegalStateException("Datastore is down");
+      }
+      written.addAll(batch);
+    }, InteractionEventBuffer.DEFAULT_CAPACITY);
+    assertTrue(buffer.offer(EVENT));
+    // Waits for the first flush to be requeued.
+    while (metric(InteractionEventBuffer.METRIC_REQUEUED_EVENTS) == 0) {
+      Thread.sleep(10);
+    }
+    buffer.close();
+    assertEquals(1, written.size());
+    assertEquals(0, metric(InteractionEventBuffer.METRIC_FAILED_EVENTS));
+  }
+
+  @Test public void offer_closed() throws Exception {
+    InteractionEventBuffer buffer =
+        new InteractionEventBuffer(written::addAll, InteractionEventBuffer.DEFAULT_CAPACITY);
+    buffer.close();
+    assertFalse(buffer.offer(EVENT));
+    assertEquals(0, buffer.size());
+    assertEquals(1, metric(InteractionEventBuffer.METRIC_REJECTED));
+  }
+}
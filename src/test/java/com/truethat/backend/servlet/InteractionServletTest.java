@@ -1,5 +1,11 @@
 package com.truethat.backend.servlet;
 
+import com.google.cloud.datastore.Query;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.truethat.backend.common.Util;
 import com.truethat.backend.model.Emotion;
 import com.truethat.backend.model.EventType;
 import com.truethat.backend.model.InteractionEvent;
@@ -7,10 +13,17 @@ import com.truethat.backend.model.Photo;
 import com.truethat.backend.model.Scene;
 import com.truethat.backend.model.User;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import javax.servlet.http.HttpServletResponse;
 import org.junit.Test;
 
+import static com.truethat.backend.common.TestUtil.toBufferedReader;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Proudly created by ohad on 03/07/2017.
@@ -53,6 +66,139 @@ public class InteractionServletTest extends BaseServletTestSuite {
         new InteractionEvent(datastore.get(eventKeyFactory.newKey(interactionEvent.getId()))));
   }
 
+  @Test
+  public void doPost_reactionCountedOnce() throws Exception {
+    saveScene(scene);
+    InteractionEvent interactionEvent =
+        new InteractionEvent(defaultUser.getId(), scene.getId(), NOW, EventType.REACTION,
+            Emotion.HAPPY, scene.getMediaNodes().get(0).getId());
+    // Saves the event twice.
+    saveInteraction(interactionEvent);
+    saveInteraction(interactionEvent);
+    assertEquals(ImmutableMap.of(Emotion.HAPPY, 1L),
+        new ReactionCounters(datastore).get(Collections.singletonList(scene.getId()))
+            .get(scene.getId()));
+  }
+
+  @Test
+  public void reconcile() throws Exception {
+    saveScene(scene);
+    // Events that were saved before counters existed.
+    datastore.add(new InteractionEvent(defaultUser.getId(), scene.getId(), NOW,
+        EventType.REACTION, Emotion.HAPPY, scene.getMediaNodes().get(0).getId())
+        .toEntityBuilder(interactionServlet).build());
+    datastore.add(new InteractionEvent(director.getId(), scene.getId(), NOW,
+        EventType.REACTION, Emotion.OMG, scene.getMediaNodes().get(0).getId())
+        .toEntityBuilder(interactionServlet).build());
+    // A counter that had drifted.
+    new ReactionCounters(datastore).increment(scene.getId(), Emotion.DISGUST, 2);
+    InteractionReconciler reconciler = new InteractionReconciler(datastore);
+    assertTrue(reconciler.acquireLease());
+    assertFalse(reconciler.acquireLease());
+    assertEquals(1, reconciler.reconcileStory());
+    // The reaction of the director is not counted.
+    assertEquals(ImmutableMap.of(Emotion.HAPPY, 1L),
+        new ReactionCounters(datastore).get(Collections.singletonList(scene.getId()))
+            .get(scene.getId()));
+    // States are backfilled as well.
+    UserSceneStates.State state = new UserSceneStates(datastore).get(defaultUser.getId(),
+        Collections.singletonList(scene.getId())).get(scene.getId());
+    assertEquals(Emotion.HAPPY, state.reaction);
+    assertFalse(state.viewed);
+    // Once completed, the backfill never runs again.
+    reconciler.markCompleted();
+    assertFalse(reconciler.acquireLease());
+  }
+
+  @Test
+  public void reconcile_countersMoved() throws Exception {
+    saveScene(scene);
+    ReactionCounters reactionCounters = new ReactionCounters(datastore);
+    reactionCounters.increment(scene.getId(), Emotion.HAPPY, 1);
+    // Events counted none, yet the counter was incremented after it was read.
+    assertEquals(0, reactionCounters.reset(scene.getId(), Collections.emptyMap(),
+        Collections.emptyMap()));
+    assertEquals(ImmutableMap.of(Emotion.HAPPY, 1L),
+        reactionCounters.get(Collections.singletonList(scene.getId())).get(scene.getId()));
+  }
+
+  @Test
+  public void doPost_buffered() throws Exception {
+    saveScene(scene);
+    InteractionEventBuffer buffer = new InteractionEventBuffer(
+        interactionServlet::saveBufferedEvents, InteractionEventBuffer.DEFAULT_CAPACITY);
+    interactionServlet.setBuffer(buffer);
+    InteractionEvent view =
+        new InteractionEvent(defaultUser.getId(), scene.getId(), NOW, EventType.VIEW,
+            null, scene.getMediaNodes().get(0).getId());
+    InteractionEvent reaction =
+        new InteractionEvent(defaultUser.getId(), scene.getId(), NOW, EventType.REACTION,
+            Emotion.HAPPY, scene.getMediaNodes().get(0).getId());
+    saveInteraction(view);
+    verify(mockResponse).setStatus(HttpServletResponse.SC_ACCEPTED);
+    saveInteraction(reaction);
+    // Drains the buffer.
+    buffer.close();
+    assertEquals(0, buffer.size());
+    assertEquals(2, Iterators.size(
+        datastore.run(Query.newKeyQueryBuilder().setKind(InteractionEvent.KIND).build())));
+    assertEquals(ImmutableMap.of(Emotion.HAPPY, 1L),
+        new ReactionCounters(datastore).get(Collections.singletonList(scene.getId()))
+            .get(scene.getId()));
+    // Closed buffers reject events.
+    assertFalse(buffer.offer(view));
+  }
+
+  @Test
+  public void doPost_batch() throws Exception {
+    saveScene(scene);
+    InteractionEvent view =
+        new InteractionEvent(defaultUser.getId(), scene.getId(), NOW, EventType.VIEW,
+            null, scene.getMediaNodes().get(0).getId());
+    InteractionEvent invalid =
+        new InteractionEvent(defaultUser.getId(), scene.getId(), NOW, EventType.VIEW,
+            Emotion.HAPPY, scene.getMediaNodes().get(0).getId());
+    InteractionEvent reaction =
+        new InteractionEvent(defaultUser.getId(), scene.getId(), NOW, EventType.REACTION,
+            Emotion.HAPPY, scene.getMediaNodes().get(0).getId());
+    resetResponseMock();
+    when(mockRequest.getReader()).thenReturn(
+        toBufferedReader(Util.GSON.toJson(Arrays.asList(view, invalid, reaction))));
+    interactionServlet.doPost(mockRequest, mockResponse);
+    JsonArray statuses = new JsonParser().parse(responseWriter.toString()).getAsJsonArray();
+    assertEquals(3, statuses.size());
+    assertEquals(HttpServletResponse.SC_OK,
+        statuses.get(0).getAsJsonObject().get("status").getAsInt());
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST,
+        statuses.get(1).getAsJsonObject().get("status").getAsInt());
+    assertEquals(HttpServletResponse.SC_OK,
+        statuses.get(2).getAsJsonObject().get("status").getAsInt());
+    // Only valid events are saved.
+    InteractionEvent saved = Util.GSON.fromJson(statuses.get(2).getAsJsonObject().get("event"),
+        InteractionEvent.class);
+    reaction.setId(saved.getId());
+    assertEquals(reaction,
+        new InteractionEvent(datastore.get(eventKeyFactory.newKey(saved.getId()))));
+    assertEquals(2, Iterators.size(
+        datastore.run(Query.newKeyQueryBuilder().setKind(InteractionEvent.KIND).build())));
+  }
+
+  @Test
+  public void doPost_validationCached() throws Exception {
+    saveScene(scene);
+    InteractionEvent interactionEvent =
+        new InteractionEvent(defaultUser.getId(), scene.getId(), NOW, EventType.VIEW,
+            null, scene.getMediaNodes().get(0).getId());
+    saveInteraction(interactionEvent);
+    // Following events are validated against the cache.
+    emptyDatastore(User.KIND);
+    emptyDatastore(Scene.KIND);
+    interactionEvent.setId(null);
+    saveInteraction(interactionEvent);
+    assertEquals(interactionEvent,
+        new InteractionEvent(datastore.get(eventKeyFactory.newKey(interactionEvent.getId()))));
+  }
+
   @Test(expected = IOException.class)
   public void invalidEvent_viewWithReaction() throws Exception {
     saveScene(scene);
@@ -0,0 +1,25 @@
+package com.truethat.backend.servlet;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Proudly created by ohad on 29/09/2017.
+ */
+public class MediaIdPoolTest extends BaseServletTestSuite {
+  @Test public void take() throws Exception {
+    MediaIdPool pool = new MediaIdPool(datastore);
+    List<Long> ids = pool.take(3);
+    assertEquals(3, ids.size());
+    // The first take reserves a block along with the missing IDs.
+    assertEquals(MediaIdPool.BLOCK_SIZE, pool.size());
+    // IDs are not handed out twice.
+    Set<Long> distinct = new HashSet<>(ids);
+    distinct.addAll(pool.take(MediaIdPool.BLOCK_SIZE + 1));
+    assertEquals(MediaIdPool.BLOCK_SIZE + 4, distinct.size());
+  }
+}
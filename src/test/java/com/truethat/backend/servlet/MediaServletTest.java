@@ -0,0 +1,137 @@
+package com.truethat.backend.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Proudly created by ohad on 03/10/2017.
+ */
+public class MediaServletTest {
+  private static final byte[] CONTENT = "0123456789".getBytes();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  @Mock private HttpServletRequest mockRequest;
+  @Mock private HttpServletResponse mockResponse;
+  private ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+  private MediaServlet servlet = new MediaServlet();
+  private Path file;
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    Path root = folder.getRoot().toPath();
+    file = root.resolve("bucket/media/abc.mp4");
+    Files.createDirectories(file.getParent());
+    Files.write(file, CONTENT);
+    servlet.setRoot(root);
+    when(mockRequest.getMethod()).thenReturn("GET");
+    when(mockRequest.getPathInfo()).thenReturn("/bucket/media/abc.mp4");
+    when(mockRequest.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+    when(mockResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override public boolean isReady() {
+        return true;
+      }
+
+      @Override public void setWriteListener(WriteListener writeListener) {
+      }
+
+      @Override public void write(int b) {
+        responseBody.write(b);
+      }
+    });
+  }
+
+  @Test public void parseRange() {
+    assertArrayEquals(new long[] {0, 4}, MediaServlet.parseRange("bytes=0-4", 10));
+    assertArrayEquals(new long[] {5, 9}, MediaServlet.parseRange("bytes=5-", 10));
+    assertArrayEquals(new long[] {7, 9}, MediaServlet.parseRange("bytes=-3", 10));
+    assertArrayEquals(new long[] {8, 9}, MediaServlet.parseRange("bytes=8-100", 10));
+    assertEquals(MediaServlet.UNSATISFIABLE, MediaServlet.parseRange("bytes=10-", 10));
+    assertNull(MediaServlet.parseRange("bytes=0-1,3-4", 10));
+    assertNull(MediaServlet.parseRange("bytes=4-2", 10));
+    assertNull(MediaServlet.parseRange("lines=0-4", 10));
+  }
+
+  @Test public void doGet() throws Exception {
+    servlet.doGet(mockRequest, mockResponse);
+    assertArrayEquals(CONTENT, responseBody.toByteArray());
+    verify(mockResponse).setContentLengthLong(CONTENT.length);
+    verify(mockResponse).setHeader(eq("ETag"), anyString());
+    verify(mockResponse).setDateHeader(eq("Last-Modified"), anyLong());
+  }
+
+  @Test public void doGet_range() throws Exception {
+    when(mockRequest.getHeader("Range")).thenReturn("bytes=2-5");
+    servlet.doGet(mockRequest, mockResponse);
+    assertArrayEquals("2345".getBytes(), responseBody.toByteArray());
+    verify(mockResponse).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    verify(mockResponse).setHeader("Content-Range", "bytes 2-5/10");
+    verify(mockResponse).setContentLengthLong(4);
+  }
+
+  @Test public void doGet_rangeNotSatisfiable() throws Exception {
+    when(mockRequest.getHeader("Range")).thenReturn("bytes=20-");
+    servlet.doGet(mockRequest, mockResponse);
+    verify(mockResponse).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    verify(mockResponse).setHeader("Content-Range", "bytes */10");
+  }
+
+  @Test public void doGet_notModified() throws Exception {
+    long lastModified = Files.getLastModifiedTime(file).toMillis();
+    String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(CONTENT.length)
+        + "\"";
+    when(mockRequest.getHeader("If-None-Match")).thenReturn(etag);
+    servlet.doGet(mockRequest, mockResponse);
+    verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(mockResponse, never()).getOutputStream();
+  }
+
+  @Test public void doGet_notModifiedSince() throws Exception {
+    when(mockRequest.getDateHeader("If-Modified-Since")).thenReturn(
+        Files.getLastModifiedTime(file).toMillis());
+    servlet.doGet(mockRequest, mockResponse);
+    verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+
+  @Test public void doGet_outsideRoot() throws Exception {
+    when(mockRequest.getPathInfo()).thenReturn("/../../etc/passwd");
+    servlet.doGet(mockRequest, mockResponse);
+    verify(mockResponse).sendError(HttpServletResponse.SC_NOT_FOUND);
+    verify(mockResponse, never()).getOutputStream();
+  }
+
+  @Test public void doGet_temporary() throws Exception {
+    Files.write(file.resolveSibling(".upload-123.tmp"), CONTENT);
+    when(mockRequest.getPathInfo()).thenReturn("/bucket/media/.upload-123.tmp");
+    servlet.doGet(mockRequest, mockResponse);
+    verify(mockResponse).sendError(HttpServletResponse.SC_NOT_FOUND);
+    verify(mockResponse, never()).getOutputStream();
+  }
+
+  @Test public void doGet_missing() throws Exception {
+    when(mockRequest.getPathInfo()).thenReturn("/bucket/media/missing.mp4");
+    servlet.doGet(mockRequest, mockResponse);
+    verify(mockResponse).sendError(HttpServletResponse.SC_NOT_FOUND);
+    verify(mockResponse, never()).setStatus(anyInt());
+  }
+}
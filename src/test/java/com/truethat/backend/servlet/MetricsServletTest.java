@@ -0,0 +1,55 @@
+package com.truethat.backend.servlet;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Proudly created by ohad on 17/10/2017.
+ */
+public class MetricsServletTest {
+  private static final String SECRET = "secret";
+  @Mock private HttpServletRequest mockRequest;
+  @Mock private HttpServletResponse mockResponse;
+  private MetricsServlet servlet = new MetricsServlet();
+  private StringWriter responseBody = new StringWriter();
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    servlet.setSecret(SECRET);
+    when(mockResponse.getWriter()).thenReturn(new PrintWriter(responseBody));
+  }
+
+  @Test public void doGet() throws Exception {
+    when(mockRequest.getHeader(MetricsServlet.SECRET_HEADER)).thenReturn(SECRET);
+    servlet.doGet(mockRequest, mockResponse);
+    assertTrue(responseBody.toString().startsWith("{"));
+  }
+
+  @Test public void doGet_wrongSecret() throws Exception {
+    when(mockRequest.getHeader(MetricsServlet.SECRET_HEADER)).thenReturn("guess");
+    servlet.doGet(mockRequest, mockResponse);
+    verify(mockResponse).sendError(HttpServletResponse.SC_NOT_FOUND);
+  }
+
+  @Test public void doGet_missingSecret() throws Exception {
+    servlet.doGet(mockRequest, mockResponse);
+    verify(mockResponse).sendError(HttpServletResponse.SC_NOT_FOUND);
+  }
+
+  @Test public void doGet_disabled() throws Exception {
+    servlet.setSecret("__METRICS_SECRET__");
+    when(mockRequest.getHeader(MetricsServlet.SECRET_HEADER)).thenReturn("__METRICS_SECRET__");
+    servlet.doGet(mockRequest, mockResponse);
+    verify(mockResponse).sendError(HttpServletResponse.SC_NOT_FOUND);
+  }
+}
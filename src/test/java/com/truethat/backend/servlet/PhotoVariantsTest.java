@@ -0,0 +1,61 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.datastore.Key;
+import com.google.common.collect.ImmutableMap;
+import com.truethat.backend.model.Photo;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.storage.StorageClient;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Proudly created by ohad on 01/10/2017.
+ */
+public class PhotoVariantsTest extends BaseServletTestSuite {
+  private static final String BLOB_NAME = "media/original.jpg";
+
+  @Test public void process() throws Exception {
+    saveUser(defaultUser);
+    Scene scene =
+        new Scene(defaultUser, NOW, Collections.singletonList(new Photo(0L, "")), null);
+    saveScene(scene);
+    // Uploads an original that is wider than the smallest variant only.
+    ByteArrayOutputStream original = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB), "jpg", original);
+    StorageClient storageClient = studioServlet.getStorageClient();
+    storageClient.save(BLOB_NAME, "image/jpeg", original.toByteArray(),
+        studioServlet.getBucketName());
+    Key sceneKey = datastore.newKeyFactory().setKind(Scene.KIND).newKey(scene.getId());
+    long photoId = scene.getMediaNodes().get(0).getId();
+    studioServlet.getPhotoVariants().process(sceneKey, ImmutableMap.of(photoId, BLOB_NAME));
+    // Variant URLs are added to the scene.
+    Map<Integer, String> variants =
+        new Scene(datastore.get(sceneKey)).getMediaNodes().get(0).getVariants();
+    assertEquals(Collections.singleton(PhotoVariants.WIDTHS.get(0)), variants.keySet());
+    // The variant is downscaled, preserving the aspect ratio.
+    BufferedImage variant = ImageIO.read(
+        storageClient.read("media/original_w160.jpg", studioServlet.getBucketName()));
+    assertEquals(160, variant.getWidth());
+    assertEquals(80, variant.getHeight());
+  }
+
+  @Test public void decode_oversized() throws Exception {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(40, 20, BufferedImage.TYPE_INT_RGB), "jpg", encoded);
+    // Images within the budget are decoded.
+    assertNotNull(PhotoVariants.decode(new ByteArrayInputStream(encoded.toByteArray()), 800));
+    // Larger ones are not.
+    assertNull(PhotoVariants.decode(new ByteArrayInputStream(encoded.toByteArray()), 799));
+    // Neither are ones that are not images at all.
+    assertNull(PhotoVariants.decode(new ByteArrayInputStream(new byte[] {1, 2, 3}), 800));
+  }
+}
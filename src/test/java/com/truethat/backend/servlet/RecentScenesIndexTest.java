@@ -0,0 +1,71 @@
+package com.truethat.backend.servlet;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.SceneStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Proudly created by ohad on 17/10/2017.
+ */
+public class RecentScenesIndexTest {
+  private static final long DIRECTOR_ID = 1;
+  private final KeyFactory sceneKeyFactory = new KeyFactory("test").setKind(Scene.KIND);
+  @Mock private Datastore mockDatastore;
+  @Mock private QueryResults<Entity> mockResults;
+  private RecentScenesIndex index = new RecentScenesIndex();
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(mockDatastore.newKeyFactory()).thenReturn(new KeyFactory("test"));
+    when(mockDatastore.<Entity>run(any(Query.class))).thenReturn(mockResults);
+  }
+
+  @Test public void load_skipsNotReady() throws Exception {
+    when(mockResults.hasNext()).thenReturn(true, true, true, false);
+    when(mockResults.next()).thenReturn(sceneEntity(1, null), sceneEntity(2, SceneStatus.READY),
+        sceneEntity(3, SceneStatus.PROCESSING));
+    index.load(mockDatastore);
+    assertEquals(2, index.size());
+    assertEquals(2, index.recent(mockDatastore, null, 10).keys.size());
+  }
+
+  @Test public void add_notReady() throws Exception {
+    when(mockResults.hasNext()).thenReturn(false);
+    index.load(mockDatastore);
+    index.add(mockDatastore, new Scene(sceneEntity(1, SceneStatus.FAILED)));
+    assertEquals(0, index.size());
+    index.add(mockDatastore, new Scene(sceneEntity(1, SceneStatus.READY)));
+    assertEquals(1, index.size());
+  }
+
+  @Test public void add_whileLoading() throws Exception {
+    // A scene is saved while the index is being loaded, and after the query had started.
+    when(mockResults.hasNext()).then(invocation -> {
+      index.add(mockDatastore, new Scene(sceneEntity(1, null)));
+      return false;
+    });
+    index.load(mockDatastore);
+    assertEquals(1, index.size());
+  }
+
+  private Entity sceneEntity(long id, SceneStatus status) {
+    Entity.Builder builder = Entity.newBuilder(sceneKeyFactory.newKey(id))
+        .set(Scene.COLUMN_DIRECTOR_ID, DIRECTOR_ID)
+        .set(Scene.COLUMN_CREATED, Timestamp.now());
+    if (status != null) builder.set(Scene.COLUMN_STATUS, status.getCode());
+    return builder.build();
+  }
+}
@@ -10,10 +10,13 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import static com.truethat.backend.common.TestUtil.toBufferedReader;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -128,6 +131,32 @@ public class RepertoireServletTest extends BaseServletTestSuite {
     }
   }
 
+  @Test public void fetchRepertoire_nextPage() throws Exception {
+    // Save scenes
+    for (int i = 0; i < RepertoireServlet.FETCH_LIMIT + 1; i++) {
+      saveScene(new Scene(defaultUser,
+          Timestamp.ofTimeSecondsAndNanos(NOW.getSeconds() + i, NOW.getNanos()),
+          Collections.singletonList(new Photo(0L, "")), null));
+    }
+    // Fetches the first page.
+    prepareFetch();
+    repertoireServlet.doPost(mockRequest, mockResponse);
+    ArgumentCaptor<String> tokenCaptor = ArgumentCaptor.forClass(String.class);
+    verify(mockResponse).setHeader(eq(BaseServlet.CONTINUATION_TOKEN_HEADER),
+        tokenCaptor.capture());
+    // Fetches the next page.
+    prepareFetch();
+    when(mockRequest.getHeader(BaseServlet.CONTINUATION_TOKEN_HEADER)).thenReturn(
+        tokenCaptor.getValue());
+    repertoireServlet.doPost(mockRequest, mockResponse);
+    List<Scene> respondedScenes =
+        Util.GSON.fromJson(responseWriter.toString(), new TypeToken<List<Scene>>() {
+        }.getType());
+    // Only the oldest scene should remain.
+    assertEquals(1, respondedScenes.size());
+    assertEquals(NOW.getSeconds(), respondedScenes.get(0).getCreated().getSeconds());
+  }
+
   private void prepareFetch() throws Exception {
     when(mockRequest.getReader()).thenReturn(toBufferedReader(Util.GSON.toJson(defaultUser)));
     resetResponseMock();
@@ -12,6 +12,7 @@ import java.util.Collections;
 import org.junit.Test;
 
 import static com.truethat.backend.model.Emotion.HAPPY;
+import static com.truethat.backend.model.Emotion.OMG;
 import static com.truethat.backend.model.Emotion.SURPRISE;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -107,6 +108,47 @@ public class SceneEnricherTest extends BaseServletTestSuite {
         Maps.difference(ImmutableMap.of(REACTION, 1L), scene.getReactionCounters()).areEqual());
   }
 
+  @Test public void enrichScene_latestReaction() throws Exception {
+    Long mediaId = scene.getMediaNodes().get(0).getId();
+    saveInteraction(new InteractionEvent(defaultUser.getId(), scene.getId(), NOW,
+        EventType.REACTION, HAPPY, mediaId));
+    saveInteraction(new InteractionEvent(defaultUser.getId(), scene.getId(), NOW,
+        EventType.REACTION, OMG, mediaId));
+    // Enriches the scene
+    enricher.enrichScenes(Collections.singletonList(scene), defaultUser);
+    assertEquals(OMG, scene.getUserReaction());
+    // Both reactions are counted.
+    assertTrue(
+        Maps.difference(ImmutableMap.of(HAPPY, 1L, OMG, 1L), scene.getReactionCounters())
+            .areEqual());
+  }
+
+  @Test public void enrichScene_concurrent() throws Exception {
+    InteractionEvent interactionEvent =
+        new InteractionEvent(defaultUser.getId(), scene.getId(), NOW, EventType.REACTION,
+            REACTION, scene.getMediaNodes().get(0).getId());
+    saveInteraction(interactionEvent);
+    // Enriches the scene concurrently
+    enricher.setConcurrent(true);
+    enricher.enrichScenes(Collections.singletonList(scene), defaultUser);
+    assertEquals(director.getId(), scene.getDirector().getId());
+    assertEquals(REACTION, scene.getUserReaction());
+    assertTrue(
+        Maps.difference(ImmutableMap.of(REACTION, 1L), scene.getReactionCounters()).areEqual());
+  }
+
+  @Test public void enrichScene_deadlineExceeded() throws Exception {
+    // Caches the director.
+    enricher.enrichScenes(Collections.singletonList(scene), defaultUser);
+    scene.setDirector(null);
+    // Reads that are not done right away are left behind.
+    enricher.setConcurrent(true);
+    enricher.setDeadlineMillis(0);
+    enricher.enrichScenes(Collections.singletonList(scene), defaultUser);
+    // Late directors fall back to cached ones.
+    assertEquals(director.getId(), scene.getDirector().getId());
+  }
+
   @Test public void enrichScene_view() throws Exception {
     InteractionEvent interactionEvent =
         new InteractionEvent(defaultUser.getId(), scene.getId(), NOW, EventType.VIEW,
@@ -131,11 +173,21 @@ public class SceneEnricherTest extends BaseServletTestSuite {
     assertTrue(scene.getReactionCounters().isEmpty());
   }
 
+  @Test public void enrichScene_directorNameChanged() throws Exception {
+    // Caches the director.
+    enricher.enrichScenes(Collections.singletonList(scene), defaultUser);
+    // Changes director name.
+    director.setFirstName("mr");
+    saveUser(director);
+    enricher.enrichScenes(Collections.singletonList(scene), defaultUser);
+    assertEquals("mr", scene.getDirector().getFirstName());
+  }
+
   @Test public void enrichScene_user() throws Exception {
     // Enriches the scene
     enricher.enrichScenes(Collections.singletonList(scene), defaultUser);
     // Director field should be assigned
-    assertEquals(director.getId(), scene.getDirectorId());
+    assertEquals(director.getId(), scene.getDirector().getId());
     assertEquals(director.getFirstName(), scene.getDirector().getFirstName());
     assertEquals(director.getLastName(), scene.getDirector().getLastName());
     // Private information should not be passed.
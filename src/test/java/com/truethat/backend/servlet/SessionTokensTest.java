@@ -0,0 +1,56 @@
+package com.truethat.backend.servlet;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Proudly created by ohad on 04/10/2017.
+ */
+public class SessionTokensTest {
+  private static final long USER_ID = 42;
+
+  @Test public void verify() {
+    assertEquals(USER_ID, (long) SessionTokens.verify(SessionTokens.issue(USER_ID)));
+  }
+
+  @Test public void verify_expired() {
+    assertNull(SessionTokens.verify(
+        SessionTokens.issue(USER_ID, System.currentTimeMillis() - 1)));
+  }
+
+  @Test public void verify_forged() {
+    String token = SessionTokens.issue(USER_ID);
+    // Impersonates another user with a signature of a real token.
+    assertNull(SessionTokens.verify("43" + token.substring(token.indexOf('.'))));
+    // Extends the expiry.
+    String[] parts = token.split("\\.");
+    assertNull(SessionTokens.verify(parts[0] + "." + Long.MAX_VALUE + "." + parts[2]));
+  }
+
+  @Test public void verify_malformed() {
+    assertNull(SessionTokens.verify(null));
+    assertNull(SessionTokens.verify(""));
+    assertNull(SessionTokens.verify("42"));
+    assertNull(SessionTokens.verify("42.signature"));
+    assertNull(SessionTokens.verify("a.b.c"));
+  }
+
+  @Test public void secret() {
+    assertArrayEquals("secret".getBytes(StandardCharsets.UTF_8),
+        SessionTokens.secret("secret", true));
+    // Generated locally.
+    assertEquals(32, SessionTokens.secret(null, false).length);
+  }
+
+  @Test(expected = IllegalStateException.class) public void secret_missingWhenDeployed() {
+    SessionTokens.secret(null, true);
+  }
+
+  @Test(expected = IllegalStateException.class) public void secret_placeholderWhenDeployed() {
+    SessionTokens.secret("__SESSION_SECRET__", true);
+  }
+}
@@ -97,7 +97,8 @@ public class StudioServletIntegrationTest extends BaseStorageTestSuite {
     // Initializing request mock
     String fileName = "src/test/resources/servlet/1x1_pixel.jpg";
     when(mockFilePart.getContentType()).thenReturn("image/jpg");
-    when(mockFilePart.getInputStream()).thenReturn(new FileInputStream(new File(fileName)));
+    when(mockFilePart.getInputStream()).thenAnswer(
+        invocation -> new FileInputStream(new File(fileName)));
     when(mockScenePart.getInputStream()).thenReturn(
         TestUtil.toInputStream(Util.GSON.toJson(scene)));
     when(mockRequest.getPart(Media.MEDIA_PART_PREFIX + "0")).thenReturn(mockFilePart);
@@ -131,7 +132,8 @@ public class StudioServletIntegrationTest extends BaseStorageTestSuite {
     // Initializing request mock
     String fileName = "src/test/resources/servlet/wink.mp4";
     when(mockFilePart.getContentType()).thenReturn("video/mp4");
-    when(mockFilePart.getInputStream()).thenReturn(new FileInputStream(new File(fileName)));
+    when(mockFilePart.getInputStream()).thenAnswer(
+        invocation -> new FileInputStream(new File(fileName)));
     when(mockScenePart.getInputStream()).thenReturn(
         TestUtil.toInputStream(Util.GSON.toJson(scene)));
     when(mockRequest.getPart(Media.MEDIA_PART_PREFIX + "0")).thenReturn(mockFilePart);
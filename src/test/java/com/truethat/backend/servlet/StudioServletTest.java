@@ -1,18 +1,32 @@
 package com.truethat.backend.servlet;
 
+import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.Query;
+import com.google.gson.JsonParser;
+import com.truethat.backend.common.Util;
 import com.truethat.backend.model.Edge;
 import com.truethat.backend.model.Emotion;
 import com.truethat.backend.model.Media;
 import com.truethat.backend.model.Photo;
 import com.truethat.backend.model.Scene;
+import com.truethat.backend.model.SceneStatus;
 import com.truethat.backend.model.Video;
+import com.truethat.backend.storage.LocalStorageClient;
+import com.truethat.backend.storage.StorageClient;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -65,6 +79,109 @@ public class StudioServletTest extends BaseServletTestSuite {
     assertEquals(scene, saved);
   }
 
+  @Test
+  public void asyncSave() throws Exception {
+    resetResponseMock();
+    prepareSceneSave(scene);
+    when(mockRequest.getParameter(StudioServlet.ASYNC_PARAMETER)).thenReturn("true");
+    studioServlet.doPost(mockRequest, mockResponse);
+    verify(mockResponse).setStatus(HttpServletResponse.SC_ACCEPTED);
+    Scene responded = Util.GSON.fromJson(responseWriter.toString(), Scene.class);
+    assertEquals(SceneStatus.PROCESSING, responded.getStatus());
+    // Waits for the scene to be published.
+    Key sceneKey = datastore.newKeyFactory().setKind(Scene.KIND).newKey(responded.getId());
+    for (int i = 0; i < 100 && !new Scene(datastore.get(sceneKey)).isReady(); i++) {
+      Thread.sleep(50);
+    }
+    Scene saved = new Scene(datastore.get(sceneKey));
+    assertEquals(SceneStatus.READY, saved.getStatus());
+    assertTrue(saved.getMediaNodes().get(0).getUrl().startsWith(StorageClient.STORAGE_BASE_URL));
+    // Looks up the status.
+    resetResponseMock();
+    when(mockRequest.getParameter(StudioServlet.SCENE_ID_PARAMETER)).thenReturn(
+        responded.getId().toString());
+    studioServlet.doGet(mockRequest, mockResponse);
+    assertEquals("READY", new JsonParser().parse(responseWriter.toString())
+        .getAsJsonObject()
+        .get("status")
+        .getAsString());
+  }
+
+  @Test
+  public void stalePublishRecovered() throws Exception {
+    resetResponseMock();
+    prepareSceneSave(scene);
+    // Stages the scene, as if its publish was then lost.
+    List<Part> staged = scene.stage(mockRequest, studioServlet);
+    Key sceneKey = datastore.newKeyFactory().setKind(Scene.KIND).newKey(scene.getId());
+    PublishRecovery recovery = new PublishRecovery(datastore);
+    // Recent publishes are left alone.
+    assertEquals(0, recovery.sweep(PublishRecovery.STALE_MILLIS));
+    assertEquals(SceneStatus.PROCESSING, new Scene(datastore.get(sceneKey)).getStatus());
+    assertTrue(staged.get(0).getSize() > 0);
+    // Stale ones are failed, and their staged parts are deleted.
+    assertEquals(1, recovery.sweep(0));
+    assertEquals(SceneStatus.FAILED, new Scene(datastore.get(sceneKey)).getStatus());
+    assertEquals(-1, staged.get(0).getSize());
+    // Failed scenes are not swept again.
+    assertEquals(0, recovery.sweep(0));
+  }
+
+  @Test
+  public void identicalMediaDeduplicated() throws Exception {
+    saveScene(scene);
+    Scene other = new Scene(defaultUser, NOW, Collections.singletonList(new Photo(0L, "")), null);
+    saveScene(other);
+    assertEquals(1, ((LocalStorageClient) studioServlet.getStorageClient()).getFiles(
+        studioServlet.getBucketName()).size());
+    assertEquals(scene.getMediaNodes().get(0).getUrl(), other.getMediaNodes().get(0).getUrl());
+  }
+
+  @Test
+  public void saveFailed_uploadsDeleted() throws Exception {
+    scene = new Scene(defaultUser, NOW,
+        Arrays.asList(new Photo(0L, ""), new Photo(1L, "")),
+        Collections.singletonList(new Edge(0L, 1L, Emotion.HAPPY)));
+    resetResponseMock();
+    prepareSceneSave(scene);
+    Part failingPart = mock(Part.class);
+    when(failingPart.getContentType()).thenReturn("image/jpg");
+    when(failingPart.getInputStream()).thenThrow(new IOException("Connection reset"));
+    when(mockRequest.getPart(Media.MEDIA_PART_PREFIX + 1)).thenReturn(failingPart);
+    try {
+      studioServlet.doPost(mockRequest, mockResponse);
+      fail("Scene should not have been saved.");
+    } catch (IOException ignored) {
+    }
+    // The uploaded photo should be deleted.
+    assertTrue(((LocalStorageClient) studioServlet.getStorageClient()).getFiles(
+        studioServlet.getBucketName()).isEmpty());
+    assertFalse(
+        datastore.run(Query.newKeyQueryBuilder().setKind(Scene.KIND).build()).hasNext());
+  }
+
+  @Test
+  public void saveFailed_existingUploadsKept() throws Exception {
+    saveScene(scene);
+    scene = new Scene(defaultUser, NOW,
+        Arrays.asList(new Photo(0L, ""), new Photo(1L, "")),
+        Collections.singletonList(new Edge(0L, 1L, Emotion.HAPPY)));
+    resetResponseMock();
+    prepareSceneSave(scene);
+    Part failingPart = mock(Part.class);
+    when(failingPart.getContentType()).thenReturn("image/jpg");
+    when(failingPart.getInputStream()).thenThrow(new IOException("Connection reset"));
+    when(mockRequest.getPart(Media.MEDIA_PART_PREFIX + 1)).thenReturn(failingPart);
+    try {
+      studioServlet.doPost(mockRequest, mockResponse);
+      fail("Scene should not have been saved.");
+    } catch (IOException ignored) {
+    }
+    // The photo was already saved by the first scene, and so it is kept.
+    assertEquals(1, ((LocalStorageClient) studioServlet.getStorageClient()).getFiles(
+        studioServlet.getBucketName()).size());
+  }
+
   @Test(expected = IOException.class)
   public void saveTreeInvalid_targetIdHasNoMatchingMedia() throws Exception {
     saveScene(new Scene(defaultUser, NOW,
@@ -11,12 +11,18 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletResponse;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import static com.truethat.backend.common.TestUtil.toBufferedReader;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -54,6 +60,23 @@ public class TheaterServletTest extends BaseServletTestSuite {
     assertEquals(scene, respondedScenes.get(0));
   }
 
+  @Test
+  public void fetchScenes_savedAfterIndexLoaded() throws Exception {
+    prepareFetch();
+    // Loads the recent scenes index while it is still empty.
+    theaterServlet.doPost(mockRequest, mockResponse);
+    saveScene(scene);
+    prepareFetch();
+    // Sends the GET request
+    theaterServlet.doPost(mockRequest, mockResponse);
+    String response = responseWriter.toString();
+    List<Scene> respondedScenes =
+        Util.GSON.fromJson(response, new TypeToken<List<Scene>>() {
+        }.getType());
+    assertEquals(1, respondedScenes.size());
+    assertEquals(scene.getId(), respondedScenes.get(0).getId());
+  }
+
   @Test
   public void timeLimitFilter() throws Exception {
     prepareFetch();
@@ -151,6 +174,46 @@ public class TheaterServletTest extends BaseServletTestSuite {
     theaterServlet.doPost(mockRequest, mockResponse);
   }
 
+  @Test
+  public void fetchScenes_sessionToken() throws Exception {
+    saveScene(scene);
+    // Users with a valid session token are not looked up.
+    datastore.delete(userKeyFactory.newKey(defaultUser.getId()));
+    prepareFetch();
+    when(mockRequest.getHeader(BaseServlet.SESSION_TOKEN_HEADER)).thenReturn(
+        SessionTokens.issue(defaultUser.getId()));
+    theaterServlet.doPost(mockRequest, mockResponse);
+    List<Scene> respondedScenes =
+        Util.GSON.fromJson(responseWriter.toString(), new TypeToken<List<Scene>>() {
+        }.getType());
+    assertEquals(1, respondedScenes.size());
+  }
+
+  @Test
+  public void fetchScenes_notModified() throws Exception {
+    saveScene(scene);
+    prepareFetch();
+    theaterServlet.doPost(mockRequest, mockResponse);
+    ArgumentCaptor<String> eTagCaptor = ArgumentCaptor.forClass(String.class);
+    verify(mockResponse).setHeader(eq("ETag"), eTagCaptor.capture());
+    // Fetches again, with the tag of the first response.
+    prepareFetch();
+    when(mockRequest.getHeader("If-None-Match")).thenReturn(eTagCaptor.getValue());
+    theaterServlet.doPost(mockRequest, mockResponse);
+    verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals("", responseWriter.toString());
+  }
+
+  @Test(expected = Exception.class)
+  public void fetchScenes_sessionTokenOfAnotherUser() throws Exception {
+    saveScene(scene);
+    datastore.delete(userKeyFactory.newKey(defaultUser.getId()));
+    prepareFetch();
+    when(mockRequest.getHeader(BaseServlet.SESSION_TOKEN_HEADER)).thenReturn(
+        SessionTokens.issue(defaultUser.getId() + 1));
+    theaterServlet.doPost(mockRequest, mockResponse);
+  }
+
   @SuppressWarnings("Duplicates") @Test
   public void fetchScenes_emptyDatastore() throws Exception {
     // Not saving a scene.
@@ -193,6 +256,81 @@ public class TheaterServletTest extends BaseServletTestSuite {
     }
   }
 
+  @Test
+  public void fetchScenes_nextPage() throws Exception {
+    prepareFetch();
+    // Add 11 scenes to datastore.
+    for (int i = 0; i < TheaterServlet.FETCH_LIMIT + 1; i++) {
+      saveScene(new Scene(director,
+          Timestamp.ofTimeSecondsAndNanos(NOW.getSeconds() + i, NOW.getNanos()),
+          Collections.singletonList(new Photo(0L, "")),
+          null));
+    }
+    resetResponseMock();
+    // Fetches the first page.
+    theaterServlet.doPost(mockRequest, mockResponse);
+    ArgumentCaptor<String> tokenCaptor = ArgumentCaptor.forClass(String.class);
+    verify(mockResponse).setHeader(eq(BaseServlet.CONTINUATION_TOKEN_HEADER),
+        tokenCaptor.capture());
+    // Fetches the next page.
+    prepareFetch();
+    when(mockRequest.getHeader(BaseServlet.CONTINUATION_TOKEN_HEADER)).thenReturn(
+        tokenCaptor.getValue());
+    theaterServlet.doPost(mockRequest, mockResponse);
+    List<Scene> respondedScenes =
+        Util.GSON.fromJson(responseWriter.toString(), new TypeToken<List<Scene>>() {
+        }.getType());
+    // Only the oldest scene should remain.
+    assertEquals(1, respondedScenes.size());
+    assertEquals(NOW.getSeconds(), respondedScenes.get(0).getCreated().getSeconds());
+  }
+
+  @Test
+  public void fetchScenes_nextPage_sameCreationTime() throws Exception {
+    prepareFetch();
+    // Add 11 scenes that were created at the very same time.
+    for (int i = 0; i < TheaterServlet.FETCH_LIMIT + 1; i++) {
+      saveScene(new Scene(director, NOW, Collections.singletonList(new Photo(0L, "")), null));
+    }
+    resetResponseMock();
+    // Fetches the first page.
+    theaterServlet.doPost(mockRequest, mockResponse);
+    List<Scene> firstPage =
+        Util.GSON.fromJson(responseWriter.toString(), new TypeToken<List<Scene>>() {
+        }.getType());
+    ArgumentCaptor<String> tokenCaptor = ArgumentCaptor.forClass(String.class);
+    verify(mockResponse).setHeader(eq(BaseServlet.CONTINUATION_TOKEN_HEADER),
+        tokenCaptor.capture());
+    // Fetches the next page.
+    prepareFetch();
+    when(mockRequest.getHeader(BaseServlet.CONTINUATION_TOKEN_HEADER)).thenReturn(
+        tokenCaptor.getValue());
+    theaterServlet.doPost(mockRequest, mockResponse);
+    List<Scene> respondedScenes =
+        Util.GSON.fromJson(responseWriter.toString(), new TypeToken<List<Scene>>() {
+        }.getType());
+    // Only the scene that was not on the first page should remain.
+    assertEquals(1, respondedScenes.size());
+    for (Scene scene : firstPage) {
+      assertNotEquals(scene.getId(), respondedScenes.get(0).getId());
+    }
+  }
+
+  @Test
+  public void position() throws Exception {
+    TheaterServlet.Position position = new TheaterServlet.Position(NOW, 5L);
+    TheaterServlet.Position decoded = TheaterServlet.Position.fromToken(position.toToken());
+    assertEquals(position.toToken(), decoded.toToken());
+    scene.setId(6L);
+    assertTrue(decoded.precedes(scene));
+    scene.setId(5L);
+    assertFalse(decoded.precedes(scene));
+    scene = new Scene(director, Timestamp.ofTimeSecondsAndNanos(NOW.getSeconds() - 1, 0),
+        Collections.singletonList(new Photo(0L, "")), null);
+    scene.setId(1L);
+    assertTrue(decoded.precedes(scene));
+  }
+
   private void prepareFetch() throws Exception {
     when(mockRequest.getReader()).thenReturn(toBufferedReader(Util.GSON.toJson(defaultUser)));
     resetResponseMock();
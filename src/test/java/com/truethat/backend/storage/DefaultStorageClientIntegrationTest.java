@@ -39,4 +39,26 @@ public class DefaultStorageClientIntegrationTest extends BaseStorageTestSuite {
     TestUtil.assertUrl(storage.getPublicLink(uploaded), HttpURLConnection.HTTP_OK,
         new FileInputStream(tempFile));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void uploadFile_streaming() throws Exception {
+    // Creates a temp file that spans multiple upload chunks.
+    File tempFile = File.createTempFile(FILENAME.split("\\.")[0], "txt");
+    tempFile.deleteOnExit();
+    try (PrintWriter writer = new PrintWriter(tempFile)) {
+      for (int i = 0; i < StorageClient.UPLOAD_CHUNK_SIZE / 8; i++) {
+        writer.print("moneyyyyy");
+      }
+    }
+    // Uploads the file
+    BlobInfo uploaded;
+    try (FileInputStream inputStream = new FileInputStream(tempFile)) {
+      uploaded = storage.save(FILENAME, CONTENT_TYPE, inputStream, bucketName);
+    }
+    assertEquals(FILENAME, uploaded.getName());
+    assertEquals(bucketName, uploaded.getBucket());
+    // File should be available
+    TestUtil.assertUrl(storage.getPublicLink(uploaded), HttpURLConnection.HTTP_OK,
+        new FileInputStream(tempFile));
+  }
+}
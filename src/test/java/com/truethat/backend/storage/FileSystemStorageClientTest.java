@@ -0,0 +1,76 @@
+package com.truethat.backend.storage;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Proudly created by ohad on 03/10/2017.
+ */
+public class FileSystemStorageClientTest {
+  private static final String BUCKET_NAME = "test-bucket";
+  private static final String NAME = "media/abc.jpg";
+  private static final byte[] CONTENT = "my name is inigo montoya".getBytes();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  private FileSystemStorageClient storageClient;
+  private Path root;
+
+  @Before public void setUp() throws Exception {
+    root = folder.getRoot().toPath();
+    storageClient = new FileSystemStorageClient(root, "https://example.com/media");
+    storageClient.addBucket(BUCKET_NAME);
+  }
+
+  @Test public void save() throws Exception {
+    BlobInfo saved = storageClient.save(NAME, "image/jpeg", new ByteArrayInputStream(CONTENT),
+        BUCKET_NAME);
+    assertArrayEquals(CONTENT, Files.readAllBytes(root.resolve(BUCKET_NAME).resolve(NAME)));
+    assertEquals("https://example.com/media/test-bucket/media/abc.jpg",
+        storageClient.getPublicLink(saved));
+    // No temporary files are left behind.
+    try (Stream<Path> files = Files.list(root.resolve(BUCKET_NAME).resolve("media"))) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test public void save_overwrites() throws Exception {
+    storageClient.save(NAME, "image/jpeg", "old".getBytes(), BUCKET_NAME);
+    storageClient.save(NAME, "image/jpeg", CONTENT, BUCKET_NAME);
+    try (InputStream inputStream = storageClient.read(NAME, BUCKET_NAME)) {
+      assertArrayEquals(CONTENT, ByteStreams.toByteArray(inputStream));
+    }
+  }
+
+  @Test public void getAndDelete() throws Exception {
+    assertNull(storageClient.get(NAME, BUCKET_NAME));
+    storageClient.save(NAME, "image/jpeg", CONTENT, BUCKET_NAME);
+    BlobInfo blobInfo = storageClient.get(NAME, BUCKET_NAME);
+    assertEquals(NAME, blobInfo.getName());
+    assertTrue(storageClient.delete(blobInfo));
+    assertNull(storageClient.get(NAME, BUCKET_NAME));
+    assertFalse(storageClient.delete(blobInfo));
+  }
+
+  @Test(expected = FileNotFoundException.class) public void read_missing() throws Exception {
+    storageClient.read(NAME, BUCKET_NAME);
+  }
+
+  @Test(expected = FileNotFoundException.class) public void save_outsideRoot() throws Exception {
+    storageClient.save("../../escaped.jpg", "image/jpeg", CONTENT, BUCKET_NAME);
+  }
+}
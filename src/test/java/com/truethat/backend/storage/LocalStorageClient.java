@@ -1,37 +1,67 @@
 package com.truethat.backend.storage;
 
 import com.google.cloud.storage.BlobInfo;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.GeneralSecurityException;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Proudly created by ohad on 28/06/2017.
  */
 public class LocalStorageClient implements StorageClient {
-  private Map<String, Set<String>> bucketToFiles = new HashMap<>();
+  // Synchronized, as media items are uploaded concurrently. Bucket names may be null in tests.
+  private Map<String, Map<String, byte[]>> bucketToFiles =
+      Collections.synchronizedMap(new HashMap<>());
 
   @Override public void addBucket(String bucketName) throws IOException {
-    bucketToFiles.put(bucketName, new HashSet<>());
+    bucketToFiles.put(bucketName, new ConcurrentHashMap<>());
   }
 
   @Override public BlobInfo save(String destinationName, String contentType, byte[] bytes,
       String bucketName) throws IOException, GeneralSecurityException {
     if (bucketToFiles.containsKey(bucketName)) {
-      bucketToFiles.get(bucketName).add(destinationName);
+      bucketToFiles.get(bucketName).put(destinationName, bytes);
     } else {
       throw new IOException("Bucket " + bucketName + " does not exist.");
     }
-    BlobInfo blobInfo = mock(BlobInfo.class);
-    when(blobInfo.getName()).thenReturn(destinationName);
-    when(blobInfo.getBucket()).thenReturn(bucketName);
-    return blobInfo;
+    return BlobInfo.newBuilder(bucketName, destinationName).setContentType(contentType).build();
+  }
+
+  @Override public BlobInfo save(String destinationName, String contentType,
+      InputStream inputStream, String bucketName) throws IOException, GeneralSecurityException {
+    return save(destinationName, contentType, ByteStreams.toByteArray(inputStream), bucketName);
+  }
+
+  @Override public BlobInfo get(String name, String bucketName) throws IOException {
+    return bucketToFiles.containsKey(bucketName) && bucketToFiles.get(bucketName)
+        .containsKey(name) ? BlobInfo.newBuilder(bucketName, name).build() : null;
+  }
+
+  @Override public InputStream read(String name, String bucketName) throws IOException {
+    byte[] bytes =
+        bucketToFiles.containsKey(bucketName) ? bucketToFiles.get(bucketName).get(name) : null;
+    if (bytes == null) throw new FileNotFoundException(bucketName + "/" + name);
+    return new ByteArrayInputStream(bytes);
+  }
+
+  @Override public boolean delete(BlobInfo blobInfo) throws IOException {
+    return bucketToFiles.containsKey(blobInfo.getBucket())
+        && bucketToFiles.get(blobInfo.getBucket()).remove(blobInfo.getName()) != null;
+  }
+
+  /**
+   * @return names of the files in {@code bucketName}.
+   */
+  public Set<String> getFiles(String bucketName) {
+    return bucketToFiles.get(bucketName).keySet();
   }
 
   @Override public String getPublicLink(BlobInfo blobInfo) {